@@ -0,0 +1,210 @@
+package org.cggh.common.counters;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * LabelCounters specialised for allele labels (nucleotide or amino sequences), which are counted many
+ * times over a small set of distinct labels. The labels are kept in an open-addressing table, with
+ * the counts in a parallel int array and a running total, and the sorted counters are cached until
+ * the counts change.
+ *
+ * The LabelCounter objects returned are views of the counts at the time of the call: changing
+ * them does not change the counts, which must be changed through this object.
+ * Counters with the same count are sorted by label.
+ */
+public class AlleleLabelCounters extends LabelCounters {
+
+	private String[]       labels = new String[8];
+	private int[]          counts = new int[8];
+	private LabelCounter[] counterViews = new LabelCounter[8];
+	private int            size = 0;
+	private int            total = 0;
+	private int[]          slots = new int[16];   // Label index + 1 at each slot, or 0 if empty
+	private LabelCounter[] sortedCounters = null;
+
+	public AlleleLabelCounters() {
+		super();
+	}
+
+	private int findIndex (String label) {
+		int mask = slots.length - 1;
+		for (int slot = getSlot(label, mask); ; slot = (slot + 1) & mask) {
+			int idx = slots[slot] - 1;
+			if ((idx < 0) || labels[idx].equals(label)) {
+				return idx;
+			}
+		}
+	}
+
+	private int findOrAddIndex (String label) {
+		int mask = slots.length - 1;
+		int slot = getSlot(label, mask);
+		for (; ; slot = (slot + 1) & mask) {
+			int idx = slots[slot] - 1;
+			if (idx < 0) {
+				break;
+			}
+			if (labels[idx].equals(label)) {
+				return idx;
+			}
+		}
+		if (size == labels.length) {
+			labels = Arrays.copyOf(labels, 2 * size);
+			counts = Arrays.copyOf(counts, 2 * size);
+			counterViews = Arrays.copyOf(counterViews, 2 * size);
+		}
+		int idx = size++;
+		labels[idx] = label;
+		counts[idx] = 0;
+		counterViews[idx] = null;
+		slots[slot] = idx + 1;
+		if (2 * size > slots.length) {
+			rebuildSlots(2 * slots.length);
+		}
+		sortedCounters = null;
+		return idx;
+	}
+
+	private static int getSlot (String label, int mask) {
+		int h = label.hashCode() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void rebuildSlots (int slotCount) {
+		slots = new int[slotCount];
+		int mask = slotCount - 1;
+		for (int idx = 0; idx < size; idx++) {
+			int slot = getSlot(labels[idx], mask);
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = idx + 1;
+		}
+	}
+
+	private LabelCounter getCounterView (int idx) {
+		LabelCounter counter = counterViews[idx];
+		if (counter == null) {
+			counter = counterViews[idx] = new LabelCounter(labels[idx]);
+		}
+		counter.setCount(counts[idx]);
+		return counter;
+	}
+
+	private void setCountAt (int idx, int count) {
+		total += count - counts[idx];
+		counts[idx] = count;
+		sortedCounters = null;
+	}
+
+	/* ==========================================================
+	 * LabelCounters
+	 * ==========================================================
+	 */
+	public LabelCounter createCounter (String label) {
+		int idx = findOrAddIndex(label);
+		setCountAt(idx, 0);
+		return getCounterView(idx);
+	}
+
+	public boolean hasCounter (String label) {
+		return findIndex(label) >= 0;
+	}
+
+	public LabelCounter getCounter (String label) {
+		int idx = findIndex(label);
+		return (idx < 0) ? null : getCounterView(idx);
+	}
+
+	public boolean isEmpty () {
+		return size == 0;
+	}
+
+	public int getSize () {
+		return size;
+	}
+
+	public int getTotal () {
+		return total;
+	}
+
+	public void setCount (String label, int count) {
+		setCountAt(findOrAddIndex(label), count);
+	}
+
+	public void increment (String label) {
+		int idx = findOrAddIndex(label);
+		counts[idx]++;
+		total++;
+		sortedCounters = null;
+	}
+
+	public void add (String label, int count) {
+		int idx = findOrAddIndex(label);
+		setCountAt(idx, counts[idx] + count);
+	}
+
+	public void clear() {
+		Arrays.fill(labels, 0, size, null);
+		Arrays.fill(counterViews, 0, size, null);
+		Arrays.fill(slots, 0);
+		size = 0;
+		total = 0;
+		sortedCounters = null;
+	}
+
+	public void filterCounters (LabelCounterFilter filter) {
+		int newSize = 0;
+		total = 0;
+		for (int idx = 0; idx < size; idx++) {
+			if (filter.isCounterValid(getCounterView(idx))) {
+				labels[newSize] = labels[idx];
+				counts[newSize] = counts[idx];
+				counterViews[newSize] = counterViews[idx];
+				total += counts[idx];
+				newSize++;
+			}
+		}
+		Arrays.fill(labels, newSize, size, null);
+		Arrays.fill(counterViews, newSize, size, null);
+		size = newSize;
+		rebuildSlots(slots.length);
+		sortedCounters = null;
+	}
+
+	public String[] getLabels () {
+		return Arrays.copyOf(labels, size);
+	}
+
+	/*
+	 * Returns the counters sorted by count (descending). The array is cached until the counts change,
+	 * and must not be modified.
+	 */
+	public LabelCounter[] getSortedCounters () {
+		if (sortedCounters == null) {
+			LabelCounter[] counters = new LabelCounter[size];
+			for (int idx = 0; idx < size; idx++) {
+				counters[idx] = getCounterView(idx);
+			}
+			Arrays.sort(counters, sorterByCountDescAndLabel);
+			sortedCounters = counters;
+		}
+		return sortedCounters;
+	}
+
+	/*
+	 * Returns the k counters with the highest counts (or all the counters, if there are fewer than k)
+	 */
+	public LabelCounter[] getTopCounters (int k) {
+		LabelCounter[] counters = getSortedCounters();
+		return (k >= counters.length) ? counters : Arrays.copyOf(counters, k);
+	}
+
+	private static Comparator<LabelCounter> sorterByCountDescAndLabel = new Comparator<LabelCounter>() {
+		public int compare(LabelCounter o1, LabelCounter o2) {
+			int diff = o2.count - o1.count;
+			return (diff != 0) ? diff : o1.label.compareTo(o2.label);
+		}
+	};
+}
@@ -0,0 +1,284 @@
+package org.cggh.common.fileIO;
+
+import org.cggh.common.exceptions.AnalysisException;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.*;
+
+
+/*
+ * Reads a matrix written by BinaryMatrixWriter. Uncompressed chunks are memory-mapped, so that single
+ * values, rows or columns can be read without loading the matrix; compressed chunks are inflated when
+ * first needed, and the most recently used ones are kept in memory.
+ *
+ * Reading a column only touches one chunk, while reading a row touches all of them, so reading rows
+ * from a compressed matrix is only practical if the chunk cache can hold all chunks.
+ */
+public class BinaryMatrixReader {
+
+	public static final int DEFAULT_CACHED_CHUNKS = 16;
+
+	private File        file;
+	private FileChannel channel;
+	private int         valueType;
+	private int         valueSize;
+	private int         rowCount;
+	private int         columnCount;
+	private int         columnsPerChunk;
+	private boolean     compressed;
+	private String[]    rowNames;
+	private String[]    columnNames;
+	private long[]      chunkOffsets;
+
+	private ByteBuffer[]                      mappedChunks;
+	private LinkedHashMap<Integer,ByteBuffer> inflatedChunks;
+
+	public BinaryMatrixReader (File file) throws AnalysisException {
+		this (file, DEFAULT_CACHED_CHUNKS);
+	}
+
+	public BinaryMatrixReader (File file, final int maxCachedChunks) throws AnalysisException {
+		this.file = file;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			byte[] magic = new byte[BinaryMatrixWriter.MAGIC.length];
+			raf.readFully(magic);
+			if (!Arrays.equals(magic, BinaryMatrixWriter.MAGIC)) {
+				throw new AnalysisException("File "+file.getAbsolutePath()+" is not a binary matrix file");
+			}
+			valueType = raf.readInt();
+			rowCount = raf.readInt();
+			columnCount = raf.readInt();
+			columnsPerChunk = raf.readInt();
+			compressed = (raf.readInt() != 0);
+			long trailerOffset = raf.readLong();
+			if ((trailerOffset < raf.getFilePointer()) || (trailerOffset > raf.length())) {
+				throw new IOException("invalid trailer offset "+trailerOffset);
+			}
+
+			byte[] trailer = new byte[(int)(raf.length() - trailerOffset)];
+			raf.seek(trailerOffset);
+			raf.readFully(trailer);
+			DataInputStream trailerIn = new DataInputStream(new ByteArrayInputStream(trailer));
+			rowNames = new String[trailerIn.readInt()];
+			for (int i = 0; i < rowNames.length; i++) {
+				rowNames[i] = trailerIn.readUTF();
+			}
+			columnNames = new String[trailerIn.readInt()];
+			for (int i = 0; i < columnNames.length; i++) {
+				columnNames[i] = trailerIn.readUTF();
+			}
+			chunkOffsets = new long[trailerIn.readInt()];
+			for (int i = 0; i < chunkOffsets.length; i++) {
+				chunkOffsets[i] = trailerIn.readLong();
+			}
+			if ((rowNames.length != rowCount) || (columnNames.length != columnCount) || (chunkOffsets.length == 0)) {
+				throw new IOException("inconsistent trailer");
+			}
+			valueSize = BinaryMatrixWriter.getValueSize(valueType);
+			channel = raf.getChannel();
+		} catch (IOException | AnalysisException | RuntimeException e) {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ce) {}
+			}
+			if (e instanceof AnalysisException) {
+				throw (AnalysisException)e;
+			}
+			throw new AnalysisException("Error reading binary matrix file "+file.getAbsolutePath()+": "+e);
+		}
+		mappedChunks = new ByteBuffer[chunkOffsets.length - 1];
+		inflatedChunks = new LinkedHashMap<Integer,ByteBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry (Map.Entry<Integer,ByteBuffer> eldest) {
+				return size() > maxCachedChunks;
+			}
+		};
+	}
+
+	public int getValueType() {
+		return valueType;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	public String[] getRowNames() {
+		return rowNames;
+	}
+
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	public void close () throws AnalysisException {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new AnalysisException("Error closing binary matrix file "+file.getAbsolutePath()+": "+e);
+		}
+	}
+
+	/* ==========================================================
+	 * Value access
+	 * ==========================================================
+	 */
+	public byte getByte (int rowIdx, int colIdx) throws AnalysisException {
+		return getChunk(colIdx).get(getValueIndex(rowIdx, colIdx));
+	}
+
+	public short getShort (int rowIdx, int colIdx) throws AnalysisException {
+		return getChunk(colIdx).getShort(getValueIndex(rowIdx, colIdx));
+	}
+
+	public float getFloat (int rowIdx, int colIdx) throws AnalysisException {
+		return getChunk(colIdx).getFloat(getValueIndex(rowIdx, colIdx));
+	}
+
+	public byte[] getByteColumn (int colIdx) throws AnalysisException {
+		byte[] values = new byte[rowCount];
+		ByteBuffer chunk = getChunk(colIdx);
+		int idx = getValueIndex(0, colIdx);
+		for (int rowIdx = 0; rowIdx < rowCount; rowIdx++, idx += valueSize) {
+			values[rowIdx] = chunk.get(idx);
+		}
+		return values;
+	}
+
+	public short[] getShortColumn (int colIdx) throws AnalysisException {
+		short[] values = new short[rowCount];
+		ByteBuffer chunk = getChunk(colIdx);
+		int idx = getValueIndex(0, colIdx);
+		for (int rowIdx = 0; rowIdx < rowCount; rowIdx++, idx += valueSize) {
+			values[rowIdx] = chunk.getShort(idx);
+		}
+		return values;
+	}
+
+	public float[] getFloatColumn (int colIdx) throws AnalysisException {
+		float[] values = new float[rowCount];
+		ByteBuffer chunk = getChunk(colIdx);
+		int idx = getValueIndex(0, colIdx);
+		for (int rowIdx = 0; rowIdx < rowCount; rowIdx++, idx += valueSize) {
+			values[rowIdx] = chunk.getFloat(idx);
+		}
+		return values;
+	}
+
+	public byte[] getByteRow (int rowIdx) throws AnalysisException {
+		byte[] values = new byte[columnCount];
+		int stride = rowCount * valueSize;
+		for (int colIdx = 0; colIdx < columnCount; colIdx += columnsPerChunk) {
+			ByteBuffer chunk = getChunk(colIdx);
+			int chunkEnd = Math.min(colIdx + columnsPerChunk, columnCount);
+			int idx = getValueIndex(rowIdx, colIdx);
+			for (int i = colIdx; i < chunkEnd; i++, idx += stride) {
+				values[i] = chunk.get(idx);
+			}
+		}
+		return values;
+	}
+
+	public short[] getShortRow (int rowIdx) throws AnalysisException {
+		short[] values = new short[columnCount];
+		int stride = rowCount * valueSize;
+		for (int colIdx = 0; colIdx < columnCount; colIdx += columnsPerChunk) {
+			ByteBuffer chunk = getChunk(colIdx);
+			int chunkEnd = Math.min(colIdx + columnsPerChunk, columnCount);
+			int idx = getValueIndex(rowIdx, colIdx);
+			for (int i = colIdx; i < chunkEnd; i++, idx += stride) {
+				values[i] = chunk.getShort(idx);
+			}
+		}
+		return values;
+	}
+
+	public float[] getFloatRow (int rowIdx) throws AnalysisException {
+		float[] values = new float[columnCount];
+		int stride = rowCount * valueSize;
+		for (int colIdx = 0; colIdx < columnCount; colIdx += columnsPerChunk) {
+			ByteBuffer chunk = getChunk(colIdx);
+			int chunkEnd = Math.min(colIdx + columnsPerChunk, columnCount);
+			int idx = getValueIndex(rowIdx, colIdx);
+			for (int i = colIdx; i < chunkEnd; i++, idx += stride) {
+				values[i] = chunk.getFloat(idx);
+			}
+		}
+		return values;
+	}
+
+	private int getValueIndex (int rowIdx, int colIdx) {
+		int chunkColIdx = colIdx % columnsPerChunk;
+		return ((chunkColIdx * rowCount) + rowIdx) * valueSize;
+	}
+
+	/* ==========================================================
+	 * Chunk access
+	 * ==========================================================
+	 */
+	private synchronized ByteBuffer getChunk (int colIdx) throws AnalysisException {
+		if ((colIdx < 0) || (colIdx >= columnCount)) {
+			throw new AnalysisException("Column index "+colIdx+" out of range in binary matrix file "+file.getAbsolutePath());
+		}
+		int chunkIdx = colIdx / columnsPerChunk;
+		if (!compressed) {
+			if (mappedChunks[chunkIdx] == null) {
+				mappedChunks[chunkIdx] = mapChunk(chunkIdx);
+			}
+			return mappedChunks[chunkIdx];
+		}
+		ByteBuffer chunk = inflatedChunks.get(chunkIdx);
+		if (chunk == null) {
+			chunk = inflateChunk(chunkIdx);
+			inflatedChunks.put(chunkIdx, chunk);
+		}
+		return chunk;
+	}
+
+	private ByteBuffer mapChunk (int chunkIdx) throws AnalysisException {
+		long offset = chunkOffsets[chunkIdx];
+		long length = chunkOffsets[chunkIdx + 1] - offset;
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		} catch (IOException e) {
+			throw new AnalysisException("Error mapping binary matrix file "+file.getAbsolutePath()+": "+e);
+		}
+	}
+
+	private ByteBuffer inflateChunk (int chunkIdx) throws AnalysisException {
+		ByteBuffer compressedChunk = mapChunk(chunkIdx);
+		byte[] input = new byte[compressedChunk.remaining()];
+		compressedChunk.get(input);
+		int chunkColumns = Math.min(columnsPerChunk, columnCount - (chunkIdx * columnsPerChunk));
+		byte[] output = new byte[chunkColumns * rowCount * valueSize];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(input);
+			int len = 0;
+			while ((len < output.length) && !inflater.finished()) {
+				len += inflater.inflate(output, len, output.length - len);
+				if (inflater.needsInput()) {
+					break;
+				}
+			}
+			if (len != output.length) {
+				throw new AnalysisException("Truncated chunk in binary matrix file "+file.getAbsolutePath());
+			}
+		} catch (DataFormatException e) {
+			throw new AnalysisException("Error decompressing binary matrix file "+file.getAbsolutePath()+": "+e);
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(output);
+	}
+}
@@ -0,0 +1,212 @@
+package org.cggh.common.fileIO;
+
+import org.cggh.common.exceptions.AnalysisException;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.Deflater;
+
+
+/*
+ * Writes a matrix of numeric values (e.g. SNPs x samples) in a compact binary format that can be read
+ * back with BinaryMatrixReader, a column (e.g. a sample) at a time, so that the whole matrix never needs
+ * to be in memory.
+ *
+ * The columns are stored in chunks of consecutive columns; within a chunk, values are stored column
+ * after column, so a column is contiguous, and a row is read with a fixed stride. Chunks can be
+ * individually compressed. The file layout is:
+ *
+ *   magic (8 bytes), value type, row count, column count, columns per chunk, compressed flag (ints),
+ *   trailer offset (long), chunk data, and at the trailer offset: row names, column names, and the
+ *   file offsets of the chunks (plus the end of the last chunk).
+ *
+ * All numbers are big-endian.
+ */
+public class BinaryMatrixWriter {
+
+	public static final byte[] MAGIC = { 'G', 'R', 'C', 'M', 'T', 'X', '0', '1' };
+	public static final int HEADER_SIZE = MAGIC.length + (5 * 4) + 8;
+
+	public static final int TYPE_BYTE  = 1;
+	public static final int TYPE_SHORT = 2;
+	public static final int TYPE_FLOAT = 3;
+
+	public static final int DEFAULT_COLUMNS_PER_CHUNK = 64;
+
+	public static int getValueSize (int valueType) throws AnalysisException {
+		switch (valueType) {
+		case TYPE_BYTE:
+			return 1;
+		case TYPE_SHORT:
+			return 2;
+		case TYPE_FLOAT:
+			return 4;
+		}
+		throw new AnalysisException("Invalid binary matrix value type: "+valueType);
+	}
+
+	private File             file;
+	private FileOutputStream out;
+	private FileChannel      channel;
+	private int              valueType;
+	private int              valueSize;
+	private String[]         rowNames;
+	private String[]         columnNames;
+	private int              columnsPerChunk;
+	private boolean          compressed;
+
+	private ByteBuffer       chunkBuffer;
+	private int              columnsWritten = 0;
+	private ArrayList<Long>  chunkOffsets = new ArrayList<Long>();
+
+	public BinaryMatrixWriter (File file, int valueType, String[] rowNames, String[] columnNames) throws AnalysisException {
+		this (file, valueType, rowNames, columnNames, DEFAULT_COLUMNS_PER_CHUNK, false);
+	}
+
+	public BinaryMatrixWriter (File file, int valueType, String[] rowNames, String[] columnNames, int columnsPerChunk, boolean compressed) throws AnalysisException {
+		this.file = file;
+		this.valueType = valueType;
+		this.valueSize = getValueSize(valueType);
+		this.rowNames = rowNames;
+		this.columnNames = columnNames;
+		this.columnsPerChunk = columnsPerChunk;
+		this.compressed = compressed;
+		this.chunkBuffer = ByteBuffer.allocate(columnsPerChunk * rowNames.length * valueSize);
+		try {
+			out = new FileOutputStream(file);
+			channel = out.getChannel();
+			channel.position(HEADER_SIZE);
+		} catch (IOException e) {
+			throw new AnalysisException("Error creating binary matrix file "+file.getAbsolutePath()+": "+e);
+		}
+	}
+
+	public void appendColumn (byte[] values) throws AnalysisException {
+		checkColumn(TYPE_BYTE, values.length);
+		chunkBuffer.put(values);
+		columnAppended();
+	}
+
+	public void appendColumn (short[] values) throws AnalysisException {
+		checkColumn(TYPE_SHORT, values.length);
+		for (int i = 0; i < values.length; i++) {
+			chunkBuffer.putShort(values[i]);
+		}
+		columnAppended();
+	}
+
+	public void appendColumn (float[] values) throws AnalysisException {
+		checkColumn(TYPE_FLOAT, values.length);
+		for (int i = 0; i < values.length; i++) {
+			chunkBuffer.putFloat(values[i]);
+		}
+		columnAppended();
+	}
+
+	private void checkColumn (int type, int length) throws AnalysisException {
+		if (type != valueType) {
+			throw new AnalysisException("Wrong value type for binary matrix file "+file.getAbsolutePath());
+		}
+		if (length != rowNames.length) {
+			throw new AnalysisException("Column with "+length+" values written to binary matrix file "+file.getAbsolutePath()+" with "+rowNames.length+" rows");
+		}
+		if (columnsWritten >= columnNames.length) {
+			throw new AnalysisException("Too many columns written to binary matrix file "+file.getAbsolutePath());
+		}
+	}
+
+	private void columnAppended () throws AnalysisException {
+		columnsWritten++;
+		if (!chunkBuffer.hasRemaining()) {
+			writeChunk();
+		}
+	}
+
+	private void writeChunk () throws AnalysisException {
+		chunkBuffer.flip();
+		try {
+			chunkOffsets.add(channel.position());
+			if (compressed) {
+				Deflater deflater = new Deflater();
+				deflater.setInput(chunkBuffer.array(), 0, chunkBuffer.limit());
+				deflater.finish();
+				byte[] buffer = new byte[64 * 1024];
+				while (!deflater.finished()) {
+					int len = deflater.deflate(buffer);
+					writeFully(ByteBuffer.wrap(buffer, 0, len));
+				}
+				deflater.end();
+			} else {
+				writeFully(chunkBuffer);
+			}
+		} catch (IOException e) {
+			throw new AnalysisException("Error writing binary matrix file "+file.getAbsolutePath()+": "+e);
+		}
+		chunkBuffer.clear();
+	}
+
+	private void writeFully (ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	public void close () throws AnalysisException {
+		if (columnsWritten != columnNames.length) {
+			throw new AnalysisException("Only "+columnsWritten+" of "+columnNames.length+" columns written to binary matrix file "+file.getAbsolutePath());
+		}
+		if (chunkBuffer.position() > 0) {
+			writeChunk();
+		}
+		try {
+			long trailerOffset = channel.position();
+			chunkOffsets.add(trailerOffset);
+
+			// Trailer with the names and chunk index
+			DataOutputStream trailerOut = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+			trailerOut.writeInt(rowNames.length);
+			for (int i = 0; i < rowNames.length; i++) {
+				trailerOut.writeUTF(rowNames[i]);
+			}
+			trailerOut.writeInt(columnNames.length);
+			for (int i = 0; i < columnNames.length; i++) {
+				trailerOut.writeUTF(columnNames[i]);
+			}
+			trailerOut.writeInt(chunkOffsets.size());
+			for (Long offset : chunkOffsets) {
+				trailerOut.writeLong(offset);
+			}
+			trailerOut.flush();
+
+			// Header
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(MAGIC);
+			header.putInt(valueType);
+			header.putInt(rowNames.length);
+			header.putInt(columnNames.length);
+			header.putInt(columnsPerChunk);
+			header.putInt(compressed ? 1 : 0);
+			header.putLong(trailerOffset);
+			header.flip();
+			channel.position(0);
+			writeFully(header);
+			out.close();
+		} catch (IOException e) {
+			throw new AnalysisException("Error writing binary matrix file "+file.getAbsolutePath()+": "+e);
+		}
+	}
+
+	/*
+	 * Closes the file, if still open, and deletes it; used when the matrix cannot be completed
+	 */
+	public void abort () {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// Being deleted anyway
+		}
+		file.delete();
+	}
+}
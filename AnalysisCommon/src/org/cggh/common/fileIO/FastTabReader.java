@@ -0,0 +1,440 @@
+package org.cggh.common.fileIO;
+
+import org.cggh.common.exceptions.AnalysisException;
+import org.cggh.common.textStore.InputTextStore;
+
+import java.io.*;
+import java.util.Arrays;
+
+
+/*
+ * Reads a tab-delimited file with column headers, like ColumnFileReader, but without allocating
+ * a String per line or per field. Characters are read into a buffer, and the tab offsets of each
+ * line are recorded; the fields are then returned as reusable CharSequence views on the buffer, or
+ * parsed directly as numbers. The views are only valid until the next call to nextRecord().
+ *
+ * Lines that are empty, only have whitespace, or start with the comment prefix are skipped, as in
+ * DelimitedReader. Unlike String.split(), trailing empty fields are kept.
+ */
+public class FastTabReader {
+
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	private static final int MAX_FAST_DOUBLE_DIGITS = 15;
+	private static final int MAX_FAST_FLOAT_DIGITS = 7;
+	private static final double[] POWERS_OF_TEN = new double[MAX_FAST_DOUBLE_DIGITS + 1];
+	static {
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10.0;
+		}
+	}
+
+	private String   path;
+	private Reader   reader;
+	private String   commentPrefix = DelimitedReader.DEFAULT_COMMENT_PREFIX;
+	private char[]   buffer;
+	private int      bufferLen = 0;
+	private int      lineStart = 0;
+	private int      lineEnd = 0;
+	private int      nextLineStart = 0;
+	private boolean  eof = false;
+	private int      lineNumber = 0;
+
+	// Field boundaries of the current line, as offsets into the buffer
+	private int      fieldCount = 0;
+	private int[]    fieldStarts = new int[64];
+	private int[]    fieldEnds = new int[64];
+	private FieldView[] fieldViews = new FieldView[0];
+
+	// Result of parseDecimal(), reused for every field
+	private final long[] decimalParts = new long[3];
+
+	private String[] columnNames;
+
+	public FastTabReader (InputTextStore inputStore) throws AnalysisException {
+		this (inputStore, DEFAULT_BUFFER_SIZE);
+	}
+
+	public FastTabReader (InputTextStore inputStore, int bufferSize) throws AnalysisException {
+		this.path = inputStore.getPath();
+		if ((inputStore.getFile() == null) || !inputStore.getFile().exists()) {
+			throw new AnalysisException("File "+path+" not found");
+		}
+		try {
+			this.reader = inputStore.getReader();
+		} catch (IOException e) {
+			throw new AnalysisException("Error opening file "+path+": "+e);
+		}
+		this.buffer = new char[bufferSize];
+
+		// Process headers
+		if (!nextRecord()) {
+			throw new AnalysisException("Error opening datafile "+path+": no headers found");
+		}
+		columnNames = new String[fieldCount];
+		for (int colIdx = 0; colIdx < fieldCount; colIdx++) {
+			columnNames[colIdx] = getString(colIdx).trim();
+		}
+	}
+
+	public String[] getColumnNames () {
+		return columnNames;
+	}
+
+	public int getColumnIndex (String colName) throws AnalysisException {
+		for (int fIdx = 0; fIdx < columnNames.length; fIdx++) {
+			if (colName.equals(columnNames[fIdx])) {
+				return fIdx;
+			}
+		}
+		throw new AnalysisException("Column " + colName + " not found in file " + path);
+	}
+
+	public int[] getColumnIndexes (String[] queryColNames) throws AnalysisException {
+		int[] queryColIdx = new int[queryColNames.length];
+		for (int colIdx = 0; colIdx < queryColNames.length; colIdx++) {
+			queryColIdx[colIdx] = getColumnIndex (queryColNames[colIdx]);
+		}
+		return queryColIdx;
+	}
+
+	public int getLineNumber () {
+		return lineNumber;
+	}
+
+	public void close () throws AnalysisException {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			throw new AnalysisException("Error closing file "+path+": "+e);
+		}
+	}
+
+	/* ==========================================================
+	 * Line scanning
+	 * ==========================================================
+	 */
+	public boolean nextRecord () throws AnalysisException {
+		try {
+			while (readLine()) {
+				if (isValidLine()) {
+					splitFields();
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			throw new AnalysisException("Error reading file "+path+" at line "+(lineNumber+1)+": "+e);
+		}
+		fieldCount = 0;
+		return false;
+	}
+
+	/*
+	 * Finds the next line in the buffer, refilling it as needed; the line terminator is not included
+	 */
+	private boolean readLine () throws IOException {
+		int scanFrom = nextLineStart;
+		while (true) {
+			for (int i = scanFrom; i < bufferLen; i++) {
+				if (buffer[i] == '\n') {
+					setLine(nextLineStart, i, i + 1);
+					return true;
+				}
+			}
+			if (eof) {
+				if (nextLineStart < bufferLen) {
+					setLine(nextLineStart, bufferLen, bufferLen);
+					return true;
+				}
+				return false;
+			}
+			scanFrom = bufferLen - nextLineStart;
+			fillBuffer();
+			scanFrom += nextLineStart;
+		}
+	}
+
+	private void setLine (int start, int end, int next) {
+		if ((end > start) && (buffer[end - 1] == '\r')) {
+			end--;
+		}
+		lineStart = start;
+		lineEnd = end;
+		nextLineStart = next;
+		lineNumber++;
+	}
+
+	/*
+	 * Moves the unread part of the buffer to the start, growing the buffer if a line does not fit, and reads more characters
+	 */
+	private void fillBuffer () throws IOException {
+		int remaining = bufferLen - nextLineStart;
+		if (remaining == buffer.length) {
+			char[] newBuffer = new char[2 * buffer.length];
+			System.arraycopy(buffer, nextLineStart, newBuffer, 0, remaining);
+			buffer = newBuffer;
+		} else {
+			System.arraycopy(buffer, nextLineStart, buffer, 0, remaining);
+		}
+		bufferLen = remaining;
+		nextLineStart = 0;
+		while (bufferLen < buffer.length) {
+			int n = reader.read(buffer, bufferLen, buffer.length - bufferLen);
+			if (n < 0) {
+				eof = true;
+				break;
+			}
+			bufferLen += n;
+		}
+	}
+
+	private boolean isValidLine () {
+		boolean blank = true;
+		for (int i = lineStart; i < lineEnd; i++) {
+			if (buffer[i] > ' ') {
+				blank = false;
+				break;
+			}
+		}
+		if (blank) {
+			return false;
+		}
+		if (commentPrefix != null) {
+			int prefixLen = commentPrefix.length();
+			if (lineEnd - lineStart >= prefixLen) {
+				for (int i = 0; i < prefixLen; i++) {
+					if (buffer[lineStart + i] != commentPrefix.charAt(i)) {
+						return true;
+					}
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void splitFields () {
+		fieldCount = 0;
+		int fieldStart = lineStart;
+		for (int i = lineStart; i <= lineEnd; i++) {
+			if ((i == lineEnd) || (buffer[i] == '\t')) {
+				if (fieldCount == fieldStarts.length) {
+					fieldStarts = Arrays.copyOf(fieldStarts, 2 * fieldCount);
+					fieldEnds = Arrays.copyOf(fieldEnds, 2 * fieldCount);
+				}
+				fieldStarts[fieldCount] = fieldStart;
+				fieldEnds[fieldCount] = i;
+				fieldCount++;
+				fieldStart = i + 1;
+			}
+		}
+	}
+
+	/* ==========================================================
+	 * Field access
+	 * ==========================================================
+	 */
+	public int getFieldCount () {
+		return fieldCount;
+	}
+
+	/*
+	 * Returns a view of the field, which is reused for the same field index in the following lines
+	 */
+	public CharSequence getField (int fIdx) {
+		checkField(fIdx);
+		if (fIdx >= fieldViews.length) {
+			FieldView[] newViews = Arrays.copyOf(fieldViews, Math.max(fieldCount, 2 * fieldViews.length));
+			for (int i = fieldViews.length; i < newViews.length; i++) {
+				newViews[i] = new FieldView(i);
+			}
+			fieldViews = newViews;
+		}
+		return fieldViews[fIdx];
+	}
+
+	public String getString (int fIdx) {
+		checkField(fIdx);
+		return new String(buffer, fieldStarts[fIdx], fieldEnds[fIdx] - fieldStarts[fIdx]);
+	}
+
+	public boolean fieldEquals (int fIdx, String value) {
+		checkField(fIdx);
+		int start = fieldStarts[fIdx];
+		int len = fieldEnds[fIdx] - start;
+		if (len != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (buffer[start + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Parses the field as Integer.parseInt() would, throwing NumberFormatException if it is not a valid int
+	 */
+	public int getInt (int fIdx) {
+		checkField(fIdx);
+		int start = fieldStarts[fIdx];
+		int end = fieldEnds[fIdx];
+		boolean negative = false;
+		if ((start < end) && ((buffer[start] == '-') || (buffer[start] == '+'))) {
+			negative = (buffer[start] == '-');
+			start++;
+		}
+		if (start == end) {
+			throw new NumberFormatException("For input string: \""+getString(fIdx)+"\"");
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if ((digit < 0) || (digit > 9)) {
+				throw new NumberFormatException("For input string: \""+getString(fIdx)+"\"");
+			}
+			value = (value * 10) + digit;
+			if (value > ((long)Integer.MAX_VALUE + 1)) {
+				throw new NumberFormatException("For input string: \""+getString(fIdx)+"\"");
+			}
+		}
+		if (negative) {
+			value = -value;
+		}
+		if (value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("For input string: \""+getString(fIdx)+"\"");
+		}
+		return (int)value;
+	}
+
+	public short getShort (int fIdx) {
+		int value = getInt(fIdx);
+		if ((value < Short.MIN_VALUE) || (value > Short.MAX_VALUE)) {
+			throw new NumberFormatException("Value out of range. Value:\""+getString(fIdx)+"\"");
+		}
+		return (short)value;
+	}
+
+	public byte getByte (int fIdx) {
+		int value = getInt(fIdx);
+		if ((value < Byte.MIN_VALUE) || (value > Byte.MAX_VALUE)) {
+			throw new NumberFormatException("Value out of range. Value:\""+getString(fIdx)+"\"");
+		}
+		return (byte)value;
+	}
+
+	/*
+	 * Parses the field as Double.parseDouble() would. Plain decimals with few digits are converted directly,
+	 * since dividing two exactly representable numbers gives the correctly rounded result; anything else
+	 * (exponents, NaN, long numbers) goes through Double.parseDouble().
+	 */
+	public double getDouble (int fIdx) {
+		long[] parsed = parseDecimal(fIdx, MAX_FAST_DOUBLE_DIGITS);
+		if (parsed == null) {
+			return Double.parseDouble(getString(fIdx));
+		}
+		double value = parsed[0] / POWERS_OF_TEN[(int)parsed[1]];
+		return (parsed[2] != 0) ? -value : value;
+	}
+
+	/*
+	 * Parses the field as Float.parseFloat() would, with the same fast path as getDouble()
+	 */
+	public float getFloat (int fIdx) {
+		long[] parsed = parseDecimal(fIdx, MAX_FAST_FLOAT_DIGITS);
+		if (parsed == null) {
+			return Float.parseFloat(getString(fIdx));
+		}
+		float value = (float)parsed[0] / (float)POWERS_OF_TEN[(int)parsed[1]];
+		return (parsed[2] != 0) ? -value : value;
+	}
+
+	/*
+	 * Splits a plain decimal into mantissa, number of fraction digits and sign; returns null if the field
+	 * is not a plain decimal, or has more digits than can be converted exactly
+	 */
+	private long[] parseDecimal (int fIdx, int maxDigits) {
+		checkField(fIdx);
+		int start = fieldStarts[fIdx];
+		int end = fieldEnds[fIdx];
+		boolean negative = false;
+		if ((start < end) && ((buffer[start] == '-') || (buffer[start] == '+'))) {
+			negative = (buffer[start] == '-');
+			start++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		boolean hasDigits = false;
+		int fractionDigits = -1;
+		for (int i = start; i < end; i++) {
+			char c = buffer[i];
+			if (c == '.') {
+				if (fractionDigits >= 0) {
+					return null;
+				}
+				fractionDigits = 0;
+				continue;
+			}
+			int digit = c - '0';
+			if ((digit < 0) || (digit > 9)) {
+				return null;
+			}
+			hasDigits = true;
+			if ((mantissa != 0) || (digit != 0)) {
+				digits++;
+			}
+			if (digits > maxDigits) {
+				return null;
+			}
+			mantissa = (mantissa * 10) + digit;
+			if (fractionDigits >= 0) {
+				fractionDigits++;
+			}
+		}
+		if (!hasDigits || (fractionDigits > maxDigits)) {
+			return null;
+		}
+		decimalParts[0] = mantissa;
+		decimalParts[1] = Math.max(fractionDigits, 0);
+		decimalParts[2] = negative ? 1 : 0;
+		return decimalParts;
+	}
+
+	private void checkField (int fIdx) {
+		if ((fIdx < 0) || (fIdx >= fieldCount)) {
+			throw new ArrayIndexOutOfBoundsException("Field "+fIdx+" not found in line "+lineNumber+" of file "+path);
+		}
+	}
+
+	/*
+	 * Field of the current line, as a view on the reader buffer
+	 */
+	private class FieldView implements CharSequence {
+		private int fIdx;
+
+		public FieldView (int fIdx) {
+			this.fIdx = fIdx;
+		}
+
+		public int length() {
+			return (fIdx < fieldCount) ? fieldEnds[fIdx] - fieldStarts[fIdx] : 0;
+		}
+
+		public char charAt(int index) {
+			if ((index < 0) || (index >= length())) {
+				throw new IndexOutOfBoundsException("Index "+index+" out of field length "+length());
+			}
+			return buffer[fieldStarts[fIdx] + index];
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return toString().subSequence(start, end);
+		}
+
+		public String toString() {
+			return (fIdx < fieldCount) ? new String(buffer, fieldStarts[fIdx], length()) : "";
+		}
+	}
+}
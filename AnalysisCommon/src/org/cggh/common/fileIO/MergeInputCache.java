@@ -0,0 +1,193 @@
+package org.cggh.common.fileIO;
+
+import org.cggh.common.exceptions.AnalysisException;
+import org.apache.commons.logging.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+
+/*
+ * Manifest of the input files of a merge (typically, many small per-sample result files), kept in a
+ * single file, so that a merge that keeps its own merged data from the previous run (e.g. in a binary
+ * matrix) only needs to read and parse the files that changed since then. The file contents are not
+ * cached: merges that aggregate over all the files still stream them one at a time.
+ *
+ * For each file, the manifest keeps its size, modification time and CRC32 checksum. A file is taken as
+ * unchanged if its size and modification time are the same as in the manifest, or if only the
+ * modification time differs but the checksum is the same. Entries for files not used in a merge are
+ * dropped when the manifest is saved.
+ *
+ * A cache with no cache file is disabled: all files are taken as changed, and nothing is saved.
+ */
+public class MergeInputCache {
+
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	private static final int CACHE_FORMAT_VERSION = 2;
+
+	private File                         cacheFile;
+	private HashMap<String,CacheEntry>   entries = new HashMap<String,CacheEntry>();
+	private LinkedHashMap<String,CacheEntry> usedEntries = new LinkedHashMap<String,CacheEntry>();
+	private boolean                      modified = false;
+	private int                          reusedCount = 0;
+	private int                          readCount = 0;
+
+	public MergeInputCache (File cacheFile) throws AnalysisException {
+		this.cacheFile = cacheFile;
+		if ((cacheFile != null) && cacheFile.exists()) {
+			load();
+		}
+	}
+
+	public boolean isEnabled () {
+		return cacheFile != null;
+	}
+
+	/*
+	 * True if the file has not changed since the last merge, in which case the caller can reuse its own
+	 * parsed data for the file. Otherwise, the file is recorded in the manifest as it is now.
+	 */
+	public boolean isUnchanged (File inFile) throws AnalysisException {
+		if (!isEnabled()) {
+			return false;
+		}
+		CacheEntry entry = getUnchangedEntry(inFile);
+		if (entry == null) {
+			entry = new CacheEntry(inFile, getChecksum(inFile));
+			useEntry(entry);
+			modified = true;
+			readCount++;
+			return false;
+		}
+		return true;
+	}
+
+	private CacheEntry getUnchangedEntry (File inFile) throws AnalysisException {
+		String path = inFile.getAbsolutePath();
+		CacheEntry entry = entries.get(path);
+		if ((entry == null) || (entry.size != inFile.length())) {
+			return null;
+		}
+		if (entry.lastModified != inFile.lastModified()) {
+			if (entry.checksum != getChecksum(inFile)) {
+				return null;
+			}
+			entry.lastModified = inFile.lastModified();
+			modified = true;
+		}
+		useEntry(entry);
+		reusedCount++;
+		return entry;
+	}
+
+	private void useEntry (CacheEntry entry) {
+		entries.put(entry.path, entry);
+		usedEntries.put(entry.path, entry);
+	}
+
+	private static long getChecksum (File inFile) throws AnalysisException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		try {
+			InputStream in = new FileInputStream(inFile);
+			try {
+				int len;
+				while ((len = in.read(buffer)) > 0) {
+					crc.update(buffer, 0, len);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new AnalysisException("Error reading file " + inFile.getAbsolutePath() + ": "+e);
+		}
+		return crc.getValue();
+	}
+
+	/* ==========================================================
+	 * Cache file I/O
+	 * ==========================================================
+	 */
+	private void load () throws AnalysisException {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(cacheFile)), 64 * 1024));
+			try {
+				if (in.readInt() != CACHE_FORMAT_VERSION) {
+					log.warn("Ignoring merge cache file " + cacheFile.getAbsolutePath() + " with a different format version");
+					return;
+				}
+				int entryCount = in.readInt();
+				for (int eIdx = 0; eIdx < entryCount; eIdx++) {
+					CacheEntry entry = new CacheEntry(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+					entries.put(entry.path, entry);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// The cache is only an optimization: start from scratch
+			log.warn("Ignoring unreadable merge cache file " + cacheFile.getAbsolutePath() + ": "+e);
+			entries.clear();
+		}
+	}
+
+	/*
+	 * Saves the entries used since the cache was loaded, if anything changed. The cache is written to a
+	 * temporary file, then renamed, so that an interrupted merge does not leave a partial cache.
+	 */
+	public void save () throws AnalysisException {
+		if (!isEnabled()) {
+			return;
+		}
+		log.info("Merge inputs: " + reusedCount + " unchanged, " + readCount + " read");
+		if (!modified && (usedEntries.size() == entries.size())) {
+			return;
+		}
+		File tmpFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile)), 64 * 1024));
+			try {
+				out.writeInt(CACHE_FORMAT_VERSION);
+				out.writeInt(usedEntries.size());
+				for (CacheEntry entry : usedEntries.values()) {
+					out.writeUTF(entry.path);
+					out.writeLong(entry.size);
+					out.writeLong(entry.lastModified);
+					out.writeLong(entry.checksum);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new AnalysisException("Error writing merge cache file " + tmpFile.getAbsolutePath() + ": "+e);
+		}
+		if ((cacheFile.exists() && !cacheFile.delete()) || !tmpFile.renameTo(cacheFile)) {
+			throw new AnalysisException("Could not replace merge cache file " + cacheFile.getAbsolutePath());
+		}
+		modified = false;
+	}
+
+	/* ==========================================================
+	 * Data Structures
+	 * ==========================================================
+	 */
+	private static class CacheEntry {
+		String     path;
+		long       size;
+		long       lastModified;
+		long       checksum;
+
+		public CacheEntry (String path, long size, long lastModified, long checksum) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+		}
+
+		public CacheEntry (File inFile, long checksum) {
+			this (inFile.getAbsolutePath(), inFile.length(), inFile.lastModified(), checksum);
+		}
+	}
+}
@@ -12,6 +12,7 @@ public class TableOutput {
 		
 	public static final int COMPRESSION_NONE = 1;
 	public static final int COMPRESSION_GZIP = 2;
+	public static final int COMPRESSION_BGZF = 3;	// Gzip compressed in parallel blocks, with a .gzi block index
 	
 	public static final int LINE_NUMBERS_OFF = 1;
 	public static final int LINE_NUMBERS_ON = 2;
@@ -225,6 +226,9 @@ public class TableOutput {
 		case COMPRESSION_GZIP:
 			ots = new GzippedOutputTextStore(folder, filename);
 			break;
+		case COMPRESSION_BGZF:
+			ots = new BgzfOutputTextStore(folder, filename, BgzfOutputTextStore.getDefaultThreadCount(), true);
+			break;
 		default:
 			throw new AnalysisException("Error creating TableOutput: unknown compression flag: "+compression);
 		}
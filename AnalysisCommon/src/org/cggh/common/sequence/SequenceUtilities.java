@@ -166,16 +166,86 @@ public class SequenceUtilities {
 	}
 	
 
+	/*
+	 * Translates the sequence, codon by codon. Codons that contain a base other than A, C, G or T
+	 * (e.g. N) are translated to UNKNOWN_AMINO, and a trailing incomplete codon is ignored.
+	 */
 	public static String  translateNtSequence(String sequence) {
 		if (sequence == null) {
 			return null;
 		}
-		StringBuffer sb = new StringBuffer(sequence.length() / 3);
-		for (int idx = 0; idx < sequence.length(); idx += 3) {
-			char aa = Translation.getCodon(sequence, idx+1, false).getAmino();
-			sb.append(aa);
+		char[] aminos = new char[sequence.length() / 3];
+		translateNtSequence(sequence, 0, sequence.length(), false, aminos, 0);
+		return new String(aminos);
+	}
+	
+	/* ==========================================================
+	 * Translation kernel
+	 * ==========================================================
+	 */
+	public static final char UNKNOWN_AMINO = 'X';
+	
+	// Aminos indexed by 6-bit codon: (nt1 << 4) | (nt2 << 2) | nt3, with A=0, C=1, G=2, T=3
+	private static final char[] CODON_AMINOS = Translation.AA_TRANS.toCharArray();
+	
+	// 2-bit code of each nucleotide byte (either case), or -1 for any other byte
+	private static final byte[] NT_CODES = new byte[256];
+	static {
+		java.util.Arrays.fill(NT_CODES, (byte)-1);
+		for (int i = 0; i < Translation.NT.length(); i++) {
+			char nt = Translation.NT.charAt(i);
+			NT_CODES[nt] = NT_CODES[Character.toLowerCase(nt)] = (byte)i;
 		}
-		return sb.toString();
+	}
+	
+	/*
+	 * Translates len nucleotides of a sequence, starting at startIdx, writing the aminos into the array
+	 * given, starting at aminoIdx. If reverseComplement is true, the reverse complement of the nucleotides
+	 * is translated, in the same pass. Codons that contain a base other than A, C, G or T are translated
+	 * to UNKNOWN_AMINO, and a trailing incomplete codon is ignored.
+	 * Returns the number of aminos written.
+	 */
+	public static int translateNtSequence(byte[] nts, int startIdx, int len, boolean reverseComplement, char[] aminos, int aminoIdx) {
+		int codonCount = len / 3;
+		int step = reverseComplement ? -1 : 1;
+		int ntIdx = reverseComplement ? (startIdx + len - 1) : startIdx;
+		int complementMask = reverseComplement ? 0x3F : 0;
+		for (int i = 0; i < codonCount; i++, ntIdx += 3 * step) {
+			int c1 = NT_CODES[nts[ntIdx] & 0xFF];
+			int c2 = NT_CODES[nts[ntIdx + step] & 0xFF];
+			int c3 = NT_CODES[nts[ntIdx + 2 * step] & 0xFF];
+			aminos[aminoIdx + i] = getCodonAmino(c1, c2, c3, complementMask);
+		}
+		return codonCount;
+	}
+	
+	public static int translateNtSequence(CharSequence nts, int startIdx, int len, boolean reverseComplement, char[] aminos, int aminoIdx) {
+		int codonCount = len / 3;
+		int step = reverseComplement ? -1 : 1;
+		int ntIdx = reverseComplement ? (startIdx + len - 1) : startIdx;
+		int complementMask = reverseComplement ? 0x3F : 0;
+		for (int i = 0; i < codonCount; i++, ntIdx += 3 * step) {
+			int c1 = getNtCode(nts.charAt(ntIdx));
+			int c2 = getNtCode(nts.charAt(ntIdx + step));
+			int c3 = getNtCode(nts.charAt(ntIdx + 2 * step));
+			aminos[aminoIdx + i] = getCodonAmino(c1, c2, c3, complementMask);
+		}
+		return codonCount;
+	}
+	
+	private static int getNtCode (char nt) {
+		return (nt < NT_CODES.length) ? NT_CODES[nt] : -1;
+	}
+	
+	/*
+	 * The complement of a 2-bit nucleotide code c is 3 - c (i.e. c ^ 3), so a codon is complemented by
+	 * XORing its 6-bit index with 0x3F.
+	 */
+	private static char getCodonAmino (int c1, int c2, int c3, int complementMask) {
+		if ((c1 | c2 | c3) < 0) {
+			return UNKNOWN_AMINO;
+		}
+		return CODON_AMINOS[((c1 << 4) | (c2 << 2) | c3) ^ complementMask];
 	}
 
 }
@@ -0,0 +1,276 @@
+package org.cggh.common.sequence.io;
+
+import org.cggh.common.exceptions.AnalysisException;
+import org.cggh.common.sequence.Sequence;
+import org.apache.commons.logging.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+/*
+ * Random access to the sequences of a FASTA file through its .fai index (the samtools faidx format),
+ * with the sequence data memory-mapped, so that regions can be retrieved without loading whole
+ * sequences in memory. Retrieved sequence data is converted to uppercase.
+ *
+ * If there is no index next to the FASTA file, or it is older than the FASTA file, the index is
+ * built by scanning the file, and written next to it if possible. Files whose sequences are not
+ * split in lines of the same length cannot be indexed.
+ *
+ * Instances are thread-safe.
+ */
+public class IndexedFastaFile implements SequenceRegionReader {
+
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	private File                           fastaFile;
+	private FileChannel                    channel;
+	private LinkedHashMap<String,IndexEntry> entries = new LinkedHashMap<String,IndexEntry>();
+
+	public IndexedFastaFile (File fastaFile) throws AnalysisException {
+		this.fastaFile = fastaFile;
+		File indexFile = getIndexFile(fastaFile);
+		if (indexFile.exists() && (indexFile.lastModified() >= fastaFile.lastModified())) {
+			readIndex(indexFile);
+		} else {
+			buildIndex();
+			writeIndex(indexFile);
+		}
+		try {
+			channel = new RandomAccessFile(fastaFile, "r").getChannel();
+		} catch (IOException e) {
+			throw new AnalysisException("Error opening FASTA file "+fastaFile.getAbsolutePath()+": "+e);
+		}
+	}
+
+	public static File getIndexFile (File fastaFile) {
+		return new File(fastaFile.getParentFile(), fastaFile.getName()+".fai");
+	}
+
+	public String[] getSequenceNames () {
+		return entries.keySet().toArray(new String[entries.size()]);
+	}
+
+	public boolean hasSequence (String seqName) {
+		return entries.containsKey(seqName);
+	}
+
+	public int getSequenceLength (String seqName) throws AnalysisException {
+		return getEntry(seqName).length;
+	}
+
+	public Sequence getSequence (String seqName) throws AnalysisException {
+		IndexEntry entry = getEntry(seqName);
+		return new Sequence(seqName, getRegion(entry, 1, entry.length));
+	}
+
+	/*
+	 * Returns the sequence between two positions (1-based, inclusive)
+	 */
+	public String getRegion (String seqName, int startPos, int endPos) throws AnalysisException {
+		return getRegion(getEntry(seqName), startPos, endPos);
+	}
+
+	private String getRegion (IndexEntry entry, int startPos, int endPos) throws AnalysisException {
+		if ((startPos < 1) || (endPos > entry.length) || (endPos < startPos - 1)) {
+			throw new AnalysisException("Region "+entry.name+":"+startPos+"-"+endPos+" is outside the sequence in FASTA file "+fastaFile.getAbsolutePath());
+		}
+		byte[] bases = new byte[endPos - startPos + 1];
+		ByteBuffer data = getMappedData(entry).duplicate();
+		int baseIdx = startPos - 1;
+		int outIdx = 0;
+		while (outIdx < bases.length) {
+			int lineIdx = baseIdx / entry.lineBases;
+			int lineOffset = baseIdx % entry.lineBases;
+			int len = Math.min(entry.lineBases - lineOffset, bases.length - outIdx);
+			data.position((int)(((long)lineIdx * entry.lineWidth) + lineOffset));
+			data.get(bases, outIdx, len);
+			outIdx += len;
+			baseIdx += len;
+		}
+		for (int i = 0; i < bases.length; i++) {
+			byte b = bases[i];
+			if ((b >= 'a') && (b <= 'z')) {
+				bases[i] = (byte)(b - ('a' - 'A'));
+			}
+		}
+		return new String(bases, StandardCharsets.US_ASCII);
+	}
+
+	private IndexEntry getEntry (String seqName) throws AnalysisException {
+		IndexEntry entry = entries.get(seqName);
+		if (entry == null) {
+			throw new AnalysisException("Sequence "+seqName+" not found in FASTA file "+fastaFile.getAbsolutePath());
+		}
+		return entry;
+	}
+
+	private synchronized ByteBuffer getMappedData (IndexEntry entry) throws AnalysisException {
+		if (entry.data == null) {
+			long byteLength = 0;
+			if (entry.length > 0) {
+				long lastBaseIdx = entry.length - 1;
+				byteLength = ((lastBaseIdx / entry.lineBases) * entry.lineWidth) + (lastBaseIdx % entry.lineBases) + 1;
+			}
+			if (byteLength > Integer.MAX_VALUE) {
+				throw new AnalysisException("Sequence "+entry.name+" is too large to be mapped from FASTA file "+fastaFile.getAbsolutePath());
+			}
+			try {
+				entry.data = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, byteLength);
+			} catch (IOException e) {
+				throw new AnalysisException("Error mapping FASTA file "+fastaFile.getAbsolutePath()+": "+e);
+			}
+		}
+		return entry.data;
+	}
+
+	public void close () throws AnalysisException {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new AnalysisException("Error closing FASTA file "+fastaFile.getAbsolutePath()+": "+e);
+		}
+	}
+
+	/* ==========================================================
+	 * Index I/O
+	 * ==========================================================
+	 */
+	private void readIndex (File indexFile) throws AnalysisException {
+		try {
+			BufferedReader r = new BufferedReader(new FileReader(indexFile));
+			try {
+				String line;
+				while ((line = r.readLine()) != null) {
+					if (line.trim().isEmpty()) {
+						continue;
+					}
+					String[] fields = line.split("\t");
+					IndexEntry entry = new IndexEntry(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+					                                  Integer.parseInt(fields[3]), Integer.parseInt(fields[4]));
+					entries.put(entry.name, entry);
+				}
+			} finally {
+				r.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			throw new AnalysisException("Error reading FASTA index file "+indexFile.getAbsolutePath()+": "+e);
+		}
+	}
+
+	private void writeIndex (File indexFile) {
+		try {
+			PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(indexFile)));
+			for (IndexEntry entry : entries.values()) {
+				w.print(entry.name+'\t'+entry.length+'\t'+entry.offset+'\t'+entry.lineBases+'\t'+entry.lineWidth+'\n');
+			}
+			w.close();
+			if (w.checkError()) {
+				throw new IOException("write failed");
+			}
+		} catch (IOException e) {
+			// The index is only kept to speed up the next runs
+			log.warn("Could not write FASTA index file "+indexFile.getAbsolutePath()+": "+e);
+			indexFile.delete();
+		}
+	}
+
+	/*
+	 * Scans the FASTA file to find the offset and line layout of each sequence, as samtools faidx does
+	 */
+	private void buildIndex () throws AnalysisException {
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(fastaFile), 256 * 1024);
+			try {
+				IndexEntry entry = null;
+				StringBuilder header = null;
+				long filePos = 0;
+				int lineBases = 0;
+				int lineWidth = 0;
+				boolean shortLineSeen = false;
+				int c;
+				while (true) {
+					c = in.read();
+					filePos++;
+					if (header != null) {
+						// Reading a header line
+						if (c == '\n' || c == -1) {
+							String name = header.toString().trim().split("\\s+")[0];
+							entry = new IndexEntry(name, 0, filePos, 0, 0);
+							if (entries.put(name, entry) != null) {
+								throw new AnalysisException("Duplicate sequence "+name+" in FASTA file "+fastaFile.getAbsolutePath());
+							}
+							header = null;
+							shortLineSeen = false;
+						} else if (c != '\r') {
+							header.append((char)c);
+						}
+					} else if ((c == '\n') || (c == -1)) {
+						// End of a sequence line
+						if (lineBases > 0) {
+							if (entry == null) {
+								throw new AnalysisException("Sequence data found before the first header in FASTA file "+fastaFile.getAbsolutePath());
+							}
+							if (c == '\n') {
+								lineWidth++;
+							}
+							if (entry.lineBases == 0) {
+								entry.lineBases = lineBases;
+								entry.lineWidth = lineWidth;
+							} else if (shortLineSeen || (lineBases > entry.lineBases)) {
+								throw new AnalysisException("Sequence "+entry.name+" in FASTA file "+fastaFile.getAbsolutePath()+" has lines of different lengths, and cannot be indexed");
+							} else if ((lineBases < entry.lineBases) || (lineWidth != entry.lineWidth)) {
+								shortLineSeen = true;
+							}
+							entry.length += lineBases;
+						} else if ((entry != null) && (entry.lineBases > 0)) {
+							shortLineSeen = true;
+						}
+						lineBases = 0;
+						lineWidth = 0;
+						if (c == -1) {
+							break;
+						}
+					} else if ((c == '>') && (lineWidth == 0)) {
+						header = new StringBuilder();
+					} else if (c == '\r') {
+						lineWidth++;
+					} else if (c <= ' ') {
+						throw new AnalysisException("Sequence "+((entry != null) ? entry.name : "")+" in FASTA file "+fastaFile.getAbsolutePath()+" has whitespace within lines, and cannot be indexed");
+					} else {
+						lineWidth++;
+						lineBases++;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new AnalysisException("Error indexing FASTA file "+fastaFile.getAbsolutePath()+": "+e);
+		}
+	}
+
+	/* ==========================================================
+	 * Data Structures
+	 * ==========================================================
+	 */
+	private static class IndexEntry {
+		String     name;
+		int        length;
+		long       offset;     // File offset of the first base
+		int        lineBases;  // Bases per line
+		int        lineWidth;  // Bytes per line, including the line terminator
+		ByteBuffer data;       // Mapped on first use
+
+		public IndexEntry (String name, int length, long offset, int lineBases, int lineWidth) {
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+		}
+	}
+}
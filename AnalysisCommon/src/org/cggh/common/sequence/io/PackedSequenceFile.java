@@ -0,0 +1,297 @@
+package org.cggh.common.sequence.io;
+
+import org.cggh.common.exceptions.AnalysisException;
+import org.cggh.common.sequence.Sequence;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+/*
+ * A binary file of sequences (typically, the chromosomes of a reference genome) packed at 2 bits per
+ * nucleotide, which is memory-mapped when opened, so regions can be retrieved without parsing or loading
+ * the sequences. Sequences are stored in uppercase; characters other than A, C, G, T (e.g. N) are stored
+ * as runs of the same character, and restored when a region is retrieved. The file layout is:
+ *
+ *   magic (8 bytes), data start offset (long), source file size and modification time (longs),
+ *   sequence count (int), then for each sequence: name, length (int), data offset from the data
+ *   start (long), count of non-ACGT runs (int), and the runs (start index and length as ints, and the
+ *   character as a byte); then the packed data, 4 nucleotides per byte, first nucleotide in the top bits.
+ *
+ * All numbers are big-endian. Instances are thread-safe.
+ */
+public class PackedSequenceFile implements SequenceRegionReader {
+
+	public static final byte[] MAGIC = { 'G', 'R', 'C', 'S', 'E', 'Q', '0', '1' };
+
+	private static final char[] NT_CODES = { 'A', 'C', 'G', 'T' };
+
+	private File                             file;
+	private FileChannel                      channel;
+	private long                             sourceSize;
+	private long                             sourceModified;
+	private LinkedHashMap<String,PackedEntry> entries = new LinkedHashMap<String,PackedEntry>();
+
+	public PackedSequenceFile (File file) throws AnalysisException {
+		this.file = file;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			byte[] magic = new byte[MAGIC.length];
+			raf.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				raf.close();
+				throw new AnalysisException("File "+file.getAbsolutePath()+" is not a packed sequence file");
+			}
+			long dataStart = raf.readLong();
+			if ((dataStart < raf.getFilePointer()) || (dataStart > raf.length())) {
+				throw new IOException("invalid data start offset "+dataStart);
+			}
+			byte[] header = new byte[(int)(dataStart - raf.getFilePointer())];
+			raf.readFully(header);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+			sourceSize = in.readLong();
+			sourceModified = in.readLong();
+			int seqCount = in.readInt();
+			long dataEnd = dataStart;
+			for (int sIdx = 0; sIdx < seqCount; sIdx++) {
+				PackedEntry entry = new PackedEntry(in.readUTF(), in.readInt());
+				entry.offset = dataStart + in.readLong();
+				int runCount = in.readInt();
+				if ((entry.length < 0) || (entry.offset < dataStart) || (runCount < 0)) {
+					throw new IOException("invalid header for sequence "+entry.name);
+				}
+				dataEnd = Math.max(dataEnd, entry.offset + getPackedLength(entry.length));
+				entry.runStarts = new int[runCount];
+				entry.runLengths = new int[runCount];
+				entry.runChars = new byte[runCount];
+				for (int rIdx = 0; rIdx < runCount; rIdx++) {
+					entry.runStarts[rIdx] = in.readInt();
+					entry.runLengths[rIdx] = in.readInt();
+					entry.runChars[rIdx] = in.readByte();
+				}
+				entries.put(entry.name, entry);
+			}
+			if (dataEnd > raf.length()) {
+				throw new IOException("file is truncated");
+			}
+			channel = raf.getChannel();
+		} catch (IOException e) {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ce) {}
+			}
+			throw new AnalysisException("Error reading packed sequence file "+file.getAbsolutePath()+": "+e);
+		}
+	}
+
+	/*
+	 * True if the file was packed from the given source file, in its current state
+	 */
+	public boolean isPackedFrom (File sourceFile) {
+		return (sourceFile.length() == sourceSize) && (sourceFile.lastModified() == sourceModified);
+	}
+
+	public String[] getSequenceNames () {
+		return entries.keySet().toArray(new String[entries.size()]);
+	}
+
+	public boolean hasSequence (String seqName) {
+		return entries.containsKey(seqName);
+	}
+
+	public int getSequenceLength (String seqName) throws AnalysisException {
+		return getEntry(seqName).length;
+	}
+
+	public Sequence getSequence (String seqName) throws AnalysisException {
+		PackedEntry entry = getEntry(seqName);
+		return new Sequence(seqName, getRegion(entry, 1, entry.length));
+	}
+
+	public String getRegion (String seqName, int startPos, int endPos) throws AnalysisException {
+		return getRegion(getEntry(seqName), startPos, endPos);
+	}
+
+	private String getRegion (PackedEntry entry, int startPos, int endPos) throws AnalysisException {
+		if ((startPos < 1) || (endPos > entry.length) || (endPos < startPos - 1)) {
+			throw new AnalysisException("Region "+entry.name+":"+startPos+"-"+endPos+" is outside the sequence in packed sequence file "+file.getAbsolutePath());
+		}
+		int startIdx = startPos - 1;
+		int endIdx = endPos;
+		byte[] nts = new byte[endIdx - startIdx];
+		ByteBuffer data = getMappedData(entry);
+		for (int i = startIdx; i < endIdx; i++) {
+			int packed = data.get(i >> 2);
+			nts[i - startIdx] = (byte)NT_CODES[(packed >> (6 - ((i & 3) << 1))) & 3];
+		}
+
+		// Restore the non-ACGT runs that overlap the region
+		int rIdx = Arrays.binarySearch(entry.runStarts, startIdx);
+		if (rIdx < 0) {
+			rIdx = Math.max(0, -rIdx - 2);
+		}
+		for (; (rIdx < entry.runStarts.length) && (entry.runStarts[rIdx] < endIdx); rIdx++) {
+			int from = Math.max(startIdx, entry.runStarts[rIdx]);
+			int to = Math.min(endIdx, entry.runStarts[rIdx] + entry.runLengths[rIdx]);
+			for (int i = from; i < to; i++) {
+				nts[i - startIdx] = entry.runChars[rIdx];
+			}
+		}
+		return new String(nts, StandardCharsets.US_ASCII);
+	}
+
+	private PackedEntry getEntry (String seqName) throws AnalysisException {
+		PackedEntry entry = entries.get(seqName);
+		if (entry == null) {
+			throw new AnalysisException("Sequence "+seqName+" not found in packed sequence file "+file.getAbsolutePath());
+		}
+		return entry;
+	}
+
+	private synchronized ByteBuffer getMappedData (PackedEntry entry) throws AnalysisException {
+		if (entry.data == null) {
+			try {
+				entry.data = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, getPackedLength(entry.length));
+			} catch (IOException e) {
+				throw new AnalysisException("Error mapping packed sequence file "+file.getAbsolutePath()+": "+e);
+			}
+		}
+		return entry.data;
+	}
+
+	private static long getPackedLength (int seqLength) {
+		return (seqLength + 3L) / 4;
+	}
+
+	public void close () throws AnalysisException {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new AnalysisException("Error closing packed sequence file "+file.getAbsolutePath()+": "+e);
+		}
+	}
+
+	/* ==========================================================
+	 * Packing
+	 * ==========================================================
+	 */
+	/*
+	 * Writes a packed sequence file with the given sequences, recording the file they were read from
+	 * so that readers can check the packed file is up to date. The file is written to a temporary file,
+	 * then renamed.
+	 */
+	public static void write (File outFile, Sequence[] sequences, File sourceFile) throws AnalysisException {
+		File tmpFile = new File(outFile.getParentFile(), outFile.getName()+".tmp");
+		try {
+			// Header
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(headerBytes);
+			header.writeLong(sourceFile.length());
+			header.writeLong(sourceFile.lastModified());
+			header.writeInt(sequences.length);
+			long dataOffset = 0;
+			for (int sIdx = 0; sIdx < sequences.length; sIdx++) {
+				String data = sequences[sIdx].getData();
+				header.writeUTF(sequences[sIdx].getId());
+				header.writeInt(data.length());
+				header.writeLong(dataOffset);
+				writeRuns(header, data);
+				dataOffset += getPackedLength(data.length());
+			}
+			header.close();
+
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile), 256 * 1024);
+			try {
+				DataOutputStream dataOut = new DataOutputStream(out);
+				dataOut.write(MAGIC);
+				dataOut.writeLong(MAGIC.length + 8 + headerBytes.size());
+				headerBytes.writeTo(dataOut);
+
+				// Packed nucleotides
+				for (int sIdx = 0; sIdx < sequences.length; sIdx++) {
+					String data = sequences[sIdx].getData();
+					int packed = 0;
+					for (int i = 0; i < data.length(); i++) {
+						packed = (packed << 2) | Math.max(0, getNtCode(data.charAt(i)));  // Runs are restored on reading
+						if ((i & 3) == 3) {
+							dataOut.write(packed);
+							packed = 0;
+						}
+					}
+					int rem = data.length() & 3;
+					if (rem != 0) {
+						dataOut.write(packed << ((4 - rem) << 1));
+					}
+				}
+				dataOut.flush();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new AnalysisException("Error writing packed sequence file "+tmpFile.getAbsolutePath()+": "+e);
+		}
+		if ((outFile.exists() && !outFile.delete()) || !tmpFile.renameTo(outFile)) {
+			throw new AnalysisException("Could not replace packed sequence file "+outFile.getAbsolutePath());
+		}
+	}
+
+	private static void writeRuns (DataOutputStream out, String data) throws IOException {
+		ArrayList<int[]> runs = new ArrayList<int[]>();
+		int i = 0;
+		while (i < data.length()) {
+			char c = data.charAt(i);
+			if (getNtCode(c) >= 0) {
+				i++;
+				continue;
+			}
+			int runStart = i;
+			while ((i < data.length()) && (data.charAt(i) == c)) {
+				i++;
+			}
+			if (c > 0x7F) {
+				throw new IOException("Invalid character '"+c+"' in sequence at position "+(runStart+1));
+			}
+			runs.add(new int[] { runStart, i - runStart, c });
+		}
+		out.writeInt(runs.size());
+		for (int[] run : runs) {
+			out.writeInt(run[0]);
+			out.writeInt(run[1]);
+			out.writeByte(run[2]);
+		}
+	}
+
+	private static int getNtCode (char nt) {
+		switch (nt) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		}
+		return -1;
+	}
+
+	/* ==========================================================
+	 * Data Structures
+	 * ==========================================================
+	 */
+	private static class PackedEntry {
+		String     name;
+		int        length;
+		long       offset;      // File offset of the packed data
+		int[]      runStarts;   // Runs of non-ACGT characters, sorted by start index (0-based)
+		int[]      runLengths;
+		byte[]     runChars;
+		ByteBuffer data;        // Mapped on first use
+
+		public PackedEntry (String name, int length) {
+			this.name = name;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package org.cggh.common.sequence.io;
+
+import org.cggh.common.exceptions.AnalysisException;
+import org.cggh.common.sequence.Sequence;
+
+/*
+ * Random access to the regions of a set of named sequences (e.g. the chromosomes of a reference genome).
+ * Implementations must be thread-safe.
+ */
+public interface SequenceRegionReader {
+
+	public boolean hasSequence (String seqName);
+
+	public int getSequenceLength (String seqName) throws AnalysisException;
+
+	public Sequence getSequence (String seqName) throws AnalysisException;
+
+	/*
+	 * Returns the sequence between two positions (1-based, inclusive), in uppercase
+	 */
+	public String getRegion (String seqName, int startPos, int endPos) throws AnalysisException;
+
+	public void close () throws AnalysisException;
+}
@@ -0,0 +1,256 @@
+package org.cggh.common.textStore;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+
+/*
+ * Writes BGZF (blocked gzip, as used by bgzip and BAM files): the data is split in blocks of up to 64KB,
+ * each compressed as a separate gzip member, so the output is a valid gzip file that can be read by
+ * GZIPInputStream (and by InputTextStore). Blocks are compressed on a pool of worker threads, and written
+ * in order as they complete.
+ *
+ * Optionally, a bgzip-compatible .gzi index is written next to the output file on close, with the
+ * compressed and uncompressed offsets of each block, so that readers can seek to a block.
+ */
+public class BgzfOutputStream extends OutputStream {
+
+	public static final String INDEX_EXTENSION = ".gzi";
+
+	// Leaves room for the block header and footer, and for the expansion of uncompressible data
+	public static final int BLOCK_DATA_SIZE = 65280;
+	private static final int MAX_BLOCK_SIZE = 65536;
+	private static final int BLOCK_HEADER_SIZE = 18;
+	private static final int BLOCK_FOOTER_SIZE = 8;
+
+	private static final byte[] EOF_BLOCK = {
+		0x1f, (byte)0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte)0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+		0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+	};
+
+	private File                    file;
+	private OutputStream            out;
+	private int                     compressionLevel;
+	private ExecutorService         executor;
+	private int                     maxPendingBlocks;
+	private LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+
+	private byte[]                  blockData = new byte[BLOCK_DATA_SIZE];
+	private int                     blockLen = 0;
+
+	private boolean                 writeIndex;
+	private long                    compressedOffset = 0;
+	private long                    uncompressedOffset = 0;
+	private ArrayList<long[]>       indexEntries = new ArrayList<long[]>();
+	private boolean                 closed = false;
+
+	public BgzfOutputStream (File file, int threadCount, boolean writeIndex) throws IOException {
+		this (file, threadCount, writeIndex, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public BgzfOutputStream (final File file, int threadCount, boolean writeIndex, int compressionLevel) throws IOException {
+		this.file = file;
+		this.out = new BufferedOutputStream(new FileOutputStream(file), 256 * 1024);
+		this.writeIndex = writeIndex;
+		this.compressionLevel = compressionLevel;
+		if (threadCount > 1) {
+			this.executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bgzf-"+file.getName());
+					t.setDaemon(true);  // Do not keep the JVM alive if the stream is never closed
+					return t;
+				}
+			});
+			this.maxPendingBlocks = 2 * threadCount;
+		}
+	}
+
+	@Override
+	public void write (int b) throws IOException {
+		blockData[blockLen++] = (byte)b;
+		if (blockLen == BLOCK_DATA_SIZE) {
+			endBlock();
+		}
+	}
+
+	@Override
+	public void write (byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int copyLen = Math.min(len, BLOCK_DATA_SIZE - blockLen);
+			System.arraycopy(b, off, blockData, blockLen, copyLen);
+			blockLen += copyLen;
+			off += copyLen;
+			len -= copyLen;
+			if (blockLen == BLOCK_DATA_SIZE) {
+				endBlock();
+			}
+		}
+	}
+
+	/*
+	 * Writes out the blocks compressed so far. The current partial block is kept, so that flushing
+	 * does not produce small blocks.
+	 */
+	@Override
+	public void flush () throws IOException {
+		while (!pendingBlocks.isEmpty()) {
+			writeNextPendingBlock();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close () throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (blockLen > 0) {
+				endBlock();
+			}
+			flush();
+			out.write(EOF_BLOCK);
+			out.close();
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+		if (writeIndex) {
+			writeIndexFile();
+		}
+	}
+
+	private void endBlock () throws IOException {
+		final byte[] data = Arrays.copyOf(blockData, blockLen);
+		blockLen = 0;
+		if (executor == null) {
+			writeBlock(compressBlock(data, compressionLevel), data.length);
+			return;
+		}
+		pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return compressBlock(data, compressionLevel);
+			}
+		}));
+		if (pendingBlocks.size() >= maxPendingBlocks) {
+			writeNextPendingBlock();
+		}
+	}
+
+	private void writeNextPendingBlock () throws IOException {
+		Future<byte[]> future = pendingBlocks.removeFirst();
+		byte[] block;
+		try {
+			block = future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while compressing "+file.getAbsolutePath());
+		} catch (ExecutionException e) {
+			throw new IOException("Error compressing "+file.getAbsolutePath()+": "+e.getCause());
+		}
+		writeBlock(block, getUncompressedSize(block));
+	}
+
+	private void writeBlock (byte[] block, int uncompressedSize) throws IOException {
+		if (compressedOffset > 0) {
+			indexEntries.add(new long[] { compressedOffset, uncompressedOffset });
+		}
+		out.write(block);
+		compressedOffset += block.length;
+		uncompressedOffset += uncompressedSize;
+	}
+
+	/* ==========================================================
+	 * Block compression
+	 * ==========================================================
+	 */
+	private static byte[] compressBlock (byte[] data, int compressionLevel) {
+		byte[] block = new byte[MAX_BLOCK_SIZE];
+		int compressedLen = deflate(data, compressionLevel, block, MAX_BLOCK_SIZE - BLOCK_HEADER_SIZE - BLOCK_FOOTER_SIZE);
+		if (compressedLen < 0) {
+			// Not compressible: store the data uncompressed
+			compressedLen = deflate(data, Deflater.NO_COMPRESSION, block, MAX_BLOCK_SIZE - BLOCK_HEADER_SIZE - BLOCK_FOOTER_SIZE);
+		}
+		int blockSize = BLOCK_HEADER_SIZE + compressedLen + BLOCK_FOOTER_SIZE;
+
+		// Header, with the BC extra field holding the block size - 1
+		block[0] = 0x1f;
+		block[1] = (byte)0x8b;
+		block[2] = 0x08;
+		block[3] = 0x04;
+		block[9] = (byte)0xff;
+		block[10] = 0x06;
+		block[12] = 'B';
+		block[13] = 'C';
+		block[14] = 0x02;
+		putShortLE(block, 16, blockSize - 1);
+
+		// Footer
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		putIntLE(block, BLOCK_HEADER_SIZE + compressedLen, (int)crc.getValue());
+		putIntLE(block, BLOCK_HEADER_SIZE + compressedLen + 4, data.length);
+		return Arrays.copyOf(block, blockSize);
+	}
+
+	/*
+	 * Deflates the data into the block after the header; returns the compressed length, or -1 if it does not fit
+	 */
+	private static int deflate (byte[] data, int compressionLevel, byte[] block, int maxLen) {
+		Deflater deflater = new Deflater(compressionLevel, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			int len = deflater.deflate(block, BLOCK_HEADER_SIZE, maxLen);
+			return deflater.finished() ? len : -1;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static int getUncompressedSize (byte[] block) {
+		int idx = block.length - 4;
+		return (block[idx] & 0xff) | ((block[idx+1] & 0xff) << 8) | ((block[idx+2] & 0xff) << 16) | ((block[idx+3] & 0xff) << 24);
+	}
+
+	private static void putShortLE (byte[] b, int idx, int value) {
+		b[idx] = (byte)value;
+		b[idx+1] = (byte)(value >> 8);
+	}
+
+	private static void putIntLE (byte[] b, int idx, int value) {
+		putShortLE(b, idx, value);
+		putShortLE(b, idx+2, value >> 16);
+	}
+
+	/* ==========================================================
+	 * Index
+	 * ==========================================================
+	 */
+	public static File getIndexFile (File bgzfFile) {
+		return new File(bgzfFile.getParentFile(), bgzfFile.getName()+INDEX_EXTENSION);
+	}
+
+	private void writeIndexFile () throws IOException {
+		OutputStream indexOut = new BufferedOutputStream(new FileOutputStream(getIndexFile(file)));
+		try {
+			byte[] b = new byte[8];
+			putLongLE(indexOut, b, indexEntries.size());
+			for (long[] entry : indexEntries) {
+				putLongLE(indexOut, b, entry[0]);
+				putLongLE(indexOut, b, entry[1]);
+			}
+		} finally {
+			indexOut.close();
+		}
+	}
+
+	private static void putLongLE (OutputStream out, byte[] b, long value) throws IOException {
+		putIntLE(b, 0, (int)value);
+		putIntLE(b, 4, (int)(value >>> 32));
+		out.write(b);
+	}
+}
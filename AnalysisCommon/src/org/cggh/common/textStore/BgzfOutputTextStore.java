@@ -0,0 +1,57 @@
+package org.cggh.common.textStore;
+
+import java.io.*;
+
+/*
+ * Gzipped output written as BGZF blocks compressed in parallel (see BgzfOutputStream), readable as
+ * ordinary gzip. The number of compression threads defaults to the -DcompressionThreads property,
+ * or to the number of processors.
+ */
+public class BgzfOutputTextStore extends OutputTextStore {
+	
+	public static int getDefaultThreadCount () {
+		int threadCount = Integer.parseInt(System.getProperty("compressionThreads","0"));
+		return (threadCount > 0) ? threadCount : Runtime.getRuntime().availableProcessors();
+	}
+
+	private File    f = null;
+	private int     threadCount;
+	private boolean writeIndex;
+	private Writer  writer = null;
+	
+	public BgzfOutputTextStore (File folder, String baseFilename) {
+		this (folder, baseFilename, getDefaultThreadCount(), false);
+	}
+	
+	public BgzfOutputTextStore (File folder, String baseFilename, int threadCount, boolean writeIndex) {
+		super (folder, baseFilename);
+		String filename = baseFilename + GZIP_EXTENSION;
+		f = new File (folder, filename);
+		this.threadCount = threadCount;
+		this.writeIndex = writeIndex;
+	}
+	
+	@Override
+	public File getFile () {
+		return f;
+	}
+
+	@Override
+	public Writer getWriter(boolean append) throws IOException {
+		if (writer == null) {
+			if (append == true) {
+				throw new UnsupportedOperationException("SANITY CHECK - BgzfOutputTextStore cannot be used for append operations unless a writer is already created. Make code corrections.");
+			}
+			writer = new OutputStreamWriter(new BgzfOutputStream(f, threadCount, writeIndex));
+		}
+		return writer;
+	}
+	
+	@Override
+	public void closeWriter() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package org.cggh.common.threading;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import org.cggh.common.threading.WorkStealingExecutableManager.TaskFailure;
+import org.apache.commons.logging.*;
+
+/*
+ * Runs tasks that spend most of their time blocked on I/O, each on its own thread, with at most
+ * maxConcurrentTasks running at any time. execute() blocks while the limit is reached.
+ *
+ * Tasks run on virtual threads when the JVM supports them (Java 21 and later), so that a large
+ * number of concurrent reads costs no more than the memory they use; on older JVMs, a platform
+ * thread is started for each task instead.
+ *
+ * Exceptions and errors thrown by a task do not stop the other tasks: they are logged, and made
+ * available through getTaskFailures().
+ */
+public class IoTaskExecutor {
+
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	public static final int DEFAULT_MAX_CONCURRENT_TASKS = 32;
+
+	private static ThreadFactory ioThreadFactory = createIoThreadFactory();
+
+	private int       maxConcurrentTasks;
+	private Semaphore taskSlots;
+	private ConcurrentLinkedQueue<TaskFailure> taskFailures = new ConcurrentLinkedQueue<TaskFailure>();
+
+	public IoTaskExecutor () {
+		this(DEFAULT_MAX_CONCURRENT_TASKS);
+	}
+
+	public IoTaskExecutor (int maxConcurrentTasks) {
+		this.maxConcurrentTasks = Math.max(1, maxConcurrentTasks);
+		this.taskSlots = new Semaphore(this.maxConcurrentTasks);
+	}
+
+	public int getMaxConcurrentTasks () {
+		return maxConcurrentTasks;
+	}
+
+	public static boolean isUsingVirtualThreads () {
+		return !(ioThreadFactory instanceof PlatformThreadFactory);
+	}
+
+	public void execute (final Runnable task) {
+		taskSlots.acquireUninterruptibly();
+		Runnable slotTask = new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					log.error("I/O task "+task+" failed: "+t);
+					taskFailures.add(new TaskFailure(task, t));
+				} finally {
+					taskSlots.release();
+				}
+			}
+		};
+		try {
+			ioThreadFactory.newThread(slotTask).start();
+		} catch (RuntimeException e) {
+			taskSlots.release();
+			throw e;
+		}
+	}
+
+	/*
+	 * Wait until all the tasks submitted so far have completed
+	 */
+	public void waitForCompletion () {
+		taskSlots.acquireUninterruptibly(maxConcurrentTasks);
+		taskSlots.release(maxConcurrentTasks);
+		if (!taskFailures.isEmpty()) {
+			log.error(taskFailures.size()+" I/O tasks failed");
+		}
+	}
+
+	public TaskFailure[] getTaskFailures () {
+		return taskFailures.toArray(new TaskFailure[0]);
+	}
+
+	/*
+	 * Use Thread.ofVirtual().factory() through reflection, since the code must still build and run on Java 8
+	 */
+	private static ThreadFactory createIoThreadFactory () {
+		try {
+			Method ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtualMethod.invoke(null);
+			Method factoryMethod = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			ThreadFactory factory = (ThreadFactory) factoryMethod.invoke(builder);
+			log.info("Using virtual threads for I/O tasks");
+			return factory;
+		} catch (Exception e) {
+			log.info("Virtual threads not available in this JVM: using platform threads for I/O tasks");
+			return new PlatformThreadFactory();
+		}
+	}
+
+	private static class PlatformThreadFactory implements ThreadFactory {
+		private int threadCount = 0;
+
+		public synchronized Thread newThread (Runnable r) {
+			Thread t = new Thread(r, "io-task-"+(++threadCount));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
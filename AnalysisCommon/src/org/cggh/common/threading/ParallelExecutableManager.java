@@ -24,8 +24,10 @@ public class ParallelExecutableManager {
 		this.isComplete = false;
 	}
 	
-	public void setComplete () {
+	public synchronized void setComplete () {
 		this.isComplete = true;
+		// Wake up the threads waiting for tasks, so they can terminate
+		notifyAll();
 	}
 	
 	public int getThreadCount () {
@@ -0,0 +1,238 @@
+package org.cggh.common.threading;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.apache.commons.logging.*;
+
+/*
+ * Drop-in replacement for ParallelExecutableManager, that runs the tasks on a work-stealing
+ * ForkJoinPool instead of pulling them one by one from a single synchronized queue.
+ *
+ * As in ParallelExecutableManager, addTask() blocks while there are maxTasksInQueue tasks waiting
+ * to be started. Tasks added before startExecution() are held until execution starts.
+ * Exceptions thrown by a task do not stop the other tasks: they are logged and made available
+ * through getTaskFailures() once execution has completed. The time spent by each task waiting
+ * in the queue and running is recorded, and summarized in the log on completion.
+ */
+public class WorkStealingExecutableManager extends ParallelExecutableManager {
+
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	private ForkJoinPool pool;
+	private Semaphore    queueSlots;
+	private boolean      isComplete = false;
+	private boolean      isStarted = false;
+	private int          tasksOutstanding = 0;
+
+	private ArrayList<TimedTask>                   pendingTasks = new ArrayList<TimedTask>();
+	private ConcurrentLinkedQueue<TaskFailure>     taskFailures = new ConcurrentLinkedQueue<TaskFailure>();
+	private ConcurrentLinkedQueue<TaskTiming>      taskTimings = new ConcurrentLinkedQueue<TaskTiming>();
+	private AtomicInteger                          tasksSubmitted = new AtomicInteger(0);
+
+	public WorkStealingExecutableManager () {
+		this(DEFAULT_THREAD_COUNT);
+	}
+
+	public WorkStealingExecutableManager (int threadCount){
+		super(threadCount);
+	}
+
+	@Override
+	public synchronized void setComplete () {
+		this.isComplete = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void setMaxTasksInQueue (int maxTasksInQueue) {
+		if (queueSlots != null) {
+			throw new IllegalStateException("The queue size cannot be changed after tasks have been added");
+		}
+		super.setMaxTasksInQueue(maxTasksInQueue);
+	}
+
+	@Override
+	public void addTask (Runnable task) {
+		// Wait for a free slot outside the monitor, so that completing tasks can release theirs
+		Semaphore slots = getQueueSlots();
+		slots.acquireUninterruptibly();
+		TimedTask timedTask = new TimedTask(task, tasksSubmitted.incrementAndGet());
+		synchronized (this) {
+			tasksOutstanding++;
+			if (isStarted) {
+				pool.execute(timedTask);
+			} else {
+				pendingTasks.add(timedTask);
+			}
+		}
+	}
+
+	private synchronized Semaphore getQueueSlots () {
+		if (queueSlots == null) {
+			queueSlots = new Semaphore(getMaxTasksInQueue());
+		}
+		return queueSlots;
+	}
+
+	/*
+	 * Tasks are not pulled from the manager in this mode
+	 */
+	@Override
+	public Runnable getTask () {
+		return null;
+	}
+
+	@Override
+	public synchronized void startExecution () {
+		pool = new ForkJoinPool(getThreadCount());
+		isStarted = true;
+		for (TimedTask task : pendingTasks) {
+			pool.execute(task);
+		}
+		pendingTasks.clear();
+		log.info("Started work-stealing pool of "+getThreadCount()+" threads");
+	}
+
+	@Override
+	public void waitForThreadsCompletion () {
+		synchronized (this) {
+			while (!isComplete || (tasksOutstanding > 0)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					log.error("Exception while waiting for parallel tasks to complete: "+e);
+				}
+			}
+		}
+		pool.shutdown();
+		logTimingSummary();
+		if (!taskFailures.isEmpty()) {
+			log.error(taskFailures.size()+" of "+tasksSubmitted.get()+" tasks failed");
+		}
+	}
+
+	private synchronized void taskDone () {
+		tasksOutstanding--;
+		if (tasksOutstanding == 0) {
+			notifyAll();
+		}
+	}
+
+	public TaskFailure[] getTaskFailures () {
+		return taskFailures.toArray(new TaskFailure[0]);
+	}
+
+	public TaskTiming[] getTaskTimings () {
+		TaskTiming[] timings = taskTimings.toArray(new TaskTiming[0]);
+		Arrays.sort(timings, new Comparator<TaskTiming>() {
+			public int compare(TaskTiming t1, TaskTiming t2) {
+				return Integer.compare(t1.taskNumber, t2.taskNumber);
+			}
+		});
+		return timings;
+	}
+
+	private void logTimingSummary () {
+		TaskTiming[] timings = getTaskTimings();
+		if (timings.length == 0) {
+			return;
+		}
+		double[] runMillis = new double[timings.length];
+		double[] waitMillis = new double[timings.length];
+		TaskTiming slowest = timings[0];
+		for (int i = 0; i < timings.length; i++) {
+			runMillis[i] = timings[i].getRunMillis();
+			waitMillis[i] = timings[i].getQueueWaitMillis();
+			if (timings[i].runNanos > slowest.runNanos) {
+				slowest = timings[i];
+			}
+		}
+		org.cggh.common.util.Statistics runStats = new org.cggh.common.util.Statistics(runMillis);
+		org.cggh.common.util.Statistics waitStats = new org.cggh.common.util.Statistics(waitMillis);
+		log.info("Completed "+timings.length+" tasks - run time (ms): mean "+String.format("%.1f", runStats.getMean())
+				+", median "+String.format("%.1f", runStats.getMedian())
+				+", max "+String.format("%.1f", runStats.getMax())
+				+" ("+slowest.taskName+"); queue wait (ms): mean "+String.format("%.1f", waitStats.getMean()));
+	}
+
+	/* ==========================================================
+	 * Task wrapper, recording timing and failures
+	 * ==========================================================
+	 */
+	private class TimedTask implements Runnable {
+		private Runnable task;
+		private int      taskNumber;
+		private long     queuedTime;
+
+		public TimedTask (Runnable task, int taskNumber) {
+			this.task = task;
+			this.taskNumber = taskNumber;
+			this.queuedTime = System.nanoTime();
+		}
+
+		public void run() {
+			long startTime = System.nanoTime();
+			// The task has left the queue: let the next one in
+			queueSlots.release();
+			try {
+				task.run();
+			} catch (Throwable t) {
+				log.error("Task "+task+" failed: "+t);
+				taskFailures.add(new TaskFailure(task, t));
+			} finally {
+				long endTime = System.nanoTime();
+				taskTimings.add(new TaskTiming(taskNumber, task.toString(), startTime - queuedTime, endTime - startTime));
+				taskDone();
+			}
+		}
+	}
+
+	public static class TaskFailure {
+		private Runnable  task;
+		private Throwable exception;
+
+		public TaskFailure (Runnable task, Throwable exception) {
+			this.task = task;
+			this.exception = exception;
+		}
+
+		public Runnable getTask() {
+			return task;
+		}
+
+		public Throwable getException() {
+			return exception;
+		}
+	}
+
+	public static class TaskTiming {
+		private int    taskNumber;
+		private String taskName;
+		private long   queueWaitNanos;
+		private long   runNanos;
+
+		public TaskTiming (int taskNumber, String taskName, long queueWaitNanos, long runNanos) {
+			this.taskNumber = taskNumber;
+			this.taskName = taskName;
+			this.queueWaitNanos = queueWaitNanos;
+			this.runNanos = runNanos;
+		}
+
+		public int getTaskNumber() {
+			return taskNumber;
+		}
+
+		public String getTaskName() {
+			return taskName;
+		}
+
+		public double getQueueWaitMillis() {
+			return queueWaitNanos / 1000000.0;
+		}
+
+		public double getRunMillis() {
+			return runNanos / 1000000.0;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.cggh.bam;
+
+import htsjdk.samtools.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/*
+ * Checks that reading the unmapped reads cache does not block when the SamReaderPool is full, as
+ * happens when every analysis thread holds the reader of its sample BAM: the cache must then be
+ * skipped, so that the caller scans the unmapped reads, and must be read again once a reader is free.
+ *
+ * Usage: org.cggh.bam.UnmappedReadsCacheCheck [<workFolder>]
+ */
+public class UnmappedReadsCacheCheck {
+
+	private static final String[] PATTERNS = { "ACGTACGT", "TTGGCCAA" };
+	private static final int RECORD_COUNT = 100;
+
+	public static void main(String[] args) throws Exception {
+		File workFolder = (args.length > 0) ? new File(args[0]) : createTempFolder();
+		workFolder.mkdirs();
+		System.out.println("Work folder: "+workFolder.getAbsolutePath());
+
+		// A sample BAM, and a cache holding some of its unmapped reads
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 100000));
+		ArrayList<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int rIdx = 0; rIdx < RECORD_COUNT; rIdx++) {
+			records.add(makeUnmappedRecord(header, "read"+rIdx));
+		}
+		File bamFile = new File(workFolder, "sample.bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bamFile);
+		for (SAMRecord record : records) {
+			writer.addAlignment(record);
+		}
+		writer.close();
+		final UnmappedReadsCache cache = new UnmappedReadsCache(new File(workFolder, "cache"), bamFile);
+		cache.putRecords(PATTERNS, header, records);
+
+		// Fill the pool with the reader of the sample BAM, as the caller of the cache does
+		SamReaderPool.setMaxOpenReaders(1);
+		SamReader sampleReader = SamReaderPool.acquire(bamFile);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<ArrayList<SAMRecord>> result = executor.submit(new Callable<ArrayList<SAMRecord>>() {
+				public ArrayList<SAMRecord> call() throws Exception {
+					return cache.getRecords(PATTERNS);
+				}
+			});
+			ArrayList<SAMRecord> cachedRecords;
+			try {
+				cachedRecords = result.get(30, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				throw new RuntimeException("Reading the cache blocked with a full reader pool");
+			}
+			if (cachedRecords != null) {
+				throw new RuntimeException("The cache was read with a full reader pool");
+			}
+			System.out.println("OK with a full reader pool: cache skipped");
+		} finally {
+			SamReaderPool.release(sampleReader);
+			executor.shutdownNow();
+		}
+
+		// With a free reader, the cache is used
+		ArrayList<SAMRecord> cachedRecords = cache.getRecords(PATTERNS);
+		if ((cachedRecords == null) || (cachedRecords.size() != RECORD_COUNT)) {
+			throw new RuntimeException("Cached records not read back with a free reader");
+		}
+		SamReaderPool.closeAll();
+		System.out.println("All cache reads OK");
+	}
+
+	private static SAMRecord makeUnmappedRecord (SAMFileHeader header, String readName) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(readName);
+		record.setReadUnmappedFlag(true);
+		record.setReadString("ACGTACGTAAAACCCCGGGGTTTT");
+		record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIII");
+		return record;
+	}
+
+	private static File createTempFolder () throws IOException {
+		File folder = File.createTempFile("unmappedCacheCheck", "");
+		folder.delete();
+		return folder;
+	}
+}
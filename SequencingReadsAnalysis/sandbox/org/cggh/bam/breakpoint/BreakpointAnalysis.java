@@ -74,7 +74,7 @@ public class BreakpointAnalysis extends SampleAnalysis  {
 	 * Collective analysis of results from all samples
 	 * **********************************************************************
 	 */
-	protected void analyzeAllSampleResults (Sample[] samples) throws AnalysisException, IOException  {
+	public void analyzeAllSampleResults (Sample[] samples) throws AnalysisException, IOException  {
 		mergeResultFiles(samples, "rbpFlanks");
 	}
 
@@ -0,0 +1,180 @@
+package org.cggh.bam.cigar;
+
+import org.cggh.bam.*;
+import htsjdk.samtools.*;
+import java.util.*;
+
+
+/*
+ * Compares the CIGAR projection used to build mapped reads with the previous String-based
+ * implementation, on synthetic 150bp and 250bp reads with soft clips and small indels.
+ *
+ * Usage: org.cggh.bam.cigar.CigarProjectionBenchmark [<readCount>] [<iterations>]
+ */
+public class CigarProjectionBenchmark {
+
+	private static final int MAX_INDEL_SIZE = 20;
+	private static final int WARMUP_ITERATIONS = 5;
+
+	private static final String NT = "ACGT";
+
+	private static volatile long sink;
+
+	public static void main(String[] args) throws Exception {
+		int readCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+		int[] readLengths = { 150, 250 };
+		for (int lenIdx = 0; lenIdx < readLengths.length; lenIdx++) {
+			int readLen = readLengths[lenIdx];
+			BenchmarkRead[] reads = makeReads(readCount, readLen, new Random(readLen));
+			verify(reads);
+
+			for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+				runStringBuffer(reads);
+				runProjector(reads);
+			}
+			long sbTime = 0;
+			long projTime = 0;
+			for (int i = 0; i < iterations; i++) {
+				long t0 = System.nanoTime();
+				runStringBuffer(reads);
+				long t1 = System.nanoTime();
+				runProjector(reads);
+				long t2 = System.nanoTime();
+				sbTime += (t1 - t0);
+				projTime += (t2 - t1);
+			}
+			double sbNsPerRead = ((double)sbTime) / (iterations * readCount);
+			double projNsPerRead = ((double)projTime) / (iterations * readCount);
+			System.out.println(readLen+"bp reads: StringBuffer "+String.format("%.1f", sbNsPerRead)+" ns/read, "
+					+ "CigarProjector "+String.format("%.1f", projNsPerRead)+" ns/read ("
+					+ String.format("%.2f", sbNsPerRead/projNsPerRead)+"x)");
+		}
+	}
+
+	private static void runStringBuffer (BenchmarkRead[] reads) {
+		long total = 0;
+		for (int rIdx = 0; rIdx < reads.length; rIdx++) {
+			BenchmarkRead r = reads[rIdx];
+			String[] result = applyCigarWithStrings(r.sequence, r.quality, r.cigar);
+			total += result[0].length();
+		}
+		sink = total;
+	}
+
+	private static void runProjector (BenchmarkRead[] reads) throws Exception {
+		CigarProjector projector = new CigarProjector(MAX_INDEL_SIZE);
+		long total = 0;
+		for (int rIdx = 0; rIdx < reads.length; rIdx++) {
+			BenchmarkRead r = reads[rIdx];
+			CigarProjector.Projection p = projector.project(r.bases, r.qualities, r.cigar);
+			total += p.copyBases().length + p.copyQualities().length;
+		}
+		sink = total;
+	}
+
+	private static void verify (BenchmarkRead[] reads) throws Exception {
+		CigarProjector projector = new CigarProjector(MAX_INDEL_SIZE);
+		for (int rIdx = 0; rIdx < reads.length; rIdx++) {
+			BenchmarkRead r = reads[rIdx];
+			String[] expected = applyCigarWithStrings(r.sequence, r.quality, r.cigar);
+			CigarProjector.Projection p = projector.project(r.bases, r.qualities, r.cigar);
+			String bases = new String(p.copyBases(), "US-ASCII");
+			byte[] quals = p.copyQualities();
+			StringBuilder qualSb = new StringBuilder(quals.length);
+			for (int i = 0; i < quals.length; i++) {
+				qualSb.append((char)(quals[i] + 33));
+			}
+			if (!bases.equals(expected[0]) || !qualSb.toString().equals(expected[1])) {
+				throw new RuntimeException("Projection mismatch for CIGAR "+r.cigar);
+			}
+		}
+	}
+
+	/*
+	 * The String-based CIGAR application, as it was done before CigarProjector
+	 */
+	private static String[] applyCigarWithStrings (String sequence, String quality, Cigar cigar) {
+		StringBuffer sequenceSb = new StringBuffer(sequence.length());
+		StringBuffer qualitySb = new StringBuffer(quality.length());
+		int seqPos = 0;
+		List<CigarElement> ceList = cigar.getCigarElements();
+		for (CigarElement ce : ceList) {
+			CigarOperator op = ce.getOperator();
+			int len = ce.getLength();
+			if (op.isAlignment()) {
+				sequenceSb.append(sequence.substring(seqPos, seqPos+len));
+				qualitySb.append(quality.substring(seqPos, seqPos+len));
+				seqPos += len;
+			} else if ((op == CigarOperator.INSERTION) || (op == CigarOperator.SOFT_CLIP)) {
+				seqPos += len;
+			} else if (op == CigarOperator.DELETION) {
+				for (int i = 0; i < len; i++) {
+					sequenceSb.append('-');
+					qualitySb.append('0');
+				}
+			}
+		}
+		return new String[] { sequenceSb.toString(), qualitySb.toString() };
+	}
+
+	/*
+	 * Reads with an optional soft clip at either end, and up to two small insertions or deletions
+	 */
+	private static BenchmarkRead[] makeReads (int readCount, int readLen, Random random) {
+		BenchmarkRead[] reads = new BenchmarkRead[readCount];
+		for (int rIdx = 0; rIdx < readCount; rIdx++) {
+			char[] seq = new char[readLen];
+			char[] qual = new char[readLen];
+			for (int i = 0; i < readLen; i++) {
+				seq[i] = NT.charAt(random.nextInt(4));
+				qual[i] = (char)(33 + 2 + random.nextInt(39));
+			}
+			ArrayList<CigarElement> ceList = new ArrayList<CigarElement>();
+			int remaining = readLen;
+			int leftClip = random.nextBoolean() ? random.nextInt(10) : 0;
+			int rightClip = random.nextBoolean() ? random.nextInt(10) : 0;
+			if (leftClip > 0) {
+				ceList.add(new CigarElement(leftClip, CigarOperator.S));
+				remaining -= leftClip;
+			}
+			remaining -= rightClip;
+			int indelCount = random.nextInt(3);
+			for (int i = 0; i < indelCount; i++) {
+				int matchLen = 10 + random.nextInt(remaining / (indelCount + 1) - 10);
+				ceList.add(new CigarElement(matchLen, CigarOperator.M));
+				remaining -= matchLen;
+				int indelLen = 1 + random.nextInt(6);
+				if (random.nextBoolean()) {
+					ceList.add(new CigarElement(indelLen, CigarOperator.D));
+				} else {
+					ceList.add(new CigarElement(indelLen, CigarOperator.I));
+					remaining -= indelLen;
+				}
+			}
+			ceList.add(new CigarElement(remaining, CigarOperator.M));
+			if (rightClip > 0) {
+				ceList.add(new CigarElement(rightClip, CigarOperator.S));
+			}
+			reads[rIdx] = new BenchmarkRead(new String(seq), new String(qual), new Cigar(ceList));
+		}
+		return reads;
+	}
+
+	private static class BenchmarkRead {
+		String sequence;
+		String quality;
+		byte[] bases;
+		byte[] qualities;
+		Cigar  cigar;
+
+		public BenchmarkRead (String sequence, String quality, Cigar cigar) {
+			this.sequence = sequence;
+			this.quality = quality;
+			this.cigar = cigar;
+			this.bases = htsjdk.samtools.util.StringUtil.stringToBytes(sequence);
+			this.qualities = SAMUtils.fastqToPhred(quality);
+		}
+	}
+}
@@ -137,7 +137,7 @@ public class FaceawayAnalysis extends SampleAnalysis  {
 	 * Collective analysis of results from all samples
 	 * **********************************************************************
 	 */
-	protected void analyzeAllSampleResults (Sample[] samples) throws AnalysisException, IOException  {
+	public void analyzeAllSampleResults (Sample[] samples) throws AnalysisException, IOException  {
 		mergeResultFiles(samples, "faceaway");
 	}
 
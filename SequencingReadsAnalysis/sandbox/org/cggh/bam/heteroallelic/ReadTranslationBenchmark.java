@@ -0,0 +1,117 @@
+package org.cggh.bam.heteroallelic;
+
+import org.cggh.common.sequence.*;
+import java.util.*;
+
+
+/*
+ * Compares the translation of reads with the codon table kernel in SequenceUtilities against the
+ * previous String-based path (reverse complement, then codon-by-codon lookup), on synthetic reads
+ * translated on both strands.
+ *
+ * Usage: org.cggh.bam.heteroallelic.ReadTranslationBenchmark [<readCount>] [<iterations>]
+ */
+public class ReadTranslationBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 5;
+
+	private static final String NT = "ACGT";
+
+	private static volatile long sink;
+
+	public static void main(String[] args) throws Exception {
+		int readCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+		int[] readLengths = { 150, 249 };
+		for (int lenIdx = 0; lenIdx < readLengths.length; lenIdx++) {
+			int readLen = readLengths[lenIdx];
+			String[] reads = makeReads(readCount, readLen, new Random(readLen));
+			byte[][] readBases = new byte[readCount][];
+			for (int rIdx = 0; rIdx < readCount; rIdx++) {
+				readBases[rIdx] = htsjdk.samtools.util.StringUtil.stringToBytes(reads[rIdx]);
+			}
+			verify(reads, readBases);
+
+			for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+				runStrings(reads);
+				runKernel(readBases);
+			}
+			long strTime = 0;
+			long kernelTime = 0;
+			for (int i = 0; i < iterations; i++) {
+				long t0 = System.nanoTime();
+				runStrings(reads);
+				long t1 = System.nanoTime();
+				runKernel(readBases);
+				long t2 = System.nanoTime();
+				strTime += (t1 - t0);
+				kernelTime += (t2 - t1);
+			}
+			double strNsPerRead = ((double)strTime) / (iterations * readCount);
+			double kernelNsPerRead = ((double)kernelTime) / (iterations * readCount);
+			System.out.println(readLen+"bp reads: Strings "+String.format("%.1f", strNsPerRead)+" ns/read, "
+					+ "codon table "+String.format("%.1f", kernelNsPerRead)+" ns/read ("
+					+ String.format("%.2f", strNsPerRead/kernelNsPerRead)+"x)");
+		}
+	}
+
+	private static void runStrings (String[] reads) {
+		long total = 0;
+		for (int rIdx = 0; rIdx < reads.length; rIdx++) {
+			boolean reverse = (rIdx & 1) != 0;
+			total += translateWithStrings(reads[rIdx], reverse)[0];
+		}
+		sink = total;
+	}
+
+	private static void runKernel (byte[][] readBases) {
+		char[] aminos = new char[100];
+		long total = 0;
+		for (int rIdx = 0; rIdx < readBases.length; rIdx++) {
+			boolean reverse = (rIdx & 1) != 0;
+			byte[] bases = readBases[rIdx];
+			SequenceUtilities.translateNtSequence(bases, 0, bases.length, reverse, aminos, 0);
+			total += aminos[0];
+		}
+		sink = total;
+	}
+
+	private static void verify (String[] reads, byte[][] readBases) {
+		char[] aminos = new char[100];
+		for (int rIdx = 0; rIdx < reads.length; rIdx++) {
+			for (int strand = 0; strand < 2; strand++) {
+				boolean reverse = (strand == 1);
+				char[] expected = translateWithStrings(reads[rIdx], reverse);
+				int count = SequenceUtilities.translateNtSequence(readBases[rIdx], 0, readBases[rIdx].length, reverse, aminos, 0);
+				if ((count != expected.length) || !new String(aminos, 0, count).equals(new String(expected))) {
+					throw new RuntimeException("Translation mismatch for read "+reads[rIdx]);
+				}
+			}
+		}
+	}
+
+	/*
+	 * The String-based translation, as it was done before the codon table kernel
+	 */
+	private static char[] translateWithStrings (String read, boolean reverse) {
+		String seq = reverse ? SequenceUtilities.getReverseComplementSequence(read) : read;
+		StringBuffer sb = new StringBuffer(seq.length() / 3);
+		for (int idx = 0; idx < seq.length(); idx += 3) {
+			sb.append(Translation.getCodon(seq, idx+1, false).getAmino());
+		}
+		return sb.toString().toCharArray();
+	}
+
+	private static String[] makeReads (int readCount, int readLen, Random random) {
+		String[] reads = new String[readCount];
+		for (int rIdx = 0; rIdx < readCount; rIdx++) {
+			char[] seq = new char[readLen];
+			for (int i = 0; i < readLen; i++) {
+				seq[i] = NT.charAt(random.nextInt(4));
+			}
+			reads[rIdx] = new String(seq);
+		}
+		return reads;
+	}
+}
@@ -0,0 +1,124 @@
+package org.cggh.bam.readCounts;
+
+import org.cggh.bam.*;
+import org.cggh.common.fileIO.*;
+import java.io.*;
+import java.util.*;
+
+
+/*
+ * Runs incremental read count merges back to back on synthetic sample files, checking that each
+ * merge produces the matrices expected from the sample files, with one sample file changed between
+ * merges, and that a failed merge leaves the matrices of the previous merge in place.
+ *
+ * Usage: org.cggh.bam.readCounts.IncrementalMergeCheck [<workFolder>]
+ */
+public class IncrementalMergeCheck {
+
+	private static final String PREFIX = "check";
+	private static final int SNP_COUNT = 500;
+	private static final int SAMPLE_COUNT = 20;
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("incrementalMerge", "true");
+		File workFolder = (args.length > 0) ? new File(args[0]) : createTempFolder();
+		workFolder.mkdirs();
+		System.out.println("Work folder: "+workFolder.getAbsolutePath());
+
+		File configFile = new File(workFolder, "config.properties");
+		writeFile(configFile, "");
+		File snpListFile = new File(workFolder, "snps.tab");
+		StringBuilder sb = new StringBuilder("Chr\tPos\tRef\tNonref\n");
+		for (int snpIdx = 0; snpIdx < SNP_COUNT; snpIdx++) {
+			sb.append("chr1\t").append(100 + 10 * snpIdx).append("\tA\tG\n");
+		}
+		writeFile(snpListFile, sb.toString());
+
+		Sample[] samples = new Sample[SAMPLE_COUNT];
+		Random random = new Random(1);
+		short[][] refCounts = new short[SAMPLE_COUNT][];
+		for (int sIdx = 0; sIdx < SAMPLE_COUNT; sIdx++) {
+			samples[sIdx] = new Sample("B1", "SAMPLE"+sIdx, null);
+			refCounts[sIdx] = writeSampleFile(workFolder, samples[sIdx], random, false);
+		}
+
+		// First merge, then a merge with one sample changed, then a merge with nothing changed
+		merge(workFolder, configFile, snpListFile, samples);
+		checkMatrix(workFolder, refCounts, "first merge");
+		refCounts[3] = writeSampleFile(workFolder, samples[3], random, false);
+		merge(workFolder, configFile, snpListFile, samples);
+		checkMatrix(workFolder, refCounts, "merge with a changed sample");
+		merge(workFolder, configFile, snpListFile, samples);
+		checkMatrix(workFolder, refCounts, "merge with no changes");
+
+		// A merge that fails must leave the previous matrices
+		writeSampleFile(workFolder, samples[7], random, true);
+		try {
+			merge(workFolder, configFile, snpListFile, samples);
+			throw new RuntimeException("Merge with a corrupt sample file did not fail");
+		} catch (org.cggh.common.exceptions.AnalysisException e) {
+			System.out.println("Merge failed as expected: "+e.getMessage());
+		}
+		checkMatrix(workFolder, refCounts, "failed merge");
+		refCounts[7] = writeSampleFile(workFolder, samples[7], random, false);
+		merge(workFolder, configFile, snpListFile, samples);
+		checkMatrix(workFolder, refCounts, "merge after a failed merge");
+		System.out.println("All merges OK");
+	}
+
+	private static void merge (File workFolder, File configFile, File snpListFile, Sample[] samples) throws Exception {
+		ReadCountAnalysis task = new ReadCountAnalysis(configFile, snpListFile, workFolder, PREFIX);
+		task.mergeAllSampleResults(samples);
+	}
+
+	private static void checkMatrix (File workFolder, short[][] refCounts, String stage) throws Exception {
+		File matrixFile = new File(workFolder, PREFIX+".ReadCounts.ref.matrix");
+		BinaryMatrixReader in = new BinaryMatrixReader(matrixFile);
+		try {
+			for (int sIdx = 0; sIdx < refCounts.length; sIdx++) {
+				if (!Arrays.equals(in.getShortColumn(sIdx), refCounts[sIdx])) {
+					throw new RuntimeException("Wrong values for sample "+sIdx+" after "+stage);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (new File(workFolder, PREFIX+".ReadCounts.ref.matrix.prev").exists()) {
+			throw new RuntimeException("Previous matrix left after "+stage);
+		}
+		System.out.println("OK after "+stage);
+	}
+
+	/*
+	 * Writes a sample results file with random counts, returning the ref counts. A corrupt file has a wrong position.
+	 */
+	private static short[] writeSampleFile (File workFolder, Sample sample, Random random, boolean corrupt) throws IOException {
+		File sampleFolder = new File(workFolder, sample.getBatch());
+		sampleFolder.mkdirs();
+		short[] refCounts = new short[SNP_COUNT];
+		StringBuilder sb = new StringBuilder("Chr\tPos\tRef\tNonref\tGenotypeFreq\tGenotypeNumMulti\tGenotypeNum\n");
+		for (int snpIdx = 0; snpIdx < SNP_COUNT; snpIdx++) {
+			refCounts[snpIdx] = (short)random.nextInt(100);
+			int pos = (corrupt && (snpIdx == SNP_COUNT / 2)) ? 1 : (100 + 10 * snpIdx);
+			sb.append("chr1\t").append(pos).append('\t').append(refCounts[snpIdx]).append('\t').append(random.nextInt(100))
+			  .append("\t0.5\t1\t1\n");
+		}
+		writeFile(new File(sampleFolder, sample.getName()+'.'+PREFIX+".tab"), sb.toString());
+		return refCounts;
+	}
+
+	private static void writeFile (File file, String content) throws IOException {
+		Writer w = new FileWriter(file);
+		try {
+			w.write(content);
+		} finally {
+			w.close();
+		}
+	}
+
+	private static File createTempFolder () throws IOException {
+		File folder = File.createTempFile("mergeCheck", "");
+		folder.delete();
+		return folder;
+	}
+}
@@ -0,0 +1,405 @@
+package org.cggh.bam;
+
+import java.util.*;
+import java.util.regex.*;
+
+
+/*
+ * Finds the anchors of a set of loci in a read sequence, with a single scan of the read.
+ *
+ * Anchor patterns are regular expressions, but in practice they are fixed-length sequences
+ * of nucleotides, wildcards ('.'), nucleotide classes (e.g. "[AG]") and groups of alternative
+ * sequences (e.g. "(?:GAAAG|ATATA)"). Such patterns are compiled into one or more alternative
+ * arrays of per-position nucleotide masks, each indexed by an exact 8-mer seed taken from it.
+ * The read is scanned once, looking up each of its 8-mers in the seed table; every hit is then
+ * verified against the masks of the anchor alternative it belongs to. Patterns that cannot be
+ * compiled this way, or that have no exact 8-mer, are matched with their regular expression.
+ *
+ * For each locus, the result is the same as trying the locus anchors in order with
+ * Matcher.find(): the first anchor that matches, at its leftmost match position.
+ */
+public class AnchorIndex {
+
+	private static final int SEED_LENGTH = 8;
+	private static final int SEED_MASK = (1 << (2 * SEED_LENGTH)) - 1;
+	private static final int MAX_ALTERNATIVES = 64;
+
+	// Nucleotide codes: a mask matches a read base if they share a bit
+	private static final byte CODE_A = 1;
+	private static final byte CODE_C = 2;
+	private static final byte CODE_G = 4;
+	private static final byte CODE_T = 8;
+	private static final byte CODE_OTHER = 16;
+	private static final byte CODE_ANY = 31;
+
+	private static final byte[] BASE_CODES = new byte[256];
+	private static final byte[] BASE_INDEXES = new byte[256];
+	static {
+		Arrays.fill(BASE_CODES, CODE_OTHER);
+		BASE_CODES['A'] = CODE_A;
+		BASE_CODES['C'] = CODE_C;
+		BASE_CODES['G'] = CODE_G;
+		BASE_CODES['T'] = CODE_T;
+		Arrays.fill(BASE_INDEXES, (byte)-1);
+		BASE_INDEXES['A'] = 0;
+		BASE_INDEXES['C'] = 1;
+		BASE_INDEXES['G'] = 2;
+		BASE_INDEXES['T'] = 3;
+	}
+
+	private Locus[]   loci;
+	private int[]     locusFirstAnchor;		// Index of the first anchor of each locus; the last entry is the anchor count
+	private Anchor[]  anchors;
+	private boolean[] isRegexAnchor;
+	private int[]     regexAnchorIdxs;
+
+	// Anchor alternatives, and the seed table: the alternatives seeded by k-mer s are
+	// seedAlternatives[seedStart[s]] to seedAlternatives[seedStart[s+1]-1]
+	private AnchorAlternative[] alternatives;
+	private int[]               seedStart;
+	private int[]               seedAlternatives;
+
+	public AnchorIndex (Locus[] loci) {
+		this.loci = loci;
+
+		// Number all the anchors of all the loci
+		ArrayList<Anchor> anchorList = new ArrayList<Anchor>();
+		locusFirstAnchor = new int[loci.length + 1];
+		for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+			locusFirstAnchor[lIdx] = anchorList.size();
+			anchorList.addAll(Arrays.asList(loci[lIdx].getAnchors()));
+		}
+		locusFirstAnchor[loci.length] = anchorList.size();
+		anchors = anchorList.toArray(new Anchor[anchorList.size()]);
+
+		// Compile the anchors, keeping the regular expressions for those that cannot be compiled
+		ArrayList<AnchorAlternative> alternativeList = new ArrayList<AnchorAlternative>();
+		ArrayList<Integer> regexAnchorList = new ArrayList<Integer>();
+		isRegexAnchor = new boolean[anchors.length];
+		for (int aIdx = 0; aIdx < anchors.length; aIdx++) {
+			ArrayList<AnchorAlternative> anchorAlternatives = compileAnchor(aIdx, anchors[aIdx].getAnchorPattern());
+			if (anchorAlternatives == null) {
+				isRegexAnchor[aIdx] = true;
+				regexAnchorList.add(aIdx);
+			} else {
+				alternativeList.addAll(anchorAlternatives);
+			}
+		}
+		alternatives = alternativeList.toArray(new AnchorAlternative[alternativeList.size()]);
+		regexAnchorIdxs = new int[regexAnchorList.size()];
+		for (int i = 0; i < regexAnchorIdxs.length; i++) {
+			regexAnchorIdxs[i] = regexAnchorList.get(i);
+		}
+
+		// Build the seed table
+		seedStart = new int[SEED_MASK + 2];
+		for (int altIdx = 0; altIdx < alternatives.length; altIdx++) {
+			seedStart[alternatives[altIdx].seed + 1]++;
+		}
+		for (int s = 0; s <= SEED_MASK; s++) {
+			seedStart[s + 1] += seedStart[s];
+		}
+		seedAlternatives = new int[alternatives.length];
+		int[] nextEntry = Arrays.copyOf(seedStart, SEED_MASK + 1);
+		for (int altIdx = 0; altIdx < alternatives.length; altIdx++) {
+			seedAlternatives[nextEntry[alternatives[altIdx].seed]++] = altIdx;
+		}
+	}
+
+	public Locus[] getLoci () {
+		return loci;
+	}
+
+	public String[] getAnchorPatterns () {
+		String[] patterns = new String[anchors.length];
+		for (int aIdx = 0; aIdx < anchors.length; aIdx++) {
+			patterns[aIdx] = anchors[aIdx].getAnchorPattern();
+		}
+		return patterns;
+	}
+
+	/*
+	 * Finds the anchors of all the loci in the read bases
+	 */
+	public AnchorMatches match (byte[] bases) {
+		int[] anchorPos = new int[anchors.length];
+		Arrays.fill(anchorPos, -1);
+
+		// Scan the read once, verifying the anchor alternatives seeded by each of its k-mers
+		if (alternatives.length > 0) {
+			int kmer = 0;
+			int validLen = 0;
+			for (int i = 0; i < bases.length; i++) {
+				int ntIdx = BASE_INDEXES[bases[i] & 0xFF];
+				if (ntIdx < 0) {
+					validLen = 0;
+					continue;
+				}
+				kmer = ((kmer << 2) | ntIdx) & SEED_MASK;
+				if (++validLen < SEED_LENGTH) {
+					continue;
+				}
+				int kmerStart = i - SEED_LENGTH + 1;
+				for (int e = seedStart[kmer]; e < seedStart[kmer + 1]; e++) {
+					AnchorAlternative alt = alternatives[seedAlternatives[e]];
+					int start = kmerStart - alt.seedOffset;
+					int currPos = anchorPos[alt.anchorIdx];
+					if (((currPos < 0) || (start < currPos)) && alt.matches(bases, start)) {
+						anchorPos[alt.anchorIdx] = start;
+					}
+				}
+			}
+		}
+
+		// Match the remaining anchors with their regular expressions
+		if (regexAnchorIdxs.length > 0) {
+			String readSequence = new String(bases, java.nio.charset.StandardCharsets.ISO_8859_1);
+			for (int i = 0; i < regexAnchorIdxs.length; i++) {
+				int aIdx = regexAnchorIdxs[i];
+				Matcher m = anchors[aIdx].getRegex().matcher(readSequence);
+				if (m.find()) {
+					anchorPos[aIdx] = m.start();
+				}
+			}
+		}
+		return new AnchorMatches(anchorPos);
+	}
+
+	/*
+	 * The anchor matches in a read. For each locus, only the first anchor found in the read counts.
+	 */
+	public class AnchorMatches {
+		private int[] anchorPos;
+
+		private AnchorMatches (int[] anchorPos) {
+			this.anchorPos = anchorPos;
+		}
+
+		/*
+		 * Index of the first anchor of the locus found in the read, or -1 if none was found
+		 */
+		public int getAnchorIdx (int lIdx) {
+			for (int aIdx = locusFirstAnchor[lIdx]; aIdx < locusFirstAnchor[lIdx + 1]; aIdx++) {
+				if (anchorPos[aIdx] >= 0) {
+					return aIdx - locusFirstAnchor[lIdx];
+				}
+			}
+			return -1;
+		}
+
+		/*
+		 * Position in the read of the leftmost match of a locus anchor, or -1 if it was not found
+		 */
+		public int getAnchorPos (int lIdx, int anchorIdx) {
+			return anchorPos[locusFirstAnchor[lIdx] + anchorIdx];
+		}
+
+		public boolean hasMatch () {
+			for (int aIdx = 0; aIdx < anchorPos.length; aIdx++) {
+				if (anchorPos[aIdx] >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+
+	/* ==========================================================
+	 * Anchor pattern compilation
+	 * ==========================================================
+	 */
+	private static class AnchorAlternative {
+		int    anchorIdx;
+		byte[] masks;
+		int    seed;
+		int    seedOffset;
+
+		boolean matches (byte[] bases, int start) {
+			if ((start < 0) || (start + masks.length > bases.length)) {
+				return false;
+			}
+			for (int j = 0; j < masks.length; j++) {
+				if ((masks[j] & BASE_CODES[bases[start + j] & 0xFF]) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Returns the alternatives of a pattern, or null if it must be matched as a regular expression
+	 */
+	private static ArrayList<AnchorAlternative> compileAnchor (int anchorIdx, String pattern) {
+		ArrayList<byte[]> maskLists = parsePattern(pattern);
+		if ((maskLists == null) || maskLists.isEmpty()) {
+			return null;
+		}
+		ArrayList<AnchorAlternative> result = new ArrayList<AnchorAlternative>();
+		for (byte[] masks : maskLists) {
+			AnchorAlternative alt = new AnchorAlternative();
+			alt.anchorIdx = anchorIdx;
+			alt.masks = masks;
+			if (!findSeed(alt)) {
+				return null;
+			}
+			result.add(alt);
+		}
+		return result;
+	}
+
+	/*
+	 * Use the first k-mer of the longest run of exact nucleotides as seed
+	 */
+	private static boolean findSeed (AnchorAlternative alt) {
+		byte[] masks = alt.masks;
+		int bestStart = -1;
+		int bestLen = 0;
+		int runStart = 0;
+		for (int j = 0; j <= masks.length; j++) {
+			boolean exact = (j < masks.length) && (getExactIndex(masks[j]) >= 0);
+			if (!exact) {
+				if (j - runStart > bestLen) {
+					bestLen = j - runStart;
+					bestStart = runStart;
+				}
+				runStart = j + 1;
+			}
+		}
+		if (bestLen < SEED_LENGTH) {
+			return false;
+		}
+		int seed = 0;
+		for (int j = bestStart; j < bestStart + SEED_LENGTH; j++) {
+			seed = (seed << 2) | getExactIndex(masks[j]);
+		}
+		alt.seed = seed;
+		alt.seedOffset = bestStart;
+		return true;
+	}
+
+	private static int getExactIndex (byte mask) {
+		switch (mask) {
+		case CODE_A: return 0;
+		case CODE_C: return 1;
+		case CODE_G: return 2;
+		case CODE_T: return 3;
+		}
+		return -1;
+	}
+
+	/*
+	 * Parses a pattern made of nucleotides, '.', nucleotide classes and non-nested groups of alternatives.
+	 * Returns the mask arrays of all the alternative fixed-length sequences it can match, or null if the
+	 * pattern uses any other construct.
+	 */
+	private static ArrayList<byte[]> parsePattern (String pattern) {
+		ArrayList<byte[]> result = new ArrayList<byte[]>();
+		result.add(new byte[0]);
+		int i = 0;
+		while (i < pattern.length()) {
+			char c = pattern.charAt(i);
+			if (c == '(') {
+				int end = pattern.indexOf(')', i);
+				if (end < 0) {
+					return null;
+				}
+				String group = pattern.substring(i + 1, end);
+				if (group.startsWith("?:")) {
+					group = group.substring(2);
+				}
+				if (group.indexOf('(') >= 0) {
+					return null;
+				}
+				// Each alternative in the group extends each of the sequences so far
+				ArrayList<byte[]> groupAlternatives = new ArrayList<byte[]>();
+				for (String alternative : group.split("\\|", -1)) {
+					byte[] altMasks = parseSequence(alternative);
+					if ((altMasks == null) || (altMasks.length == 0)) {
+						return null;
+					}
+					groupAlternatives.add(altMasks);
+				}
+				if (result.size() * groupAlternatives.size() > MAX_ALTERNATIVES) {
+					return null;
+				}
+				ArrayList<byte[]> newResult = new ArrayList<byte[]>();
+				for (byte[] prefix : result) {
+					for (byte[] altMasks : groupAlternatives) {
+						newResult.add(concat(prefix, altMasks));
+					}
+				}
+				result = newResult;
+				i = end + 1;
+			} else {
+				// A run of elements up to the next group
+				int end = pattern.indexOf('(', i);
+				if (end < 0) {
+					end = pattern.length();
+				}
+				byte[] seqMasks = parseSequence(pattern.substring(i, end));
+				if (seqMasks == null) {
+					return null;
+				}
+				for (int rIdx = 0; rIdx < result.size(); rIdx++) {
+					result.set(rIdx, concat(result.get(rIdx), seqMasks));
+				}
+				i = end;
+			}
+		}
+		return result;
+	}
+
+	private static byte[] parseSequence (String seq) {
+		byte[] masks = new byte[seq.length()];
+		int len = 0;
+		int i = 0;
+		while (i < seq.length()) {
+			char c = seq.charAt(i);
+			if (c == '.') {
+				masks[len++] = CODE_ANY;
+				i++;
+			} else if (c == '[') {
+				int end = seq.indexOf(']', i);
+				if ((end < 0) || (end == i + 1)) {
+					return null;
+				}
+				byte mask = 0;
+				for (int j = i + 1; j < end; j++) {
+					byte code = getNucleotideCode(seq.charAt(j));
+					if (code == 0) {
+						return null;
+					}
+					mask |= code;
+				}
+				masks[len++] = mask;
+				i = end + 1;
+			} else {
+				byte code = getNucleotideCode(c);
+				if (code == 0) {
+					return null;
+				}
+				masks[len++] = code;
+				i++;
+			}
+		}
+		return Arrays.copyOf(masks, len);
+	}
+
+	private static byte getNucleotideCode (char c) {
+		switch (c) {
+		case 'A': return CODE_A;
+		case 'C': return CODE_C;
+		case 'G': return CODE_G;
+		case 'T': return CODE_T;
+		}
+		return 0;
+	}
+
+	private static byte[] concat (byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+}
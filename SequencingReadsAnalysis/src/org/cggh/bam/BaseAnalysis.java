@@ -14,6 +14,10 @@ public abstract class BaseAnalysis {
 
 	protected File outRootFolder;
 	
+	// If set, merges that keep their own merged data only re-read the sample files that changed since the previous merge
+	private static boolean incrementalMerge = Boolean.parseBoolean(System.getProperty("incrementalMerge", "false"));
+	private MergeInputCache mergeCache;
+	
 	public BaseAnalysis (File outRootFolder) throws AnalysisException  {
 		// Create the root output directory
 		this.outRootFolder = outRootFolder;
@@ -77,6 +81,24 @@ public abstract class BaseAnalysis {
 	}
 	
 	
+	/*
+	 * Manifest of the sample files read by the merges of this analysis, so that a merge can tell which
+	 * files changed since the previous one. Disabled unless incrementalMerge is set.
+	 */
+	protected MergeInputCache getMergeCache () throws AnalysisException {
+		if (mergeCache == null) {
+			File cacheFile = incrementalMerge ? new File(outRootFolder, "MergeCache."+getClass().getSimpleName()+".dat") : null;
+			mergeCache = new MergeInputCache(cacheFile);
+		}
+		return mergeCache;
+	}
+	
+	protected void saveMergeCache () throws AnalysisException {
+		if (mergeCache != null) {
+			mergeCache.save();
+		}
+	}
+	
 	/*
 	 * Divide the samples into subfolders so we don't end up with thousands of files in the same folder
 	 */
@@ -0,0 +1,176 @@
+package org.cggh.bam;
+
+import org.cggh.common.exceptions.*;
+import htsjdk.samtools.*;
+import java.util.*;
+
+
+/*
+ * Projects the bases and qualities of a read onto the reference, according to its CIGAR:
+ * aligned bases are kept, insertions and soft clips are dropped, and deletions are filled
+ * with gaps. The projection is done in a single pass over the CIGAR elements, into buffers
+ * that are reused by each thread, so that no memory is allocated for most reads.
+ */
+public class CigarProjector {
+
+	public static final byte GAP = '-';
+
+	// Quality scores assigned to the gaps inserted for deletions and padding
+	public static final byte DELETION_QUALITY = (byte)('0' - 33);
+	public static final byte PADDING_QUALITY  = (byte)(' ' - 33);
+
+	private static final int INITIAL_BUFFER_SIZE = 512;
+
+	private static ThreadLocal<Projection> threadProjections = new ThreadLocal<Projection>() {
+		protected Projection initialValue() {
+			return new Projection();
+		}
+	};
+
+	private int maxIndelSize;
+
+	public CigarProjector (int maxIndelSize) {
+		this.maxIndelSize = maxIndelSize;
+	}
+
+	/*
+	 * True if the read maps to the reference "as is" (CIGAR is something like "150M"), so it needs no projection
+	 */
+	public static boolean isUngapped (Cigar cigar) {
+		return (cigar.numCigarElements() == 1) && (cigar.getCigarElement(0).getOperator() == CigarOperator.M);
+	}
+
+	/*
+	 * Returns the projection in the calling thread's buffers, which are only valid until the next call from the same thread
+	 */
+	public Projection project (byte[] bases, byte[] qualities, Cigar cigar) throws CigarException {
+		Projection p = threadProjections.get();
+		p.length = 0;
+		p.insertionCount = 0;
+		int seqPos = 0;
+		List<CigarElement> ceList = cigar.getCigarElements();
+		for (int ceIdx = 0; ceIdx < ceList.size(); ceIdx++) {
+			CigarElement ce = ceList.get(ceIdx);
+			CigarOperator op = ce.getOperator();
+			int len = ce.getLength();
+			switch (op) {
+			case M:
+			case EQ:
+			case X:
+				// Keep all matched positions
+				if (seqPos + len > bases.length) {
+					throw new CigarException ("CIGAR string longer than the read sequence");
+				}
+				p.ensureCapacity(p.length + len);
+				System.arraycopy(bases, seqPos, p.bases, p.length, len);
+				System.arraycopy(qualities, seqPos, p.qualities, p.length, len);
+				seqPos += len;
+				p.length += len;
+				break;
+			case I:
+				// Skip insertions, since they do not map against the reference
+				checkIndelSize(len, op);
+				p.addInsertion();
+				seqPos += len;
+				break;
+			case D:
+				// Insert gaps for deletions
+				checkIndelSize(len, op);
+				p.appendGap(len, DELETION_QUALITY);
+				break;
+			case S:
+				// Skip soft clips, start position should not change
+				seqPos += len;
+				break;
+			case H:
+				// Ignore hard clips, they are not in the sequence
+				break;
+			case N:
+				// This really should not happen!
+				throw new CigarException ("Found skipped region in CIGAR string- could not process");
+			case P:
+				// Insert gaps for padding, though it should not happen at all
+				p.appendGap(len, PADDING_QUALITY);
+				break;
+			default:
+				throw new CigarException ("Unkonwn element in CIGAR string: "+len+op.name());
+			}
+		}
+		return p;
+	}
+
+	private void checkIndelSize (int len, CigarOperator op) throws CigarException {
+		if (len > maxIndelSize) {
+			throw new CigarException ("Found large indel: "+len+op.name());
+		}
+	}
+
+	public static class CigarException extends AnalysisException {
+	    public CigarException (String msg) {
+	        super (msg);
+	    }
+	}
+
+	/*
+	 * Reusable buffers holding a projected read; only the first getLength() bytes are valid.
+	 * The offsets of the insertions skipped are also kept: an insertion at offset i was between
+	 * projected bases i-1 and i.
+	 */
+	public static class Projection {
+		private byte[] bases = new byte[INITIAL_BUFFER_SIZE];
+		private byte[] qualities = new byte[INITIAL_BUFFER_SIZE];
+		private int    length = 0;
+		private int[]  insertionOffsets = new int[4];
+		private int    insertionCount = 0;
+
+		public int getLength() {
+			return length;
+		}
+
+		public byte[] getBases() {
+			return bases;
+		}
+
+		public byte[] getQualities() {
+			return qualities;
+		}
+
+		public int getInsertionCount() {
+			return insertionCount;
+		}
+
+		public int getInsertionOffset(int idx) {
+			return insertionOffsets[idx];
+		}
+
+		public byte[] copyBases() {
+			return Arrays.copyOf(bases, length);
+		}
+
+		public byte[] copyQualities() {
+			return Arrays.copyOf(qualities, length);
+		}
+
+		private void appendGap (int len, byte quality) {
+			ensureCapacity(length + len);
+			Arrays.fill(bases, length, length+len, GAP);
+			Arrays.fill(qualities, length, length+len, quality);
+			length += len;
+		}
+
+		private void addInsertion () {
+			if (insertionCount == insertionOffsets.length) {
+				insertionOffsets = Arrays.copyOf(insertionOffsets, 2 * insertionCount);
+			}
+			insertionOffsets[insertionCount++] = length;
+		}
+
+		private void ensureCapacity (int capacity) {
+			if (capacity > bases.length) {
+				int newSize = Math.max(capacity, 2 * bases.length);
+				bases = Arrays.copyOf(bases, newSize);
+				qualities = Arrays.copyOf(qualities, newSize);
+			}
+		}
+	}
+}
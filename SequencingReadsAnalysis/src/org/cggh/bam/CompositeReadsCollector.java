@@ -0,0 +1,101 @@
+package org.cggh.bam;
+
+import org.cggh.common.exceptions.*;
+import org.cggh.common.genome.*;
+import org.cggh.common.util.*;
+import org.apache.commons.logging.*;
+import htsjdk.samtools.*;
+import java.util.*;
+
+
+/*
+ * A group of collectors that share a single pass over the sample BAM. The scanner passes
+ * each record only to the member collectors whose search regions the record overlaps.
+ * On completion, a failure in one collector does not stop the others, but fails the sample.
+ */
+public class CompositeReadsCollector implements SampleReadsCollector {
+
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	private SampleReadsCollector[] collectors;
+	private Sample                 sample;
+
+	public CompositeReadsCollector (Sample sample, SampleReadsCollector[] collectors) {
+		this.sample = sample;
+		this.collectors = collectors;
+	}
+
+	public SampleReadsCollector[] getCollectors () {
+		return collectors;
+	}
+
+	public void startSample (Sample sample, SAMFileHeader header) throws AnalysisException {
+		for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+			collectors[cIdx].startSample(sample, header);
+		}
+	}
+
+	public GenomeRegion[] getSearchRegions () {
+		ArrayList<GenomeRegion> regionList = new ArrayList<GenomeRegion>();
+		for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+			regionList.addAll(Arrays.asList(collectors[cIdx].getSearchRegions()));
+		}
+		return regionList.toArray(new GenomeRegion[regionList.size()]);
+	}
+
+	public boolean needsUnmappedReads () {
+		for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+			if (collectors[cIdx].needsUnmappedReads()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void processMappedRecord (SAMRecord record) throws AnalysisException {
+		for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+			collectors[cIdx].processMappedRecord(record);
+		}
+	}
+
+	public void processUnmappedRecord (SAMRecord record) throws AnalysisException {
+		for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+			if (collectors[cIdx].needsUnmappedReads()) {
+				collectors[cIdx].processUnmappedRecord(record);
+			}
+		}
+	}
+
+	/*
+	 * Completes all the collectors, even if some fail; then, if any failed, throws an exception naming them
+	 */
+	public void completeSample () throws AnalysisException {
+		ArrayList<String> failedNames = new ArrayList<String>();
+		String firstError = null;
+		for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+			try {
+				collectors[cIdx].completeSample();
+			} catch (AnalysisException e) {
+				String name = getCollectorName(collectors[cIdx]);
+				log.error("Error processing sample " + sample.getName() + " in " + name + ": "+e);
+				failedNames.add(name);
+				if (firstError == null) {
+					firstError = e.getMessage();
+				}
+			}
+		}
+		if (!failedNames.isEmpty()) {
+			throw new AnalysisException("Error processing sample " + sample.getName() + " in " + failedNames.size() + " of "
+					+ collectors.length + " collectors (" + TextUtilities.stringListToString(failedNames, ", ") + "): " + firstError);
+		}
+	}
+
+	/*
+	 * The name of the analysis a collector belongs to, for messages
+	 */
+	public static String getCollectorName (SampleReadsCollector collector) {
+		Class<?> collectorClass = collector.getClass();
+		Class<?> enclosingClass = collectorClass.getEnclosingClass();
+		return (enclosingClass != null) ? enclosingClass.getSimpleName() : collectorClass.getSimpleName();
+	}
+}
@@ -9,6 +9,7 @@ public abstract class LocusAnalysisConfig extends BaseAnalysisConfig {
 
 	public static final String PROP_MAX_READ_MISMATCHES = "alignment.maxReadMismatches";
 	public static final String PROP_MAX_INDEL_SIZE      = "alignment.maxIndelSize";
+	public static final String PROP_OUTPUT_SAM_READS    = "alignment.outputSamReads";
 	
 	protected Locus[] loci;
 
@@ -16,6 +17,7 @@ public abstract class LocusAnalysisConfig extends BaseAnalysisConfig {
 	protected int     maxReadMismatches;
 	protected int     maxIndelSize;
 	protected boolean useBamAlignment;
+	protected boolean outputSamReads;
 	
 
 	public LocusAnalysisConfig(File configFile, String propPrefix, boolean useBamAlignment) throws AnalysisException {
@@ -23,6 +25,7 @@ public abstract class LocusAnalysisConfig extends BaseAnalysisConfig {
 		
 		maxReadMismatches  = this.getIntProperty(propPrefix+PROP_MAX_READ_MISMATCHES, DEFAULT_MAX_READ_MISMATCHES);	
 		maxIndelSize       = this.getIntProperty(propPrefix+PROP_MAX_INDEL_SIZE,      0);	
+		outputSamReads     = this.getBooleanProperty(propPrefix+PROP_OUTPUT_SAM_READS, false);
 		this.useBamAlignment = useBamAlignment;
 
 		loci = parseLocusConfig ();
@@ -55,11 +58,19 @@ public abstract class LocusAnalysisConfig extends BaseAnalysisConfig {
 		return analyzeUnmappedReads;
 	}
 	
+	/*
+	 * If true, the reads keep the SAM text line of their BAM record, so that they can be written out
+	 */
+	public boolean getOutputSamReads() {
+		return outputSamReads;
+	}
+	
 	public String getPrintableDisplay() {
 	    return super.getPrintableDisplay() +
 	         "\nanalyzeUnmappedReads = " + getAnalyzeUnmappedReads() +
 		     "\nmaxReadMismatches = "    + getMaxReadMismatches() +
-		     "\nmaxIndelSize = "         + getMaxIndelSize();    		
+		     "\nmaxIndelSize = "         + getMaxIndelSize() +
+		     "\noutputSamReads = "       + getOutputSamReads();    		
     }
 	
 	public Locus[] parseLocusConfig () throws AnalysisException {
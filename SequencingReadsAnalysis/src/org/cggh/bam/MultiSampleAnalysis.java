@@ -10,12 +10,39 @@ public class MultiSampleAnalysis {
 	
 	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
 	
+	public static final String EXECUTION_MODE_THREADS       = "threads";
+	public static final String EXECUTION_MODE_WORK_STEALING = "workStealing";
+	public static final String EXECUTION_MODE_IO_TASKS      = "virtualThreads";
+	
+	// Tasks waiting to start, per thread: enough to keep the threads busy without creating all the tasks upfront
+	private static final int TASKS_IN_QUEUE_PER_THREAD = 4;
+	
 	private Sample[] samples;
 	private int      maxThreads = 0;
+	private String   executionMode;
+	private int      maxIoTasks;
 	
 	public MultiSampleAnalysis (File sampleListFile, int maxThreads) throws AnalysisException  {
+		this(sampleListFile, maxThreads, System.getProperty("executionMode", EXECUTION_MODE_THREADS));
+	}
+	
+	public MultiSampleAnalysis (File sampleListFile, int maxThreads, String executionMode) throws AnalysisException  {
+		if (!EXECUTION_MODE_THREADS.equals(executionMode) && !EXECUTION_MODE_WORK_STEALING.equals(executionMode)
+				&& !EXECUTION_MODE_IO_TASKS.equals(executionMode)) {
+			throw new AnalysisException("Invalid execution mode '"+executionMode+"': must be one of "
+					+EXECUTION_MODE_THREADS+", "+EXECUTION_MODE_WORK_STEALING+", "+EXECUTION_MODE_IO_TASKS);
+		}
 		this.samples = new SampleList(sampleListFile, false).getSamples();
 		this.maxThreads = maxThreads;
+		this.executionMode = executionMode;
+		this.maxIoTasks = Integer.parseInt(System.getProperty("maxIoTasks", Integer.toString(IoTaskExecutor.DEFAULT_MAX_CONCURRENT_TASKS)));
+	}
+	
+	/*
+	 * Maximum number of samples whose BAM files are read at the same time, in virtualThreads mode
+	 */
+	public void setMaxIoTasks (int maxIoTasks) {
+		this.maxIoTasks = maxIoTasks;
 	}
 	
 	public Sample[] getSamples() {
@@ -25,33 +52,75 @@ public class MultiSampleAnalysis {
 	public void execute (SampleAnalysis analysis) throws AnalysisException, IOException  {
 
 		// Analyze the samples one by one at all the loci		
-		ParallelExecutableManager pem;
-		if (maxThreads > 0) { 
-			pem = new ParallelExecutableManager(maxThreads);
-		} else {
-			pem = new ParallelExecutableManager();
+		ParallelExecutableManager pem = createExecutableManager();
+		pem.setMaxTasksInQueue(TASKS_IN_QUEUE_PER_THREAD * pem.getThreadCount());
+		
+		// In virtualThreads mode, the BAM files are read by I/O tasks, which then hand the reads over
+		// to the thread pool for analysis. Otherwise, each sample is read and analyzed by the same thread.
+		IoTaskExecutor ioExecutor = null;
+		if (EXECUTION_MODE_IO_TASKS.equals(executionMode)) {
+			ioExecutor = new IoTaskExecutor(maxIoTasks);
+			log.info("Reading up to "+ioExecutor.getMaxConcurrentTasks()+" samples at a time, analyzing on "+pem.getThreadCount()+" threads");
 		}
 		
-		// Create one task per sample
+		// Make sure every thread can hold a BAM reader at the same time
+		SamReaderPool.ensureCapacity((ioExecutor != null) ? ioExecutor.getMaxConcurrentTasks() : pem.getThreadCount());
+		
+		// Start the threads, and feed them one task per sample as they free up queue slots
+		pem.startExecution();
 		SampleAnalysisTask[] analysisTasks = new SampleAnalysisTask[samples.length];
 		for (int sIdx = 0; sIdx < samples.length; sIdx++) {
 			analysisTasks[sIdx] = new SampleAnalysisTask (analysis, samples[sIdx]);
-			pem.addTask(analysisTasks[sIdx]);
+			if (ioExecutor != null) {
+				ioExecutor.execute(new SampleReadingTask(analysisTasks[sIdx], pem));
+			} else {
+				pem.addTask(analysisTasks[sIdx]);
+			}
+		}
+		if (ioExecutor != null) {
+			ioExecutor.waitForCompletion();
+			for (WorkStealingExecutableManager.TaskFailure failure : ioExecutor.getTaskFailures()) {
+				((SampleReadingTask)failure.getTask()).analysisTask.failed = true;
+			}
 		}
 		pem.setComplete();
 
-		// Analyze all the samples at all the loci
-		pem.startExecution();
+		// Wait until all the samples have been analyzed at all the loci
 		pem.waitForThreadsCompletion();
 		
+		int failedCount = 0;
+		for (int sIdx = 0; sIdx < analysisTasks.length; sIdx++) {
+			if (analysisTasks[sIdx].failed) {
+				failedCount++;
+			}
+		}
+		if (failedCount > 0) {
+			log.error("Analysis failed for "+failedCount+" of "+samples.length+" samples");
+		}
+		
 		// Marge all the sample results files
 		//mergeSampleResultFiles(samples);
 	}
 	
+	private ParallelExecutableManager createExecutableManager () {
+		if (EXECUTION_MODE_IO_TASKS.equals(executionMode)) {
+			// The threads only do CPU work in this mode, so there is no point having more than the cores
+			int threadCount = (maxThreads > 0) ? maxThreads : Runtime.getRuntime().availableProcessors();
+			return new WorkStealingExecutableManager(threadCount);
+		}
+		int threadCount = (maxThreads > 0) ? maxThreads : ParallelExecutableManager.DEFAULT_THREAD_COUNT;
+		if (EXECUTION_MODE_WORK_STEALING.equals(executionMode)) {
+			return new WorkStealingExecutableManager(threadCount);
+		}
+		return new ParallelExecutableManager(threadCount);
+	}
+	
 	private class SampleAnalysisTask implements Runnable {
 		
-		SampleAnalysis analysis;
-		Sample sample;
+		SampleAnalysis       analysis;
+		Sample               sample;
+		SampleReadsCollector collector = null;
+		volatile boolean     failed = false;
 
 		public SampleAnalysisTask (SampleAnalysis analysis, Sample sample) {
 			this.analysis = analysis;
@@ -60,11 +129,79 @@ public class MultiSampleAnalysis {
 		
 		@Override
 		public void run() {
+			boolean succeeded = false;
 			try {
-				analysis.analyzeSample(sample);
+				if (collector != null) {
+					// The reads have already been collected by a SampleReadingTask
+					collector.completeSample();
+					collector = null;
+				} else {
+					analysis.analyzeSample(sample);
+				}
+				succeeded = true;
 			} catch (Exception e) {
 				log.error("Error processing sample " + sample.getName() + ": "+e);
+			} finally {
+				// Errors (e.g. OutOfMemoryError) are not caught, but still fail the sample
+				if (!succeeded) {
+					failed = true;
+				}
 			}
 		}
+		
+		@Override
+		public String toString() {
+			return sample.getName();
+		}
+	}
+	
+	/*
+	 * Reads the sample BAM, then queues the analysis of the reads on the thread pool. Analyses that
+	 * cannot be split into a reading and an analysis phase are run entirely in this task.
+	 */
+	private class SampleReadingTask implements Runnable {
+		
+		SampleAnalysisTask        analysisTask;
+		ParallelExecutableManager pem;
+
+		public SampleReadingTask (SampleAnalysisTask analysisTask, ParallelExecutableManager pem) {
+			this.analysisTask = analysisTask;
+			this.pem = pem;
+		}
+		
+		@Override
+		public void run() {
+			Sample sample = analysisTask.sample;
+			SampleReadsCollector collector = null;
+			boolean read = false;
+			try {
+				collector = analysisTask.analysis.createReadsCollector(sample);
+				if (collector != null) {
+					SampleReadsScanner.scanSample(sample, collector);
+				}
+				read = true;
+			} catch (Exception e) {
+				log.error("Error processing sample " + sample.getName() + ": "+e);
+			} finally {
+				if (!read) {
+					analysisTask.failed = true;
+				}
+			}
+			if (!read) {
+				return;
+			}
+			if (collector != null) {
+				analysisTask.collector = collector;
+				// Blocks while the pool's queue is full, which stops more samples from being read meanwhile
+				pem.addTask(analysisTask);
+			} else {
+				analysisTask.run();
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return analysisTask.toString();
+		}
 	}
 }
@@ -0,0 +1,410 @@
+package org.cggh.bam;
+
+import org.cggh.common.exceptions.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/*
+ * Reads the unmapped records at the end of a coordinate-sorted BAM with several threads.
+ *
+ * The unmapped reads start after the last linear bin of the BAI index. The compressed file from
+ * there to the end is split into chunks of roughly equal size, and the start of each chunk is moved
+ * to the first BGZF block boundary, and then to the first BAM record starting in that block. Record
+ * starts cannot be told apart with certainty, so a candidate is only taken if it is followed by a
+ * chain of valid records; in addition, each chunk is decoded up to and including the record at the
+ * start of the next one, and if that is not the first record of the next chunk the whole parallel scan
+ * is abandoned, and the caller falls back to reading the unmapped reads sequentially.
+ *
+ * The chunks are decoded by a few threads, each with a reader leased from the SamReaderPool, and only
+ * the records accepted by the filter are kept; the records are returned in file order.
+ */
+public class ParallelUnmappedReadsScanner {
+
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	private static final int  CHUNKS_PER_THREAD = 4;
+	private static final long MIN_CHUNK_SIZE = 8L * 1024 * 1024;
+
+	private static final int  MAX_BLOCK_SIZE = 64 * 1024;
+	private static final int  BLOCK_HEADER_SIZE = 18;
+	private static final int  SYNC_BUFFER_SIZE = 4 * MAX_BLOCK_SIZE;
+	private static final int  SYNC_CHAIN_LENGTH = 8;
+	private static final int  MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	private File          bamFile;
+	private SAMFileHeader header;
+	private int           threadCount;
+	private int           referenceCount;
+
+	public ParallelUnmappedReadsScanner (File bamFile, SAMFileHeader header, int threadCount) {
+		this.bamFile = bamFile;
+		this.header = header;
+		this.threadCount = threadCount;
+		this.referenceCount = header.getSequenceDictionary().size();
+	}
+
+	/*
+	 * Returns the accepted unmapped records in file order, or null if the BAM could not be split, in which
+	 * case the unmapped reads must be read sequentially.
+	 */
+	public ArrayList<SAMRecord> scan (SamReader samReader, final UnmappedRecordFilter filter) throws AnalysisException {
+		if (!samReader.hasIndex()) {
+			return null;
+		}
+		long startVpos = samReader.indexing().getIndex().getStartOfLastLinearBin();
+		if (startVpos == -1) {
+			return null;
+		}
+
+		// Find the chunk start positions
+		long[] chunkStarts;
+		try {
+			chunkStarts = findChunkStarts(startVpos);
+		} catch (IOException e) {
+			throw new AnalysisException("Error reading BAM file "+bamFile.getAbsolutePath()+": "+e);
+		}
+		if (chunkStarts == null) {
+			return null;
+		}
+
+		// Decode and filter the chunks in parallel, with readers leased from the pool: the caller's reader,
+		// plus as many others as the pool can spare, up to the thread count
+		ArrayList<SamReader> pooledReaders = new ArrayList<SamReader>();
+		final LinkedBlockingQueue<SamReader> readerQueue = new LinkedBlockingQueue<SamReader>();
+		readerQueue.add(samReader);
+		ExecutorService executor = null;
+		try {
+			int readerCount = Math.min(threadCount, chunkStarts.length);
+			while (readerQueue.size() < readerCount) {
+				SamReader reader = SamReaderPool.tryAcquire(bamFile);
+				if (reader == null) {
+					break;
+				}
+				pooledReaders.add(reader);
+				readerQueue.add(reader);
+			}
+			if (pooledReaders.isEmpty()) {
+				return null;
+			}
+
+			executor = Executors.newFixedThreadPool(readerQueue.size());
+			ArrayList<Future<ChunkRecords>> chunkResults = new ArrayList<Future<ChunkRecords>>();
+			for (int cIdx = 0; cIdx < chunkStarts.length; cIdx++) {
+				final long chunkStart = chunkStarts[cIdx];
+				final long chunkEnd = (cIdx + 1 < chunkStarts.length) ? chunkStarts[cIdx + 1] : -1;
+				chunkResults.add(executor.submit(new Callable<ChunkRecords>() {
+					public ChunkRecords call() throws Exception {
+						SamReader reader = readerQueue.take();
+						try {
+							return scanChunk(reader, chunkStart, chunkEnd, filter);
+						} finally {
+							readerQueue.add(reader);
+						}
+					}
+				}));
+			}
+			ArrayList<SAMRecord> result = new ArrayList<SAMRecord>();
+			SAMRecord boundaryRecord = null;
+			for (Future<ChunkRecords> chunkResult : chunkResults) {
+				ChunkRecords chunkRecords = chunkResult.get();
+				// The previous chunk must have ended exactly at the first record of this one
+				if ((chunkRecords == null)
+						|| ((boundaryRecord != null) && !isSameRecord(boundaryRecord, chunkRecords.firstRecord))) {
+					log.warn("Unmapped reads chunks not aligned with records in "+bamFile.getAbsolutePath()+": reading them sequentially");
+					return null;
+				}
+				result.addAll(chunkRecords.records);
+				boundaryRecord = chunkRecords.boundaryRecord;
+			}
+			return result;
+		} catch (InterruptedException e) {
+			throw new AnalysisException("Interrupted while reading unmapped reads from "+bamFile.getAbsolutePath());
+		} catch (ExecutionException e) {
+			throw new AnalysisException("Error reading unmapped reads from "+bamFile.getAbsolutePath()+": "+e.getCause());
+		} finally {
+			if (executor != null) {
+				// The pooled readers can only go back once no chunk is using them
+				executor.shutdownNow();
+				try {
+					executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			for (SamReader reader : pooledReaders) {
+				SamReaderPool.release(reader);
+			}
+		}
+	}
+
+	/*
+	 * Decodes the records starting from chunkStart (inclusive) up to chunkEnd (exclusive), or to the end of
+	 * the file if chunkEnd is -1. The record starting at chunkEnd is also decoded, and returned as the boundary
+	 * record, so that it can be checked against the first record of the next chunk. Returns null if the
+	 * records cannot be decoded, which happens when chunkStart is not the start of a record.
+	 */
+	private ChunkRecords scanChunk (SamReader reader, long chunkStart, long chunkEnd, UnmappedRecordFilter filter) {
+		long spanEnd = (chunkEnd != -1) ? chunkEnd + 1 : makeFilePointer(bamFile.length(), 0);
+		ChunkRecords chunkRecords = new ChunkRecords();
+		SAMRecord prevRecord = null;
+		SAMRecordIterator it = reader.indexing().iterator(new BAMFileSpan(new Chunk(chunkStart, spanEnd)));
+		try {
+			while (it.hasNext()) {
+				SAMRecord record = it.next();
+				if (prevRecord == null) {
+					chunkRecords.firstRecord = record;
+				} else {
+					addUnmappedRecord(prevRecord, filter, chunkRecords.records);
+				}
+				prevRecord = record;
+			}
+		} catch (RuntimeException e) {
+			return null;
+		} finally {
+			it.close();
+		}
+		if (prevRecord == null) {
+			return null;
+		}
+		if (chunkEnd != -1) {
+			chunkRecords.boundaryRecord = prevRecord;
+		} else {
+			addUnmappedRecord(prevRecord, filter, chunkRecords.records);
+		}
+		return chunkRecords;
+	}
+
+	private static void addUnmappedRecord (SAMRecord record, UnmappedRecordFilter filter, ArrayList<SAMRecord> records) {
+		// Skip the mapped reads at the start of the last linear bin, as queryUnmapped() does
+		if ((record.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) && filter.acceptUnmappedRecord(record)) {
+			records.add(record);
+		}
+	}
+
+	private static boolean isSameRecord (SAMRecord r1, SAMRecord r2) {
+		return r1.getSAMString().equals(r2.getSAMString());
+	}
+
+	private static class ChunkRecords {
+		ArrayList<SAMRecord> records = new ArrayList<SAMRecord>();
+		SAMRecord            firstRecord;
+		SAMRecord            boundaryRecord;
+	}
+
+
+	/* ==========================================================
+	 * Splitting the file into chunks
+	 * ==========================================================
+	 */
+	private long[] findChunkStarts (long startVpos) throws IOException {
+		long startBlock = BlockCompressedFilePointerUtil.getBlockAddress(startVpos);
+		long fileLength = bamFile.length();
+		long tailSize = fileLength - startBlock;
+		int chunkCount = (int)Math.min(threadCount * CHUNKS_PER_THREAD, tailSize / MIN_CHUNK_SIZE);
+		if (chunkCount < 2) {
+			return null;
+		}
+		long chunkSize = tailSize / chunkCount;
+
+		ArrayList<Long> chunkStartList = new ArrayList<Long>();
+		chunkStartList.add(startVpos);
+		RandomAccessFile raf = new RandomAccessFile(bamFile, "r");
+		try {
+			for (int cIdx = 1; cIdx < chunkCount; cIdx++) {
+				long blockAddress = findBlockStart(raf, startBlock + (cIdx * chunkSize), fileLength);
+				while (blockAddress >= 0) {
+					long recordVpos = findRecordStart(raf, blockAddress);
+					if (recordVpos == -2) {
+						// The whole block is taken by a record started earlier: try the next one
+						blockAddress = findBlockStart(raf, blockAddress + 1, fileLength);
+						continue;
+					}
+					if ((recordVpos >= 0) && (recordVpos > chunkStartList.get(chunkStartList.size() - 1))) {
+						chunkStartList.add(recordVpos);
+					}
+					break;
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		if (chunkStartList.size() < 2) {
+			return null;
+		}
+		long[] chunkStarts = new long[chunkStartList.size()];
+		for (int i = 0; i < chunkStarts.length; i++) {
+			chunkStarts[i] = chunkStartList.get(i);
+		}
+		return chunkStarts;
+	}
+
+	/*
+	 * Returns the address of the first BGZF block starting at or after the given file position, or -1 if none.
+	 * A block is only recognized if its header is followed by another block header, or by the end of the file.
+	 */
+	private long findBlockStart (RandomAccessFile raf, long fromPos, long fileLength) throws IOException {
+		byte[] buffer = new byte[2 * MAX_BLOCK_SIZE + BLOCK_HEADER_SIZE];
+		raf.seek(fromPos);
+		int len = readFully(raf, buffer);
+		for (int i = 0; i + BLOCK_HEADER_SIZE <= len; i++) {
+			int blockSize = getBlockSize(buffer, i);
+			if (blockSize < 0) {
+				continue;
+			}
+			long nextBlock = fromPos + i + blockSize;
+			if (nextBlock == fileLength) {
+				return fromPos + i;
+			}
+			if ((i + blockSize + BLOCK_HEADER_SIZE <= len) && (getBlockSize(buffer, i + blockSize) >= 0)) {
+				return fromPos + i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Size of the BGZF block whose header is at the given buffer position, or -1 if there is no header there
+	 */
+	private static int getBlockSize (byte[] b, int i) {
+		if (((b[i] & 0xFF) != 31) || ((b[i+1] & 0xFF) != 139) || (b[i+2] != 8) || (b[i+3] != 4)) {
+			return -1;
+		}
+		if ((getUInt16(b, i + 10) != 6) || (b[i+12] != 'B') || (b[i+13] != 'C') || (getUInt16(b, i + 14) != 2)) {
+			return -1;
+		}
+		return getUInt16(b, i + 16) + 1;
+	}
+
+	/*
+	 * Returns the virtual position of the first record starting in the block at the given address,
+	 * -2 if no record starts in that block, or -1 if no valid record could be found.
+	 */
+	private long findRecordStart (RandomAccessFile raf, long blockAddress) throws IOException {
+		// The uncompressed size of the block is in its last 4 bytes
+		byte[] blockHeader = new byte[BLOCK_HEADER_SIZE];
+		raf.seek(blockAddress);
+		if (readFully(raf, blockHeader) < BLOCK_HEADER_SIZE) {
+			return -1;
+		}
+		int blockSize = getBlockSize(blockHeader, 0);
+		byte[] blockFooter = new byte[4];
+		raf.seek(blockAddress + blockSize - 4);
+		if (readFully(raf, blockFooter) < 4) {
+			return -1;
+		}
+		int firstBlockLen = getInt32(blockFooter, 0);
+
+		byte[] buffer = new byte[SYNC_BUFFER_SIZE];
+		int len = 0;
+		BlockCompressedInputStream in = new BlockCompressedInputStream(bamFile);
+		try {
+			in.seek(makeFilePointer(blockAddress, 0));
+			while (len < buffer.length) {
+				int n = in.read(buffer, len, buffer.length - len);
+				if (n < 0) {
+					break;
+				}
+				len += n;
+			}
+		} finally {
+			in.close();
+		}
+		for (int offset = 0; offset < firstBlockLen; offset++) {
+			if (isRecordChain(buffer, offset, len)) {
+				return makeFilePointer(blockAddress, offset);
+			}
+		}
+		return (firstBlockLen < len) ? -2 : -1;
+	}
+
+	/*
+	 * True if a valid record starts at the offset, followed by valid records up to the chain length
+	 * or the end of the buffer
+	 */
+	private boolean isRecordChain (byte[] b, int offset, int len) {
+		int recordCount = 0;
+		while (recordCount < SYNC_CHAIN_LENGTH) {
+			if (offset + 4 > len) {
+				break;
+			}
+			int blockSize = getInt32(b, offset);
+			if ((blockSize < 32) || (blockSize > MAX_RECORD_SIZE)) {
+				return false;
+			}
+			if (offset + 4 + blockSize > len) {
+				// Only check the fixed-size fields of a record that does not fit in the buffer
+				return (recordCount > 0) && isValidRecordStart(b, offset, blockSize, len);
+			}
+			if (!isValidRecordStart(b, offset, blockSize, len)) {
+				return false;
+			}
+			recordCount++;
+			offset += 4 + blockSize;
+		}
+		return recordCount > 0;
+	}
+
+	private boolean isValidRecordStart (byte[] b, int offset, int blockSize, int len) {
+		if (offset + 36 > len) {
+			return true;
+		}
+		int refId = getInt32(b, offset + 4);
+		int pos = getInt32(b, offset + 8);
+		int readNameLen = b[offset + 12] & 0xFF;
+		int cigarLen = getUInt16(b, offset + 16);
+		int seqLen = getInt32(b, offset + 20);
+		int nextRefId = getInt32(b, offset + 24);
+		int nextPos = getInt32(b, offset + 28);
+		if ((refId < -1) || (refId >= referenceCount) || (pos < -1)
+				|| (nextRefId < -1) || (nextRefId >= referenceCount) || (nextPos < -1)
+				|| (readNameLen < 1) || (seqLen < 0)) {
+			return false;
+		}
+		long minSize = 32L + readNameLen + (4L * cigarLen) + ((seqLen + 1) / 2) + seqLen;
+		if (blockSize < minSize) {
+			return false;
+		}
+		// The read name must be printable, and NUL-terminated
+		int nameStart = offset + 36;
+		if (nameStart + readNameLen > len) {
+			return true;
+		}
+		for (int i = 0; i < readNameLen - 1; i++) {
+			int c = b[nameStart + i] & 0xFF;
+			if ((c < 33) || (c > 126)) {
+				return false;
+			}
+		}
+		return b[nameStart + readNameLen - 1] == 0;
+	}
+
+	private static long makeFilePointer (long blockAddress, int blockOffset) {
+		return (blockAddress << 16) | blockOffset;
+	}
+
+	private static int getUInt16 (byte[] b, int i) {
+		return (b[i] & 0xFF) | ((b[i+1] & 0xFF) << 8);
+	}
+
+	private static int getInt32 (byte[] b, int i) {
+		return (b[i] & 0xFF) | ((b[i+1] & 0xFF) << 8) | ((b[i+2] & 0xFF) << 16) | ((b[i+3] & 0xFF) << 24);
+	}
+
+	private static int readFully (RandomAccessFile raf, byte[] buffer) throws IOException {
+		int len = 0;
+		while (len < buffer.length) {
+			int n = raf.read(buffer, len, buffer.length - len);
+			if (n < 0) {
+				break;
+			}
+			len += n;
+		}
+		return len;
+	}
+}
@@ -7,13 +7,12 @@ public class Read {
 	public static final int ANCHORED = 2;
 	public static final int UNMAPPED = 3;
 
-	private String  id;
-	private String  sequence;
-	private String  quality;
-	private int     startPos;
-	private String  samString;
-	private boolean isReversed;
-	private int     mappingStatus;
+	private ReadSource source;
+	private byte[]     bases;
+	private byte[]     qualities;		// Phred scores
+	private int        startPos;
+	private boolean    isReversed;
+	private int        mappingStatus;
 	
 	public static Read createMappedRead (ReadSource readSrc, Locus locus, int readStartPos) {
 		return new Read (readSrc, locus, readStartPos, MAPPED);
@@ -24,16 +23,11 @@ public class Read {
 	}
 	
 	private Read(ReadSource readSrc, Locus locus, int readStartPos, int mappingStatus) {
-		this.id = readSrc.getId();
-		this.sequence = readSrc.getSequence();
-		this.quality = readSrc.getQuality();
+		this.source = readSrc;
+		this.bases = readSrc.getBases();
+		this.qualities = readSrc.getQualities();
 		this.startPos = readStartPos;
 		this.isReversed = readSrc.isReversed();
-		// Trim SAM string line terminator if there is one
-		this.samString = readSrc.getSamString();
-		if (samString.charAt(samString.length()-1) == '\n') { 
-			samString = samString.substring(0, samString.length()-1);
-		}
 		setMappingStatus (mappingStatus);
 	}
 	
@@ -46,30 +40,44 @@ public class Read {
 		this.mappingStatus = mappingStatus;
 	}
 	
-	public void updateSequence (String sequence, String quality) {
-		this.sequence = sequence;
-		this.quality = quality;
+	public void updateSequence (byte[] bases, byte[] qualities) {
+		this.bases = bases;
+		this.qualities = qualities;
 	}
 	
 	public String getId() {
-		return id;
+		return source.getId();
 	}
 
-	public String getSequence() {
-		return sequence;
+	public byte[] getBases() {
+		return bases;
 	}
 
+	public byte[] getQualities() {
+		return qualities;
+	}
 
-	public String getQuality() {
-		return quality;
+	public int getLength() {
+		return bases.length;
+	}
+
+	/*
+	 * Creates a new String each time: use getBases() when processing many reads
+	 */
+	public String getSequence() {
+		return new String(bases, java.nio.charset.StandardCharsets.US_ASCII);
 	}
 
 	public int getStartPos() {
 		return startPos;
 	}
 
+	/*
+	 * The SAM text line of the original record, or null if the reads were retrieved
+	 * without keeping their SAM lines (see LocusAnalysisConfig.getOutputSamReads())
+	 */
 	public String getSamString() {
-		return samString;
+		return source.getSamString();
 	}
 
 	public boolean isReversed() {
@@ -81,8 +89,7 @@ public class Read {
 	}
 	
 	public int getPhredScore (int offset) {
-		int phredCode = quality.charAt(offset);
-		return (phredCode - 33);
+		return qualities[offset];
 	}
 }
 
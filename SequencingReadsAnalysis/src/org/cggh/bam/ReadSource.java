@@ -2,22 +2,38 @@ package org.cggh.bam;
 
 import htsjdk.samtools.SAMRecord;
 
+/*
+ * The parts of a BAM record that a read needs. Bases and qualities are taken from the record as
+ * byte arrays, without copying, and the record itself is not kept; the SAM text line is only
+ * built when the reads are going to be written out.
+ */
 public class ReadSource {
-	
+
 	private String  id;
-	private String  sequence;
-	private String  quality;
-	private String  samString;
 	private boolean isReversed;
+	private byte[]  bases;
+	private byte[]  qualities;
+	private String  samString;
 
 	public ReadSource(SAMRecord record) {
+		this(record, false);
+	}
+
+	public ReadSource(SAMRecord record, boolean keepSamString) {
 		this.id = record.getReadName();
-		this.sequence = record.getReadString();
-		this.quality = record.getBaseQualityString();
 		this.isReversed = record.getReadNegativeStrandFlag();
-		this.samString = record.getSAMString();
-		if (samString.charAt(samString.length()-1) == '\n') { 
-			samString = samString.substring(0, samString.length()-1);
+		this.bases = record.getReadBases();
+		this.qualities = record.getBaseQualities();
+		if (qualities.length != bases.length) {
+			// Missing qualities ('*'): treat all bases as low quality
+			qualities = new byte[bases.length];
+		}
+		if (keepSamString) {
+			// Trim SAM string line terminator if there is one
+			samString = record.getSAMString();
+			if (samString.charAt(samString.length()-1) == '\n') {
+				samString = samString.substring(0, samString.length()-1);
+			}
 		}
 	}
 
@@ -25,14 +41,17 @@ public class ReadSource {
 		return id;
 	}
 
-	public String getSequence() {
-		return sequence;
+	public byte[] getBases() {
+		return bases;
 	}
 
-	public String getQuality() {
-		return quality;
+	public byte[] getQualities() {
+		return qualities;
 	}
 
+	/*
+	 * Null unless the SAM line was kept when the read was created
+	 */
 	public String getSamString() {
 		return samString;
 	}
@@ -1,7 +1,6 @@
 package org.cggh.bam;
 
 import org.cggh.bam.target.TargetAnalysisConfig;
-import org.cggh.common.exceptions.*;
 import org.cggh.common.sequence.*;
 import java.util.*;
 
@@ -13,40 +12,35 @@ public class ReadsAlignment {
 		ReadsAlignment.maxReadMismatches  = config.getMaxReadMismatches();	
 	}
 	
+	/*
+	 * Alignments are made by a ReadsAlignmentBuilder, as the reads are retrieved. The alignment is not
+	 * stored as a matrix of reads by positions: the aligned sequence of a read is only built if requested.
+	 */
 	private Locus    locus;
 	private Sample   sample;
+	private Read[]   sampleReads;
 	private Read[]   alignedReads;
 	private Read[]   misalignedReads;
 	private int      alignStart;
 	private int      readCount;
 	private int      alignLen;
-	private char[][] alignment;
-	private char[]   consensus;
+	private byte[]   consensus;
 	private int[]    differences;
 	private Sequence referenceSequence;
 
-	public ReadsAlignment (Sample sample, Locus locus, Read[] sampleReads) throws AnalysisException {
+	ReadsAlignment (Sample sample, Locus locus, Read[] sampleReads, int alignStart, int alignLen, byte[] consensus, int[] differences, Sequence referenceSequence) {
 		this.sample = sample;
 		this.locus = locus;
-		//log.info("Start alignment building");
-
-		// Align all reads according to their anchor position
-		readCount = sampleReads.length;
+		this.sampleReads = sampleReads;
+		this.readCount = sampleReads.length;
 		if (readCount == 0) {
 			return;
 		}
-		alignment = makeAlignment (sampleReads, locus);
-		//log.info("Alignment built");
-		
-        // Get a reference sequence as comparator
-		referenceSequence = retrieveReferenceSequence();
-		
-		// Get the consensus sequence for this alignment
-		consensus = computeConsensus();
-		//log.info("Computed consensus: "+new String(consensus));
-		
-		// Determine how good is the alignment of each read
-		differences = countDifferencesFromConsensus ();
+		this.alignStart = alignStart;
+		this.alignLen = alignLen;
+		this.consensus = consensus;
+		this.differences = differences;
+		this.referenceSequence = referenceSequence;
 		
 		ArrayList<Read> alignedReadList = new ArrayList<Read>(sampleReads.length);
 		ArrayList<Read> misalignedReadList = new ArrayList<Read>();
@@ -65,6 +59,10 @@ public class ReadsAlignment {
 		return sample;
 	}
 
+	public Locus getLocus() {
+		return locus;
+	}
+
 	public Read[] getAllMappedReads() {
 		Read[] sampleReads = new Read[alignedReads.length+misalignedReads.length];
 		System.arraycopy(alignedReads, 0, sampleReads, 0, alignedReads.length);
@@ -96,138 +94,28 @@ public class ReadsAlignment {
 		return alignLen;
 	}
 
-	public String getAlignedReadSequence(int rIdx) {
-		return new String(alignment[rIdx]);
+	public String getConsensusSequence() {
+		return new String(consensus, java.nio.charset.StandardCharsets.US_ASCII);
 	}
 
-	private int[] countDifferencesFromConsensus () {
-		int[] diffs = new int[readCount];
-		for (int rIdx = 0; rIdx < readCount; rIdx++) {
-			diffs[rIdx] = 0;
-			for (int i = 0; i < alignLen; i++) {
-				char nt = alignment[rIdx][i];
-				if ((nt != '-') && (nt != consensus[i])) {
-					diffs[rIdx]++;
-				}
-			}
+	/*
+	 * The sequence of a read as it is placed in the alignment, with gaps where it has no coverage
+	 */
+	public String getAlignedReadSequence(int rIdx) {
+		char[] alignedSeq = new char[alignLen];
+		Arrays.fill(alignedSeq, '-');
+		Read sr = sampleReads[rIdx];
+		byte[] seq = sr.getBases();
+		int fromIdx = Math.max(0, alignStart - sr.getStartPos());
+		int toIdx = Math.min(seq.length, alignStart + alignLen - sr.getStartPos()) - 1;
+		int posIdx = sr.getStartPos() + fromIdx - alignStart;
+		for (int i = fromIdx; i <= toIdx; i++, posIdx++) {
+			alignedSeq[posIdx] = (char)seq[i];
 		}
-		return diffs;
+		return new String(alignedSeq);
 	}
 	
 	public boolean hasTooManyDifferences (int rIdx) {
 		return (differences[rIdx] > maxReadMismatches);
 	}
-
-	private char[][] makeAlignment (Read[] sampleReads, Locus locus) {
-		// Compute the maximum extent of the alignemnt
-		int alignEnd = alignStart = Integer.MIN_VALUE;
-		for (int rIdx = 0; rIdx < sampleReads.length; rIdx++) {
-			Read sr = sampleReads[rIdx];
-			int rStart = sr.getStartPos();
-			int rEnd = rStart + sr.getSequence().length() - 1;
-			if (rIdx == 0) {
-				alignStart = rStart;
-				alignEnd = rEnd;
-			} else {
-				alignStart = (alignStart < rStart) ? alignStart : rStart;
-				//if (rStart < 1) { System.out.println("Here"); } // This may happen sometimes in amplicons
-				alignEnd = (alignEnd > rEnd) ? alignEnd : rEnd;
-			}
-		}
-		
-		// Trim the alignment to fit in the locus region being investigated
-		int locusStart = locus.getReadSearchInterval().getStartPos();
-		int locusEnd   = locus.getReadSearchInterval().getStopPos();
-		// Include rare case (typically with 1 read only) where the alignment is completely outside the locus
-		if ((alignStart < locusStart) || (alignStart > locusEnd)) {
-			alignStart = locusStart;
-		}
-		if ((alignEnd > locusEnd) || (alignEnd < locusStart)) {
-			alignEnd = locusEnd;
-		}
-		
-		// Create an array for storing the alignments+
-		alignLen = 1 + alignEnd - alignStart;
-		char[][] result = new char[readCount][alignLen];
-		
-		// Write the read sequences in the right places
-		for (int rIdx = 0; rIdx < readCount; rIdx++) {
-			Arrays.fill(result[rIdx], '-');
-			Read sr = sampleReads[rIdx];
-			String seq = sr.getSequence();
-			for (int i = 0; i < seq.length(); i++) {
-				int pos = (sr.getStartPos() + i);
-				if ((pos < alignStart) || (pos > alignEnd)) {
-					continue;
-				}
-				int posIdx = (pos - alignStart);
-				result[rIdx][posIdx] = seq.charAt(i);
-			}
-		}
-		return result;
-	}
-	
-	private Sequence retrieveReferenceSequence () throws AnalysisException {
-		if (readCount == 0) {
-			return null;
-		}
-		String chrName = locus.getReadSearchInterval().getChromosome();
-		Sequence chrSeq = ReferenceGenome.getChrSequence(chrName);
-		String refSeq = chrSeq.getData().substring(alignStart-1, alignStart+alignLen-1);
-		String refSeqTitle = "REF|"+chrName+":"+alignStart+"-"+(alignStart+alignLen-1);
-		return new Sequence(refSeqTitle, refSeq);
-	}
-	
-	
-	private char[] computeConsensus () {
-		char[] result = new char[alignLen];
-		int[] ntCounts = new int[4];
-		for (int i = 0; i < alignLen; i++) {
-			ntCounts[0] = ntCounts[1] = ntCounts[2] = ntCounts[3] = 0;
-			for (int j = 0; j < readCount; j++) {
-				char nt = alignment[j][i];
-				if ((nt != '-') && (nt != 'N')) {
-					int ntIdx = nt2Index (nt);
-					ntCounts[ntIdx]++;
-				}
-			}
-			result[i] = getMajorityAllele (ntCounts);
-		}
-		return result;
-	}
-	
-	private char getMajorityAllele (int[] ntCounts) {
-		return (index2Nt(getMajorityIndex(ntCounts)));
-	}
-	
-	private int getMajorityIndex (int[] ntCounts) {
-		int mCount = -1;
-		int mIdx = -1;
-		for (int i = 0; i < 4; i++) {
-			if (ntCounts[i] > mCount) {
-				mIdx = i;
-				mCount = ntCounts[i];
-			}
-		}
-		return mIdx;
-	}
-	
-	private int nt2Index (char nt) {
-		switch (nt) {
-		case 'A': return 0;
-		case 'C': return 1;
-		case 'G': return 2;
-		case 'T': return 3;
-		}
-		return -1;
-	}
-	private char index2Nt (int index) {
-		switch (index) {
-		case 0: return 'A';
-		case 1: return 'C';
-		case 2: return 'G';
-		case 3: return 'T';
-		}
-		return (char)0;
-	}
 }
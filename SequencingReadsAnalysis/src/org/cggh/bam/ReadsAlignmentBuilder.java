@@ -0,0 +1,196 @@
+package org.cggh.bam;
+
+import org.cggh.common.exceptions.*;
+import org.cggh.common.genome.*;
+import org.cggh.common.sequence.*;
+import java.util.*;
+
+
+/*
+ * Builds the alignment of the reads at a locus while the reads are being retrieved.
+ *
+ * As each read is added, its bases are counted at each position of the locus search interval,
+ * and only the positions where the read differs from the reference are kept. Once all the reads
+ * have been added, the consensus is called from the counts, and the number of differences of each
+ * read from consensus is worked out from its differences from the reference: at the positions
+ * where the read matches the reference, the read differs from consensus wherever the consensus
+ * differs from the reference. So the alignment memory grows with the locus length, plus a few
+ * bytes for each difference from the reference, rather than with reads x positions.
+ */
+public class ReadsAlignmentBuilder {
+
+	private static final int    NT_COUNT = 4;
+	private static final byte[] NT_INDEX = new byte[256];
+	private static final byte[] INDEX_NT = { 'A', 'C', 'G', 'T' };
+	static {
+		Arrays.fill(NT_INDEX, (byte)-1);
+		NT_INDEX['A'] = 0;
+		NT_INDEX['C'] = 1;
+		NT_INDEX['G'] = 2;
+		NT_INDEX['T'] = 3;
+	}
+
+	private Sample   sample;
+	private Locus    locus;
+	private String   chrName;
+	private int      windowStart;
+	private int      windowLen;
+	private byte[]   windowRef;
+	private int[]    ntCounts;
+
+	private ArrayList<Read> readList = new ArrayList<Read>();
+	private int      minReadStart = Integer.MAX_VALUE;
+	private int      maxReadEnd = Integer.MIN_VALUE;
+
+	// Differences from reference of all the reads, stored one read after the other: the differences
+	// of read rIdx are at indexes readDiffStart[rIdx] (inclusive) to readDiffStart[rIdx+1] (exclusive)
+	private int[]    readDiffStart = new int[64];
+	private int[]    diffPos = new int[256];
+	private byte[]   diffNt = new byte[256];
+	private int      diffCount = 0;
+
+	public ReadsAlignmentBuilder (Sample sample, Locus locus) throws AnalysisException {
+		this.sample = sample;
+		this.locus = locus;
+		GenomeRegion window = locus.getReadSearchInterval();
+		this.chrName = window.getChromosome();
+		this.windowStart = window.getStartPos();
+		this.windowLen = 1 + window.getStopPos() - windowStart;
+		String windowSeq = ReferenceGenome.getRegionSequence(chrName, windowStart, windowStart+windowLen-1);
+		this.windowRef = windowSeq.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+		this.ntCounts = new int[windowLen * NT_COUNT];
+	}
+
+	public ReadsAlignmentBuilder (Sample sample, Locus locus, Read[] sampleReads) throws AnalysisException {
+		this (sample, locus);
+		for (int rIdx = 0; rIdx < sampleReads.length; rIdx++) {
+			addRead(sampleReads[rIdx]);
+		}
+	}
+
+	public Sample getSample() {
+		return sample;
+	}
+
+	public Locus getLocus() {
+		return locus;
+	}
+
+	public int getReadCount() {
+		return readList.size();
+	}
+
+	public void addRead (Read sr) {
+		int rStart = sr.getStartPos();
+		byte[] seq = sr.getBases();
+		minReadStart = Math.min(minReadStart, rStart);
+		maxReadEnd = Math.max(maxReadEnd, rStart + seq.length - 1);
+
+		int rIdx = readList.size();
+		readList.add(sr);
+		if (rIdx + 1 >= readDiffStart.length) {
+			readDiffStart = Arrays.copyOf(readDiffStart, 2 * readDiffStart.length);
+		}
+		readDiffStart[rIdx] = diffCount;
+
+		// Only the bases within the locus search interval can be part of the alignment
+		int fromIdx = Math.max(0, windowStart - rStart);
+		int toIdx = Math.min(seq.length, windowStart + windowLen - rStart) - 1;
+		int posIdx = rStart + fromIdx - windowStart;
+		for (int i = fromIdx; i <= toIdx; i++, posIdx++) {
+			byte nt = seq[i];
+			int ntIdx = NT_INDEX[nt & 0xFF];
+			if (ntIdx >= 0) {
+				ntCounts[posIdx * NT_COUNT + ntIdx]++;
+			}
+			if (nt != windowRef[posIdx]) {
+				addDifference(posIdx, nt);
+			}
+		}
+		readDiffStart[rIdx + 1] = diffCount;
+	}
+
+	private void addDifference (int posIdx, byte nt) {
+		if (diffCount == diffPos.length) {
+			diffPos = Arrays.copyOf(diffPos, 2 * diffPos.length);
+			diffNt = Arrays.copyOf(diffNt, 2 * diffNt.length);
+		}
+		diffPos[diffCount] = posIdx;
+		diffNt[diffCount] = nt;
+		diffCount++;
+	}
+
+	/*
+	 * Calls the consensus and counts the differences of each read from it, to split aligned and misaligned reads
+	 */
+	public ReadsAlignment build () throws AnalysisException {
+		Read[] sampleReads = readList.toArray(new Read[readList.size()]);
+		int readCount = sampleReads.length;
+		if (readCount == 0) {
+			return new ReadsAlignment(sample, locus, sampleReads, 0, 0, null, null, null);
+		}
+
+		// Compute the maximum extent of the alignment, trimmed to fit in the locus region being investigated
+		int alignStart = minReadStart;
+		int alignEnd = maxReadEnd;
+		int locusStart = windowStart;
+		int locusEnd   = windowStart + windowLen - 1;
+		// Include rare case (typically with 1 read only) where the alignment is completely outside the locus
+		if ((alignStart < locusStart) || (alignStart > locusEnd)) {
+			alignStart = locusStart;
+		}
+		if ((alignEnd > locusEnd) || (alignEnd < locusStart)) {
+			alignEnd = locusEnd;
+		}
+		int alignLen = 1 + alignEnd - alignStart;
+		int alignOffset = alignStart - windowStart;
+
+		// Get the consensus (the first nucleotide in ACGT order, in case of ties), and count
+		// the consensus differences from reference up to each position
+		byte[] consensus = new byte[alignLen];
+		int[] consDiffsBefore = new int[alignLen + 1];
+		for (int i = 0; i < alignLen; i++) {
+			int countIdx = (alignOffset + i) * NT_COUNT;
+			int mIdx = 0;
+			for (int ntIdx = 1; ntIdx < NT_COUNT; ntIdx++) {
+				if (ntCounts[countIdx + ntIdx] > ntCounts[countIdx + mIdx]) {
+					mIdx = ntIdx;
+				}
+			}
+			consensus[i] = INDEX_NT[mIdx];
+			consDiffsBefore[i + 1] = consDiffsBefore[i] + ((consensus[i] != windowRef[alignOffset + i]) ? 1 : 0);
+		}
+
+		// Count the differences of each read from consensus
+		int[] differences = new int[readCount];
+		for (int rIdx = 0; rIdx < readCount; rIdx++) {
+			Read sr = sampleReads[rIdx];
+			int fromIdx = Math.max(sr.getStartPos(), alignStart) - alignStart;
+			int toIdx = Math.min(sr.getStartPos() + sr.getLength() - 1, alignEnd) - alignStart;
+			if (fromIdx > toIdx) {
+				continue;
+			}
+			// Assume the read matches the reference everywhere, then correct at its differences from reference
+			int diffs = consDiffsBefore[toIdx + 1] - consDiffsBefore[fromIdx];
+			for (int dIdx = readDiffStart[rIdx]; dIdx < readDiffStart[rIdx + 1]; dIdx++) {
+				int i = diffPos[dIdx] - alignOffset;
+				if ((i < fromIdx) || (i > toIdx)) {
+					continue;
+				}
+				if (consensus[i] != windowRef[alignOffset + i]) {
+					diffs--;
+				}
+				byte nt = diffNt[dIdx];
+				if ((nt != '-') && (nt != consensus[i])) {
+					diffs++;
+				}
+			}
+			differences[rIdx] = diffs;
+		}
+
+		String refSeq = new String(windowRef, alignOffset, alignLen, java.nio.charset.StandardCharsets.US_ASCII);
+		String refSeqTitle = "REF|"+chrName+":"+alignStart+"-"+alignEnd;
+		Sequence referenceSequence = new Sequence(refSeqTitle, refSeq);
+		return new ReadsAlignment(sample, locus, sampleReads, alignStart, alignLen, consensus, differences, referenceSequence);
+	}
+}
@@ -70,9 +70,12 @@ public class ReadsAlignmentWriter {
 		sb.append('\n');
 		sb.append(BAM_COMMENT_PREFIX+"Flag\tRefName\tPos\tMapQ\tCigar\tRefNext\tPosNext\tTmplLen\tSeq\tQual");
 		for (int rIdx = 0; rIdx < mappedReads.length; rIdx++) {
-			Read sr = mappedReads[rIdx];
+			String samString = mappedReads[rIdx].getSamString();
+			if (samString == null) {
+				continue;
+			}
 			sb.append('\n');
-			sb.append(sr.getSamString());
+			sb.append(samString);
 			samOut.commitIfBufferFull();
 		}
 		samOut.close();
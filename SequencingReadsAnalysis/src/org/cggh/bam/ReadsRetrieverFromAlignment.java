@@ -5,20 +5,20 @@ import org.apache.commons.logging.LogFactory;
 import org.cggh.common.exceptions.*;
 import org.cggh.common.genome.*;
 import htsjdk.samtools.*;
+import htsjdk.samtools.util.SequenceUtil;
 import java.util.*;
-import java.util.regex.*;
 
 
-public class ReadsRetrieverFromAlignment implements ReadsRetriever {
+public class ReadsRetrieverFromAlignment implements ReadsRetriever, SampleReadsCollector, UnmappedRecordFilter {
 	
 	protected static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
 
 	private Locus[]           loci;
 	private boolean           analyzeUnmappedReads;
-	private int               maxIndelSize;
 	private boolean           useAlignment;
-
-	private SamReaderFactory  samReaderFactory = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT);
+	private boolean           keepSamStrings;
+	private CigarProjector    cigarProjector;
+	private AnchorIndex       anchorIndex;
 	
 	
 	/* ==========================================================
@@ -30,7 +30,9 @@ public class ReadsRetrieverFromAlignment implements ReadsRetriever {
 		this.loci = config.getLoci();
 		this.useAlignment = config.getUseBamAlignment();
 		this.analyzeUnmappedReads = config.getAnalyzeUnmappedReads();
-		this.maxIndelSize = config.getMaxIndelSize();
+		this.keepSamStrings = config.getOutputSamReads();
+		this.cigarProjector = new CigarProjector(config.getMaxIndelSize());
+		this.anchorIndex = new AnchorIndex(loci);
 		
 		// Verify we only have single search intervals for alignment-based tasks
 		if (useAlignment) {
@@ -44,186 +46,224 @@ public class ReadsRetrieverFromAlignment implements ReadsRetriever {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	public ArrayList<Read>[] retrieveSampleReads (Sample sample) throws AnalysisException  {
-		// Read the reads from the SAM file
-		ArrayList<Read>[] readLists = new ArrayList[loci.length];
-		
-		for (int i = 0; i < loci.length; i++) {
-			Locus locus = loci[i];
-			readLists[i] = new ArrayList<Read>();
-			GenomeRegion[] searchIntervals = locus.getReadSearchIntervals();
-			for (int j = 0; j < searchIntervals.length; j++) {
-				GenomeRegion interval = searchIntervals[j];
-				getMappedLocusReads (sample, locus, interval, readLists[i], useAlignment);
-			}
-		}
-		
-		// Then search unmapped reads (this does not necessarily find them all, but will do)
-		if (analyzeUnmappedReads) {
-			getUnmappedLocusReads (sample, loci, readLists);
-		}
-		
+		// Read the mapped reads from the SAM file in a single pass over all loci, then search 
+		// unmapped reads (this does not necessarily find them all, but will do)
+		SampleReadsScanner.scanSample(sample, this);
 		return readLists;
 	}
 	
-	private boolean initialized = false;
+	/* ==========================================================
+	 * Collection of the sample reads. The retriever is itself a
+	 * collector, so that the reads can be gathered during a pass
+	 * over the BAM shared with other analyses.
+	 * ==========================================================
+	 */
+	private boolean               initialized = false;
+	private Sample                sample;
+	private ArrayList<Read>[]     readLists;
+	private LocusSearchInterval[] locusIntervals;
+	
+	public Sample getSample () {
+		return sample;
+	}
 	
-	private void getMappedLocusReads (Sample sample, Locus locus, GenomeRegion readSearchInterval, ArrayList<Read> readsList, boolean useAlignment) throws AnalysisException {
-		SamReader samReader = samReaderFactory.open(sample.getBamFile());
-		String chrName = readSearchInterval.getChromosome();
-
+	public ArrayList<Read>[] getReadLists () {
+		return readLists;
+	}
+	
+	public Locus[] getLoci () {
+		return loci;
+	}
+	
+	/*
+	 * Called for each read retrieved at a locus. Subclasses can override this to process
+	 * the reads as they come, rather than collecting them in the locus read lists.
+	 */
+	protected void addLocusRead (int lIdx, Read read) throws AnalysisException {
+		readLists[lIdx].add(read);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public void startSample (Sample sample, SAMFileHeader header) throws AnalysisException {
 		if (!initialized) {
 			log.info("Chromosome names from BAM header:");
-	        int refCont = samReader.getFileHeader().getSequenceDictionary().size();
+	        int refCont = header.getSequenceDictionary().size();
 			for (int i = 0; i < refCont; i++) {
-				log.info(samReader.getFileHeader().getSequence(i));
+				log.info(header.getSequence(i));
 			}
 			initialized = true;
 		}
-		
-		int seqIndex = samReader.getFileHeader().getSequenceIndex(chrName);
-		while (seqIndex < 0) {
-			throw new AnalysisException("At locus"+locus.getName()+" could not find chromosome "+chrName+" in the alignment for sample "+sample.getName());
+		this.sample = sample;
+		this.locusIntervals = getLocusSearchIntervals (sample, header);
+		this.readLists = new ArrayList[loci.length];
+		for (int i = 0; i < loci.length; i++) {
+			readLists[i] = new ArrayList<Read>();
 		}
-		
-		SAMRecordIterator it = samReader.query(chrName, readSearchInterval.getStartPos(), readSearchInterval.getStopPos(), true);
-		while (it.hasNext()) {
-			SAMRecord record = it.next();
-			// This will ignore all secondary and supplementary alignments, reads not passing vendor filters, as well as any duplicates
-			if (record.getFlags() >= 256) {
-				continue;
+	}
+	
+	public GenomeRegion[] getSearchRegions () {
+		ArrayList<GenomeRegion> regionList = new ArrayList<GenomeRegion>();
+		for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+			regionList.addAll(Arrays.asList(loci[lIdx].getReadSearchIntervals()));
+		}
+		return regionList.toArray(new GenomeRegion[regionList.size()]);
+	}
+	
+	public boolean needsUnmappedReads () {
+		return analyzeUnmappedReads;
+	}
+	
+	/*
+	 * Each mapped record is dispatched to every locus search interval that contains it.
+	 */
+	public void processMappedRecord (SAMRecord record) throws AnalysisException {
+		// This will ignore all secondary and supplementary alignments, reads not passing vendor filters, as well as any duplicates
+		if (record.getFlags() >= 256) {
+			return;
+		}
+		int refIdx = record.getReferenceIndex();
+		int recordStart = record.getAlignmentStart();
+		int recordEnd = SampleReadsScanner.getRecordEnd(record);
+		for (int i = 0; i < locusIntervals.length; i++) {
+			// Only take reads fully contained in the search interval
+			QueryInterval interval = locusIntervals[i].queryInterval;
+			if ((interval.referenceIndex == refIdx) && (recordStart >= interval.start) && (recordEnd <= interval.end)) {
+				int lIdx = locusIntervals[i].locusIdx;
+				processLocusRecord (record, lIdx);
 			}
-			
-			if (useAlignment) { 
-				// Use the BAM alignment to do an initial mapping of the read
-				Read sr = Read.createMappedRead(new ReadSource(record), locus, record.getAlignmentStart());
-				
-				// Unless the read is mapped "as is" (e.g. CIGAR string is something like "150M"), 
-				// process the CIGAR to refine mapping against the reference
-				if ((record.getCigarLength() > 1) || (!record.getCigarString().endsWith("M"))) {
-					try {
-						applyCigar (sr, record.getCigar());
-					} catch (CigarException e) {
-						sr.unmap();
-					}
-				}
-				
-				// If the mapping is still valid after applying CIGAR, use the alignment.
-				// If not, take the ungapped read, and treat it as if unmapped, try to find an anchor
-				if (sr.getMappingStatus() == Read.MAPPED) {
-					readsList.add(sr);
-				} else if (analyzeUnmappedReads) {
-					@SuppressWarnings("unused")
-					boolean matched = matchReadAtLocus (record, locus, readsList);
-				}
-			} else {
-				// Do not use the BAM alignment, just find an anchor.
-				@SuppressWarnings("unused")
-				boolean matched = matchReadAtLocus (record, locus, readsList);
+		}
+	}
+	
+	public void processUnmappedRecord (SAMRecord record) throws AnalysisException {
+		// Look for the anchors of all loci in a single scan of the read, then of its reverse complement
+		byte[] bases = record.getReadBases();
+		boolean matched = matchUnmappedRead (record, anchorIndex.match(bases));
+		if (!matched) {
+			byte[] rcBases = Arrays.copyOf(bases, bases.length);
+			SequenceUtil.reverseComplement(rcBases);
+			AnchorIndex.AnchorMatches rcMatches = anchorIndex.match(rcBases);
+			if (rcMatches.hasMatch()) {
+				// Reverse complement a copy, since the record may also be used by other collectors
+				SAMRecord rcRecord = record.deepCopy();
+				rcRecord.reverseComplement();
+				matchUnmappedRead (rcRecord, rcMatches);
 			}
 		}
-		it.close();
 	}
-
-	private static class CigarException extends AnalysisException {
-	    public CigarException (String msg) {
-	        super (msg);
-	    }
+	
+	/*
+	 * Called by the threads scanning the unmapped reads in parallel: only the reads that contain
+	 * an anchor, on either strand, are then passed to processUnmappedRecord()
+	 */
+	public boolean acceptUnmappedRecord (SAMRecord record) {
+		byte[] bases = record.getReadBases();
+		if (anchorIndex.match(bases).hasMatch()) {
+			return true;
+		}
+		byte[] rcBases = Arrays.copyOf(bases, bases.length);
+		SequenceUtil.reverseComplement(rcBases);
+		return anchorIndex.match(rcBases).hasMatch();
 	}
 	
-	private void applyCigar(Read sr, Cigar cigar) throws CigarException {
-		String sequence = sr.getSequence();
-		String quality = sr.getQuality();
-		
-		StringBuffer sequenceSb = new StringBuffer(sequence.length());
-		StringBuffer qualitySb = new StringBuffer(quality.length());
-		
-		int seqPos = 0;
-		List<CigarElement> ceList = cigar.getCigarElements();
-		for (CigarElement ce : ceList) {
-			CigarOperator op = ce.getOperator();
-			int len = ce.getLength();
-			if (op.isIndel() && (len > maxIndelSize)) {
-				throw new CigarException ("Found large indel: "+len+op.name());
-			}
-			if (op.isAlignment()) {							// M, =, X
-				// Keep all matched positions
-				sequenceSb.append(sequence.substring(seqPos, seqPos+len));
-				qualitySb.append(quality.substring(seqPos, seqPos+len));
-				seqPos += len;
-			} else if (op == CigarOperator.INSERTION) {		// I
-				// Skip insertions, since they do not map against the reference
-				seqPos += len;
-			} else if (op == CigarOperator.DELETION) {		// D
-				// Insert gaps for deletions
-				for (int i = 0; i < len; i++) {
-					sequenceSb.append('-');
-					qualitySb.append('0');
-				}
-			} else if (op == CigarOperator.SOFT_CLIP) {		// S
-				// Skip soft clips, start position should not change
-				seqPos += len;
-			} else if (op == CigarOperator.HARD_CLIP) {		// H
-				// Ignore hard clips, they are not in the sequence
-			} else if (op == CigarOperator.SKIPPED_REGION) { // N
-				// This really should not happen!
-				throw new CigarException ("Found skipped region in CIGAR string- could not process");
-			} else if (op == CigarOperator.PADDING) {		// P
-				// Insert gaps for padding, though it should not happen at all
-				for (int i = 0; i < len; i++) {
-					sequenceSb.append('-');
-					qualitySb.append(' ');
+	public String[] getFilterPatterns () {
+		return anchorIndex.getAnchorPatterns();
+	}
+	
+	public void completeSample () throws AnalysisException {
+		// Nothing to do here: the reads are returned to the caller
+	}
+	
+	private LocusSearchInterval[] getLocusSearchIntervals (Sample sample, SAMFileHeader header) throws AnalysisException {
+		ArrayList<LocusSearchInterval> intervalList = new ArrayList<LocusSearchInterval>();
+		for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+			Locus locus = loci[lIdx];
+			GenomeRegion[] searchIntervals = locus.getReadSearchIntervals();
+			for (int j = 0; j < searchIntervals.length; j++) {
+				GenomeRegion interval = searchIntervals[j];
+				String chrName = interval.getChromosome();
+				int seqIndex = header.getSequenceIndex(chrName);
+				if (seqIndex < 0) {
+					throw new AnalysisException("At locus"+locus.getName()+" could not find chromosome "+chrName+" in the alignment for sample "+sample.getName());
 				}
-			} else {
-				throw new CigarException ("Unkonwn element in CIGAR string: "+len+op.name());
+				QueryInterval queryInterval = new QueryInterval(seqIndex, interval.getStartPos(), interval.getStopPos());
+				intervalList.add(new LocusSearchInterval(lIdx, queryInterval));
 			}
 		}
-		sr.updateSequence(sequenceSb.toString(), qualitySb.toString());
+		return intervalList.toArray(new LocusSearchInterval[intervalList.size()]);
 	}
-
-	private void getUnmappedLocusReads (Sample sample, Locus[] loci, ArrayList<Read>[] mappedReadLists) throws AnalysisException {
-		SamReader samReader = samReaderFactory.open(sample.getBamFile());
-		SAMRecordIterator it = samReader.queryUnmapped();
-		while (it.hasNext()) {
-			SAMRecord record = it.next();
-			boolean matched = matchUnmappedRead (record, loci, mappedReadLists);
-			if (!matched) {
-				record.reverseComplement();
-				matched = matchUnmappedRead (record, loci, mappedReadLists);
+	
+	private static class LocusSearchInterval {
+		int           locusIdx;
+		QueryInterval queryInterval;
+		
+		public LocusSearchInterval (int locusIdx, QueryInterval queryInterval) {
+			this.locusIdx = locusIdx;
+			this.queryInterval = queryInterval;
+		}
+	}
+	
+	private void processLocusRecord (SAMRecord record, int lIdx) throws AnalysisException {
+		Locus locus = loci[lIdx];
+		if (useAlignment) { 
+			// Use the BAM alignment to do an initial mapping of the read
+			Read sr = Read.createMappedRead(new ReadSource(record, keepSamStrings), locus, record.getAlignmentStart());
+			
+			// Unless the read is mapped "as is" (e.g. CIGAR string is something like "150M"), 
+			// process the CIGAR to refine mapping against the reference
+			Cigar cigar = record.getCigar();
+			if (!CigarProjector.isUngapped(cigar)) {
+				try {
+					CigarProjector.Projection p = cigarProjector.project(sr.getBases(), sr.getQualities(), cigar);
+					sr.updateSequence(p.copyBases(), p.copyQualities());
+				} catch (CigarProjector.CigarException e) {
+					sr.unmap();
+				}
+			}
+			
+			// If the mapping is still valid after applying CIGAR, use the alignment.
+			// If not, take the ungapped read, and treat it as if unmapped, try to find an anchor
+			if (sr.getMappingStatus() == Read.MAPPED) {
+				addLocusRead(lIdx, sr);
+			} else if (analyzeUnmappedReads) {
+				@SuppressWarnings("unused")
+				boolean matched = matchReadAtLocus (record, lIdx);
 			}
+		} else {
+			// Do not use the BAM alignment, just find an anchor.
+			@SuppressWarnings("unused")
+			boolean matched = matchReadAtLocus (record, lIdx);
 		}
-		it.close();
 	}
 
-	private boolean matchUnmappedRead (SAMRecord record, Locus[] loci, ArrayList<Read>[] mappedReadLists) throws AnalysisException {
+	private boolean matchUnmappedRead (SAMRecord record, AnchorIndex.AnchorMatches matches) throws AnalysisException {
 		boolean matched = false;
 		for (int lIdx = 0; lIdx < loci.length; lIdx++) {
 			Locus locus = loci[lIdx];
 			if (!locus.getAnalyzeUnmappedReads()) {
 				continue;
 			}
-			ArrayList<Read> mappedReadList = mappedReadLists[lIdx];
-			if (matchReadAtLocus (record, locus, mappedReadList)) {
+			if (addAnchoredRead (record, lIdx, matches)) {
 				matched = true;  // The same unmapped read may have anchors that match multiple loci, so do not give up after finding a match
 			}
 		}
 		return matched;
 	}
 
-	private boolean matchReadAtLocus (SAMRecord record, Locus locus, ArrayList<Read> mappedReadList) throws AnalysisException {
+	private boolean matchReadAtLocus (SAMRecord record, int lIdx) throws AnalysisException {
+		return addAnchoredRead (record, lIdx, anchorIndex.match(record.getReadBases()));
+	}
+
+	private boolean addAnchoredRead (SAMRecord record, int lIdx, AnchorIndex.AnchorMatches matches) throws AnalysisException {
 		// Does the read contain an anchor?
-		String readSequence = record.getReadString();
-		Anchor[] anchors = locus.getAnchors();
-		for (int aIdx = 0; aIdx < anchors.length; aIdx++) {
-			Matcher m = anchors[aIdx].getRegex().matcher(readSequence);
-		    if (m.find()) {
-		    	int anchorPos = m.start();
-				Read sr = Read.createAnchoredRead (new ReadSource(record), locus, anchors[aIdx], anchorPos);
-				mappedReadList.add(sr);
-				return true;
-		    }									
-		}					
-		return false;
+		int aIdx = matches.getAnchorIdx(lIdx);
+		if (aIdx < 0) {
+			return false;
+		}
+		Locus locus = loci[lIdx];
+		int anchorPos = matches.getAnchorPos(lIdx, aIdx);
+		Read sr = Read.createAnchoredRead (new ReadSource(record, keepSamStrings), locus, locus.getAnchors()[aIdx], anchorPos);
+		addLocusRead(lIdx, sr);
+		return true;
 	}
 }
@@ -6,28 +6,149 @@ import java.util.HashMap;
 import org.cggh.common.exceptions.AnalysisException;
 import org.cggh.common.sequence.Sequence;
 import org.cggh.common.sequence.io.FastaSequenceReader;
+import org.cggh.common.sequence.io.IndexedFastaFile;
+import org.cggh.common.sequence.io.PackedSequenceFile;
+import org.cggh.common.sequence.io.SequenceRegionReader;
 import org.cggh.common.sequence.io.SequenceSetReader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
+/*
+ * The reference genome sequences. If a packed reference cache (see Compile) is up to date with the
+ * FASTA file, it is memory-mapped; otherwise, or if the cache cannot be read, by default the FASTA
+ * file is accessed through its .fai index and memory-mapped, so that only the regions requested are
+ * read. With -DmappedReference=false, or if the FASTA file cannot be indexed, all the chromosome
+ * sequences are loaded in memory.
+ *
+ * The packed cache is the FASTA file name with a .packed suffix, or the file given by -DreferenceCache.
+ */
 public class ReferenceGenome {
 
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	private static File                     refFile;
+	private static SequenceRegionReader     regionReader;
 	private static HashMap<String,Sequence> chrSeqByName;
-	
-	public static void initialize(File refFastaFile) throws AnalysisException {
+
+	public static synchronized void initialize(File refFastaFile) throws AnalysisException {
+		if (refFastaFile.equals(refFile)) {
+			return;  // Already initialized by another analysis
+		}
+		if (regionReader != null) {
+			regionReader.close();
+		}
+		regionReader = null;
+		chrSeqByName = null;
+		boolean mapped = Boolean.parseBoolean(System.getProperty("mappedReference","true"));
+		if (mapped) {
+			File cacheFile = getCacheFile(refFastaFile);
+			if (cacheFile.exists()) {
+				try {
+					PackedSequenceFile packed = new PackedSequenceFile(cacheFile);
+					if (packed.isPackedFrom(refFastaFile)) {
+						regionReader = packed;
+					} else {
+						log.warn("Ignoring reference cache "+cacheFile.getAbsolutePath()+", which is out of date with "+refFastaFile.getAbsolutePath());
+						packed.close();
+					}
+				} catch (AnalysisException e) {
+					// A damaged cache must not stop the analysis: it can be rebuilt with Compile
+					log.warn("Ignoring reference cache "+cacheFile.getAbsolutePath()+": "+e.getMessage());
+				}
+			}
+		}
+		if (mapped && (regionReader == null)) {
+			try {
+				regionReader = new IndexedFastaFile(refFastaFile);
+			} catch (AnalysisException e) {
+				log.warn("Loading the reference genome in memory: "+e.getMessage());
+			}
+		}
+		if (regionReader == null) {
+			chrSeqByName = new HashMap<String,Sequence>();
+			Sequence[] chrSequences = readSequences(refFastaFile);
+			for (int i = 0; i < chrSequences.length; i++) {
+				chrSeqByName.put(chrSequences[i].getId(), chrSequences[i]);
+			}
+		}
+		refFile = refFastaFile;
+	}
+
+	public static File getCacheFile(File refFastaFile) {
+		String cachePath = System.getProperty("referenceCache");
+		if (cachePath != null) {
+			return new File(cachePath);
+		}
+		return new File(refFastaFile.getParentFile(), refFastaFile.getName()+".packed");
+	}
+
+	private static Sequence[] readSequences(File refFastaFile) throws AnalysisException {
 		try {
 			SequenceSetReader seqSetReader = new SequenceSetReader (new FastaSequenceReader());
 			Sequence[] chrSequences = seqSetReader.readSequences(refFastaFile);
-			chrSeqByName = new HashMap<String,Sequence>();
 			for (int i = 0; i < chrSequences.length; i++) {
 				String id = chrSequences[i].getId();
 				String data = chrSequences[i].getData().toUpperCase(); // Lowercase can cause issues
-				chrSeqByName.put(id, new Sequence(id, data));
+				chrSequences[i] = new Sequence(id, data);
 			}
+			return chrSequences;
 		} catch (Exception e) {
 			throw new AnalysisException ("Error reading genome FASTA file from GenomeCache: "+e);
 		}
 	}
-	
+
+	/*
+	 * Returns the whole chromosome sequence, or null if the chromosome is not in the reference.
+	 * With a memory-mapped reference, the sequence is read on every call: use getRegionSequence()
+	 * where possible.
+	 */
 	public static Sequence getChrSequence(String chrName) throws AnalysisException {
+		if (regionReader != null) {
+			return regionReader.hasSequence(chrName) ? regionReader.getSequence(chrName) : null;
+		}
 		return chrSeqByName.get(chrName);
 	}
+
+	/*
+	 * Returns the sequence of a chromosome region, between two positions (1-based, inclusive)
+	 */
+	public static String getRegionSequence(String chrName, int startPos, int endPos) throws AnalysisException {
+		if (regionReader != null) {
+			return regionReader.getRegion(chrName, startPos, endPos);
+		}
+		Sequence chrSeq = chrSeqByName.get(chrName);
+		if (chrSeq == null) {
+			throw new AnalysisException ("Chromosome "+chrName+" not found in the reference genome");
+		}
+		return chrSeq.getRegion(startPos, endPos);
+	}
+
+	/* ==========================================================
+	 * Reference cache compilation
+	 * ==========================================================
+	 */
+	public static class Compile {
+		public static void main(String[] args) {
+			if (args.length < 1) {
+				log.error("Usage: org.cggh.bam.ReferenceGenome$Compile <refFasta>");
+				return;
+			}
+			File refFastaFile = new File(args[0]);		log.info("RefFastaFile: "+refFastaFile.getAbsolutePath());
+			File cacheFile = getCacheFile(refFastaFile);	log.info("ReferenceCache: "+cacheFile.getAbsolutePath());
+
+			try {
+				Sequence[] chrSequences = readSequences(refFastaFile);
+				for (int i = 0; i < chrSequences.length; i++) {
+					// Use the sequence names up to the first whitespace, as the .fai index does
+					String id = chrSequences[i].getId().trim().split("\\s+")[0];
+					chrSequences[i] = new Sequence(id, chrSequences[i].getData());
+				}
+				PackedSequenceFile.write(cacheFile, chrSequences, refFastaFile);
+			} catch (Exception e) {
+				log.error("Error executing task: " + e);
+				return;
+			}
+			log.info("Exiting");
+		}
+	}
 }
@@ -0,0 +1,260 @@
+package org.cggh.bam;
+
+import org.cggh.common.exceptions.*;
+import htsjdk.samtools.*;
+import htsjdk.samtools.seekablestream.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.apache.commons.logging.*;
+
+
+/*
+ * Pool of open SamReaders, shared by all the analyses running in this process.
+ *
+ * A SamReader can only serve one iterator at a time, so each reader is leased to a single
+ * caller until it is released; the next caller asking for the same BAM gets the same reader
+ * back, with its header and BAI index already loaded (indexes are cached in memory by the reader).
+ * Readers are opened outside the pool lock, and all the readers of a BAM share the contents of its
+ * BAI file, which is only read once.
+ * The number of open readers is bounded: when the pool is full, the least recently used idle
+ * reader is closed, preferring readers of BAM files that are no longer in use by any analysis.
+ */
+public class SamReaderPool {
+
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	public static final int DEFAULT_MAX_OPEN_READERS = 32;
+
+	private static SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault()
+			.validationStringency(ValidationStringency.SILENT)
+			.enable(SamReaderFactory.Option.CACHE_FILE_BASED_INDEXES);
+
+	private static int maxOpenReaders = DEFAULT_MAX_OPEN_READERS;
+	private static int openReaderCount = 0;
+	private static long useTimestamp = 0;
+
+	private static HashMap<String,PooledBam>           pooledBamTable = new HashMap<String,PooledBam>();
+	private static IdentityHashMap<SamReader,PooledBam> leasedReaderTable = new IdentityHashMap<SamReader,PooledBam>();
+
+
+	public static synchronized int getMaxOpenReaders () {
+		return maxOpenReaders;
+	}
+
+	public static synchronized void setMaxOpenReaders (int maxReaders) {
+		maxOpenReaders = Math.max(1, maxReaders);
+		SamReaderPool.class.notifyAll();
+	}
+
+	/*
+	 * Make sure the pool can serve at least the given number of concurrent users
+	 */
+	public static synchronized void ensureCapacity (int concurrentUsers) {
+		if (concurrentUsers > maxOpenReaders) {
+			setMaxOpenReaders(concurrentUsers);
+		}
+	}
+
+	public static SamReader acquire (File bamFile) throws AnalysisException {
+		return acquire(bamFile, true);
+	}
+
+	/*
+	 * Same as acquire(), but returns null instead of waiting when the pool is full and all its readers are leased
+	 */
+	public static SamReader tryAcquire (File bamFile) throws AnalysisException {
+		return acquire(bamFile, false);
+	}
+
+	private static SamReader acquire (File bamFile, boolean waitForReader) throws AnalysisException {
+		PooledBam pb;
+		synchronized (SamReaderPool.class) {
+			pb = getPooledBam(bamFile);
+			pb.useCount++;
+			while (true) {
+				SamReader reader = pb.idleReaders.pollLast();
+				if (reader != null) {
+					leasedReaderTable.put(reader, pb);
+					return reader;
+				}
+				// Must open a new reader: make room for it first, if the pool is full
+				if (openReaderCount < maxOpenReaders) {
+					break;
+				}
+				if (!evictIdleReader()) {
+					if (!waitForReader) {
+						pb.useCount--;
+						discardIfUnused(pb);
+						return null;
+					}
+					try {
+						SamReaderPool.class.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						pb.useCount--;
+						discardIfUnused(pb);
+						throw new AnalysisException("Interrupted while waiting for a reader of BAM file "+pb.key);
+					}
+				}
+			}
+			openReaderCount++;
+		}
+
+		// Open the reader outside the pool lock, so that other BAMs are not held up
+		SamReader reader = null;
+		try {
+			reader = pb.openReader(bamFile);
+		} finally {
+			synchronized (SamReaderPool.class) {
+				if (reader != null) {
+					leasedReaderTable.put(reader, pb);
+				} else {
+					openReaderCount--;
+					pb.useCount--;
+					discardIfUnused(pb);
+					SamReaderPool.class.notifyAll();
+				}
+			}
+		}
+		return reader;
+	}
+
+	private static PooledBam getPooledBam (File bamFile) {
+		String key = bamFile.getAbsolutePath();
+		PooledBam pb = pooledBamTable.get(key);
+		if ((pb != null) && (pb.lastModified != bamFile.lastModified())) {
+			// The file has changed since its readers were opened: do not reuse them
+			closeIdleReaders(pb);
+			pooledBamTable.remove(key);
+			pb = null;
+		}
+		if (pb == null) {
+			pb = new PooledBam(bamFile);
+			pooledBamTable.put(key, pb);
+		}
+		return pb;
+	}
+
+	/*
+	 * Drop a BAM from the pool once it has no readers left, leased or idle
+	 */
+	private static void discardIfUnused (PooledBam pb) {
+		if ((pb.useCount == 0) && pb.idleReaders.isEmpty() && (pooledBamTable.get(pb.key) == pb)) {
+			pooledBamTable.remove(pb.key);
+		}
+	}
+
+	public static synchronized void release (SamReader reader) {
+		PooledBam pb = leasedReaderTable.remove(reader);
+		if (pb == null) {
+			// Not one of ours
+			closeReader(reader, null);
+			return;
+		}
+		pb.useCount--;
+		pb.lastUsed = ++useTimestamp;
+		if (pooledBamTable.get(pb.key) == pb) {
+			pb.idleReaders.addLast(reader);
+		} else {
+			// The BAM was replaced while this reader was leased
+			closeReader(reader, pb.key);
+			openReaderCount--;
+		}
+		SamReaderPool.class.notifyAll();
+	}
+
+	public static synchronized void closeAll () {
+		for (PooledBam pb : pooledBamTable.values()) {
+			closeIdleReaders(pb);
+		}
+		pooledBamTable.clear();
+		SamReaderPool.class.notifyAll();
+	}
+
+	/*
+	 * Close the least recently used idle reader, choosing first among the BAMs that
+	 * are not being used by any analysis. Returns false if all readers are leased.
+	 */
+	private static boolean evictIdleReader () {
+		PooledBam victim = null;
+		for (PooledBam pb : pooledBamTable.values()) {
+			if (pb.idleReaders.isEmpty()) {
+				continue;
+			}
+			if ((victim == null)
+					|| ((pb.useCount == 0) && (victim.useCount > 0))
+					|| (((pb.useCount == 0) == (victim.useCount == 0)) && (pb.lastUsed < victim.lastUsed))) {
+				victim = pb;
+			}
+		}
+		if (victim == null) {
+			return false;
+		}
+		closeReader(victim.idleReaders.pollFirst(), victim.key);
+		openReaderCount--;
+		discardIfUnused(victim);
+		return true;
+	}
+
+	private static void closeIdleReaders (PooledBam pb) {
+		while (!pb.idleReaders.isEmpty()) {
+			closeReader(pb.idleReaders.pollFirst(), pb.key);
+			openReaderCount--;
+		}
+	}
+
+	private static void closeReader (SamReader reader, String key) {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			log.warn("Error closing BAM file "+key+": "+e);
+		}
+	}
+
+	private static class PooledBam {
+		String                key;
+		long                  lastModified;
+		int                   useCount = 0;
+		long                  lastUsed = 0;
+		ArrayDeque<SamReader> idleReaders = new ArrayDeque<SamReader>();
+		boolean               indexLoaded = false;
+		byte[]                indexData;
+
+		public PooledBam (File bamFile) {
+			this.key = bamFile.getAbsolutePath();
+			this.lastModified = bamFile.lastModified();
+		}
+
+		public SamReader openReader (File bamFile) throws AnalysisException {
+			SamInputResource resource = SamInputResource.of(bamFile);
+			byte[] index = getIndexData(bamFile);
+			if (index != null) {
+				resource.index(new ByteArraySeekableStream(index));
+			}
+			try {
+				return samReaderFactory.open(resource);
+			} catch (SAMException e) {
+				throw new AnalysisException("Error opening BAM file "+key+": "+e);
+			}
+		}
+
+		/*
+		 * The BAI file is read once, and its contents are shared by all the readers of this BAM
+		 */
+		private synchronized byte[] getIndexData (File bamFile) throws AnalysisException {
+			if (!indexLoaded) {
+				File indexFile = SamFiles.findIndex(bamFile);
+				if (indexFile != null) {
+					try {
+						indexData = Files.readAllBytes(indexFile.toPath());
+					} catch (IOException e) {
+						throw new AnalysisException("Error reading BAM index file "+indexFile.getAbsolutePath()+": "+e);
+					}
+				}
+				indexLoaded = true;
+			}
+			return indexData;
+		}
+	}
+}
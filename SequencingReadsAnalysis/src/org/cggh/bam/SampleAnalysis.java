@@ -22,4 +22,19 @@ public abstract class SampleAnalysis extends BaseAnalysis {
 
 
 	public abstract void analyzeSample(Sample sample) throws AnalysisException;
+
+	/*
+	 * Analyses that can share a single pass over the sample BAM with other analyses
+	 * return a collector for the sample; the others return null, and are run through
+	 * analyzeSample().
+	 */
+	public SampleReadsCollector createReadsCollector (Sample sample) throws AnalysisException {
+		return null;
+	}
+
+	/*
+	 * Merge and analyze the results of all the samples, once they have been analyzed individually.
+	 */
+	public void analyzeAllSampleResults (Sample[] samples) throws AnalysisException, IOException  {
+	}
 }
@@ -0,0 +1,34 @@
+package org.cggh.bam;
+
+import org.cggh.common.exceptions.*;
+import org.cggh.common.genome.*;
+import htsjdk.samtools.*;
+
+
+/*
+ * Receives the BAM records needed by one analysis of one sample, during a
+ * pass over the sample's BAM file that may be shared with other analyses.
+ */
+public interface SampleReadsCollector {
+	
+	/*
+	 * Called before any records are read, with the header of the sample BAM
+	 */
+	public void startSample (Sample sample, SAMFileHeader header) throws AnalysisException;
+	
+	/*
+	 * The genome regions for which overlapping records are to be passed to processMappedRecord()
+	 */
+	public GenomeRegion[] getSearchRegions ();
+	
+	public boolean needsUnmappedReads ();
+	
+	public void processMappedRecord (SAMRecord record) throws AnalysisException;
+	
+	public void processUnmappedRecord (SAMRecord record) throws AnalysisException;
+	
+	/*
+	 * Called once all records have been read, to analyze them and write out the results
+	 */
+	public void completeSample () throws AnalysisException;
+}
@@ -0,0 +1,212 @@
+package org.cggh.bam;
+
+import org.cggh.common.exceptions.*;
+import org.cggh.common.genome.*;
+import htsjdk.samtools.*;
+import java.util.*;
+
+
+/*
+ * Reads the records of a sample BAM in a single pass, and passes each of them to all the
+ * collectors whose search regions the record overlaps. The search regions of all the collectors
+ * are merged into a single query, followed by a single pass over the unmapped reads if any
+ * collector needs them.
+ */
+public class SampleReadsScanner {
+
+	// Number of threads used to read the unmapped reads of each sample; 0 or 1 to read them sequentially
+	private static int unmappedScanThreads = Integer.parseInt(System.getProperty("unmappedScanThreads", "0"));
+
+	public static void setUnmappedScanThreads (int threadCount) {
+		unmappedScanThreads = threadCount;
+	}
+
+	public static void scanSample (Sample sample, SampleReadsCollector collector) throws AnalysisException {
+		if (collector instanceof CompositeReadsCollector) {
+			// Dispatch records to the members, so that each only gets the records in its own regions
+			scanSample (sample, ((CompositeReadsCollector)collector).getCollectors());
+		} else {
+			scanSample (sample, new SampleReadsCollector[] { collector });
+		}
+	}
+
+	public static void scanSample (Sample sample, SampleReadsCollector[] collectors) throws AnalysisException {
+		SamReader samReader = SamReaderPool.acquire(sample.getBamFile());
+		try {
+			SAMFileHeader header = samReader.getFileHeader();
+			for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+				collectors[cIdx].startSample(sample, header);
+			}
+			scanMappedRecords (samReader, header, collectors);
+			scanUnmappedRecords (sample, samReader, header, collectors);
+		} finally {
+			SamReaderPool.release(samReader);
+		}
+	}
+
+	private static void scanMappedRecords (SamReader samReader, SAMFileHeader header, SampleReadsCollector[] collectors) throws AnalysisException {
+		// Get each collector's search intervals, and the union of all of them for the query
+		QueryInterval[][] collectorIntervals = new QueryInterval[collectors.length][];
+		ArrayList<QueryInterval> allIntervalList = new ArrayList<QueryInterval>();
+		for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+			collectorIntervals[cIdx] = getQueryIntervals (collectors[cIdx].getSearchRegions(), header);
+			allIntervalList.addAll(Arrays.asList(collectorIntervals[cIdx]));
+		}
+		if (allIntervalList.isEmpty()) {
+			return;
+		}
+		QueryInterval[] queryIntervals = allIntervalList.toArray(new QueryInterval[allIntervalList.size()]);
+		queryIntervals = QueryInterval.optimizeIntervals(queryIntervals);
+
+		// Records come in coordinate order, so we keep for each collector the index of the first
+		// interval that does not end before the current record
+		int[] intervalIdx = new int[collectors.length];
+		SAMRecordIterator it = samReader.queryOverlapping(queryIntervals);
+		try {
+			while (it.hasNext()) {
+				SAMRecord record = it.next();
+				int refIdx = record.getReferenceIndex();
+				int recordStart = record.getAlignmentStart();
+				int recordEnd = getRecordEnd(record);
+				for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+					QueryInterval[] intervals = collectorIntervals[cIdx];
+					int iIdx = intervalIdx[cIdx];
+					while ((iIdx < intervals.length)
+							&& ((intervals[iIdx].referenceIndex < refIdx)
+							|| ((intervals[iIdx].referenceIndex == refIdx) && (intervals[iIdx].end < recordStart)))) {
+						iIdx++;
+					}
+					intervalIdx[cIdx] = iIdx;
+					if ((iIdx < intervals.length) && (intervals[iIdx].referenceIndex == refIdx) && (intervals[iIdx].start <= recordEnd)) {
+						collectors[cIdx].processMappedRecord(record);
+					}
+				}
+			}
+		} finally {
+			it.close();
+		}
+	}
+
+	private static void scanUnmappedRecords (Sample sample, SamReader samReader, SAMFileHeader header, SampleReadsCollector[] collectors) throws AnalysisException {
+		ArrayList<SampleReadsCollector> unmappedCollectorList = new ArrayList<SampleReadsCollector>();
+		for (int cIdx = 0; cIdx < collectors.length; cIdx++) {
+			if (collectors[cIdx].needsUnmappedReads()) {
+				unmappedCollectorList.add(collectors[cIdx]);
+			}
+		}
+		if (unmappedCollectorList.isEmpty()) {
+			return;
+		}
+		ArrayList<SAMRecord> records = getFilteredUnmappedRecords(sample, samReader, header, unmappedCollectorList);
+		if (records != null) {
+			for (SAMRecord record : records) {
+				for (SampleReadsCollector collector : unmappedCollectorList) {
+					collector.processUnmappedRecord(record);
+				}
+			}
+			return;
+		}
+		SAMRecordIterator it = samReader.queryUnmapped();
+		try {
+			while (it.hasNext()) {
+				SAMRecord record = it.next();
+				for (SampleReadsCollector collector : unmappedCollectorList) {
+					collector.processUnmappedRecord(record);
+				}
+			}
+		} finally {
+			it.close();
+		}
+	}
+
+	/*
+	 * If all the collectors can filter the unmapped records, returns the records accepted by any of them,
+	 * in file order, taken from the unmapped reads cache if possible, or else read with several threads;
+	 * returns null if all the unmapped records must be read and passed to the collectors.
+	 */
+	private static ArrayList<SAMRecord> getFilteredUnmappedRecords (Sample sample, SamReader samReader, SAMFileHeader header, ArrayList<SampleReadsCollector> unmappedCollectorList) throws AnalysisException {
+		final UnmappedRecordFilter[] filters = new UnmappedRecordFilter[unmappedCollectorList.size()];
+		LinkedHashSet<String> patternSet = new LinkedHashSet<String>();
+		for (int cIdx = 0; cIdx < filters.length; cIdx++) {
+			SampleReadsCollector collector = unmappedCollectorList.get(cIdx);
+			if (!(collector instanceof UnmappedRecordFilter)) {
+				return null;
+			}
+			filters[cIdx] = (UnmappedRecordFilter)collector;
+			patternSet.addAll(Arrays.asList(filters[cIdx].getFilterPatterns()));
+		}
+		String[] patterns = patternSet.toArray(new String[patternSet.size()]);
+		UnmappedRecordFilter anyFilter = new UnmappedRecordFilter() {
+			public boolean acceptUnmappedRecord (SAMRecord record) {
+				for (int fIdx = 0; fIdx < filters.length; fIdx++) {
+					if (filters[fIdx].acceptUnmappedRecord(record)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			public String[] getFilterPatterns () {
+				return null;
+			}
+		};
+
+		UnmappedReadsCache cache = UnmappedReadsCache.getCache(sample.getBamFile());
+		ArrayList<SAMRecord> records = null;
+		if (cache != null) {
+			records = cache.getRecords(patterns);
+			if (records != null) {
+				return records;
+			}
+		}
+		if (unmappedScanThreads > 1) {
+			ParallelUnmappedReadsScanner scanner = new ParallelUnmappedReadsScanner(sample.getBamFile(), header, unmappedScanThreads);
+			records = scanner.scan(samReader, anyFilter);
+		}
+		if ((records == null) && (cache != null)) {
+			records = new ArrayList<SAMRecord>();
+			SAMRecordIterator it = samReader.queryUnmapped();
+			try {
+				while (it.hasNext()) {
+					SAMRecord record = it.next();
+					if (anyFilter.acceptUnmappedRecord(record)) {
+						records.add(record);
+					}
+				}
+			} finally {
+				it.close();
+			}
+		}
+		if ((records != null) && (cache != null)) {
+			cache.putRecords(patterns, header, records);
+		}
+		return records;
+	}
+
+	/*
+	 * Sorted, non-overlapping query intervals for a set of regions. Regions on
+	 * chromosomes that are not in the BAM are skipped, since they can have no reads.
+	 */
+	private static QueryInterval[] getQueryIntervals (GenomeRegion[] regions, SAMFileHeader header) {
+		ArrayList<QueryInterval> intervalList = new ArrayList<QueryInterval>();
+		for (int rIdx = 0; rIdx < regions.length; rIdx++) {
+			GenomeRegion region = regions[rIdx];
+			int seqIndex = header.getSequenceIndex(region.getChromosome());
+			if (seqIndex >= 0) {
+				intervalList.add(new QueryInterval(seqIndex, region.getStartPos(), region.getStopPos()));
+			}
+		}
+		QueryInterval[] intervals = intervalList.toArray(new QueryInterval[intervalList.size()]);
+		return QueryInterval.optimizeIntervals(intervals);
+	}
+
+	/*
+	 * Same end coordinate used by htsjdk when filtering query results: reads flagged as unmapped
+	 * but placed at a position only occupy their start coordinate.
+	 */
+	public static int getRecordEnd (SAMRecord record) {
+		if (record.getReadUnmappedFlag() && (record.getAlignmentStart() != SAMRecord.NO_ALIGNMENT_START)) {
+			return record.getAlignmentStart();
+		}
+		return record.getAlignmentEnd();
+	}
+}
@@ -0,0 +1,247 @@
+package org.cggh.bam;
+
+import org.cggh.common.exceptions.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import htsjdk.samtools.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+/*
+ * Persistent cache of the unmapped reads of a BAM that were accepted by the unmapped record filters,
+ * so that later runs do not need to scan the unmapped reads again.
+ *
+ * For each BAM and set of filter patterns, the cache folder holds a small BAM with the accepted records,
+ * in their original order, and a properties file recording the BAM path, size and modification time, and
+ * the patterns of the filters used; the file names include a fingerprint of the patterns, so that runs
+ * with different anchors keep separate caches. The cached records can be used by a later run as long as
+ * the BAM has not changed, and the patterns of its filters are all among those cached: a record accepted
+ * by a filter is also accepted by a filter with more patterns.
+ *
+ * The cache is only an optimization: errors writing it are logged, and the records are still used.
+ *
+ * The cache is only used if the "unmappedReadsCache" property is set to the cache folder.
+ */
+public class UnmappedReadsCache {
+
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	private static File cacheFolder = getDefaultCacheFolder();
+
+	private static File getDefaultCacheFolder () {
+		String folderName = System.getProperty("unmappedReadsCache");
+		return (folderName != null) ? new File(folderName) : null;
+	}
+
+	public static void setCacheFolder (File folder) {
+		cacheFolder = folder;
+	}
+
+	/*
+	 * The cache for a BAM file, or null if there is no cache folder
+	 */
+	public static UnmappedReadsCache getCache (File bamFile) {
+		return (cacheFolder != null) ? new UnmappedReadsCache(cacheFolder, bamFile) : null;
+	}
+
+	private static final String PROP_BAM_PATH     = "bamPath";
+	private static final String PROP_BAM_SIZE     = "bamSize";
+	private static final String PROP_BAM_MODIFIED = "bamModified";
+	private static final String PROP_RECORD_COUNT = "recordCount";
+	private static final String PROP_PATTERN      = "pattern.";
+
+	private File   folder;
+	private File   bamFile;
+	private String bamKey;
+
+	public UnmappedReadsCache (File folder, File bamFile) {
+		this.folder = folder;
+		this.bamFile = bamFile.getAbsoluteFile();
+		String path = this.bamFile.getPath();
+		this.bamKey = bamFile.getName()+"."+UUID.nameUUIDFromBytes(path.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * The key of the cache files for a set of patterns, which does not depend on their order
+	 */
+	private String getCacheKey (String[] patterns) {
+		String[] sortedPatterns = patterns.clone();
+		Arrays.sort(sortedPatterns);
+		StringBuilder sb = new StringBuilder();
+		for (String pattern : sortedPatterns) {
+			sb.append(pattern).append('\n');
+		}
+		return bamKey+"."+UUID.nameUUIDFromBytes(sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private File getRecordsFile (String cacheKey) {
+		return new File(folder, cacheKey+".unmapped.bam");
+	}
+
+	private File getPropertiesFile (String cacheKey) {
+		return new File(folder, cacheKey+".unmapped.properties");
+	}
+
+	/*
+	 * Returns the cached records, or null if no cache of this BAM can be used for filters with the given
+	 * patterns. The cache built for the same patterns is tried first, then those built for other patterns.
+	 */
+	public ArrayList<SAMRecord> getRecords (String[] patterns) {
+		String cacheKey = getCacheKey(patterns);
+		ArrayList<SAMRecord> records = getRecords(cacheKey, patterns);
+		if (records != null) {
+			return records;
+		}
+		final String propertiesPrefix = bamKey+".";
+		final String propertiesSuffix = ".unmapped.properties";
+		String[] propertiesFileNames = folder.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(propertiesPrefix) && name.endsWith(propertiesSuffix);
+			}
+		});
+		if (propertiesFileNames == null) {
+			return null;
+		}
+		for (String propertiesFileName : propertiesFileNames) {
+			String otherKey = propertiesFileName.substring(0, propertiesFileName.length() - propertiesSuffix.length());
+			if (!otherKey.equals(cacheKey)) {
+				records = getRecords(otherKey, patterns);
+				if (records != null) {
+					return records;
+				}
+			}
+		}
+		return null;
+	}
+
+	private ArrayList<SAMRecord> getRecords (String cacheKey, String[] patterns) {
+		File recordsFile = getRecordsFile(cacheKey);
+		File propertiesFile = getPropertiesFile(cacheKey);
+		if (!propertiesFile.exists() || !recordsFile.exists()) {
+			return null;
+		}
+		Properties props = new Properties();
+		try {
+			InputStream in = new FileInputStream(propertiesFile);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.warn("Error reading unmapped reads cache file "+propertiesFile.getAbsolutePath()+": "+e);
+			return null;
+		}
+		if (!bamFile.getPath().equals(props.getProperty(PROP_BAM_PATH))
+				|| !Long.toString(bamFile.length()).equals(props.getProperty(PROP_BAM_SIZE))
+				|| !Long.toString(bamFile.lastModified()).equals(props.getProperty(PROP_BAM_MODIFIED))) {
+			log.info("Unmapped reads cache "+propertiesFile.getName()+" is out of date for "+bamFile.getPath());
+			return null;
+		}
+		HashSet<String> cachedPatterns = new HashSet<String>();
+		for (int pIdx = 0; props.containsKey(PROP_PATTERN+pIdx); pIdx++) {
+			cachedPatterns.add(props.getProperty(PROP_PATTERN+pIdx));
+		}
+		if (!cachedPatterns.containsAll(Arrays.asList(patterns))) {
+			return null;
+		}
+
+		ArrayList<SAMRecord> records = new ArrayList<SAMRecord>();
+		try {
+			// The caller is holding a reader of the sample BAM: waiting for a free reader could deadlock
+			SamReader reader = SamReaderPool.tryAcquire(recordsFile);
+			if (reader == null) {
+				log.info("No BAM reader available for unmapped reads cache file "+recordsFile.getName()+": scanning the unmapped reads");
+				return null;
+			}
+			try {
+				SAMRecordIterator it = reader.iterator();
+				try {
+					while (it.hasNext()) {
+						records.add(it.next());
+					}
+				} finally {
+					it.close();
+				}
+			} finally {
+				SamReaderPool.release(reader);
+			}
+		} catch (AnalysisException | RuntimeException e) {
+			log.warn("Error reading unmapped reads cache file "+recordsFile.getAbsolutePath()+": "+e);
+			return null;
+		}
+		if (!Integer.toString(records.size()).equals(props.getProperty(PROP_RECORD_COUNT))) {
+			log.warn("Unmapped reads cache file "+recordsFile.getAbsolutePath()+" is incomplete");
+			return null;
+		}
+		return records;
+	}
+
+	/*
+	 * Replaces the cached records for the given patterns. The files are written under unique temporary
+	 * names and then renamed, properties last, so that an interrupted run, a concurrent writer or a
+	 * concurrent reader never sees a partial cache. Errors are logged, and leave no cache behind.
+	 */
+	public void putRecords (String[] patterns, SAMFileHeader header, ArrayList<SAMRecord> records) {
+		String cacheKey = getCacheKey(patterns);
+		File recordsFile = getRecordsFile(cacheKey);
+		File propertiesFile = getPropertiesFile(cacheKey);
+		File tmpRecordsFile = null;
+		File tmpPropertiesFile = null;
+		try {
+			if (!folder.exists() && !folder.mkdirs() && !folder.exists()) {
+				throw new IOException("Could not create the cache folder "+folder.getAbsolutePath());
+			}
+			tmpRecordsFile = File.createTempFile(recordsFile.getName()+".", ".tmp", folder);
+			tmpPropertiesFile = File.createTempFile(propertiesFile.getName()+".", ".tmp", folder);
+
+			SAMFileHeader cacheHeader = header.clone();
+			cacheHeader.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+			SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(cacheHeader, true, tmpRecordsFile);
+			try {
+				for (SAMRecord record : records) {
+					writer.addAlignment(record);
+				}
+			} finally {
+				writer.close();
+			}
+
+			Properties props = new Properties();
+			props.setProperty(PROP_BAM_PATH, bamFile.getPath());
+			props.setProperty(PROP_BAM_SIZE, Long.toString(bamFile.length()));
+			props.setProperty(PROP_BAM_MODIFIED, Long.toString(bamFile.lastModified()));
+			props.setProperty(PROP_RECORD_COUNT, Integer.toString(records.size()));
+			for (int pIdx = 0; pIdx < patterns.length; pIdx++) {
+				props.setProperty(PROP_PATTERN+pIdx, patterns[pIdx]);
+			}
+			OutputStream out = new FileOutputStream(tmpPropertiesFile);
+			try {
+				props.store(out, "Unmapped reads cache for "+bamFile.getPath());
+			} finally {
+				out.close();
+			}
+
+			propertiesFile.delete();
+			if (!recordsFile.delete() && recordsFile.exists()) {
+				throw new IOException("Could not replace "+recordsFile.getAbsolutePath());
+			}
+			if (!tmpRecordsFile.renameTo(recordsFile) || !tmpPropertiesFile.renameTo(propertiesFile)) {
+				throw new IOException("Could not rename the temporary files");
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warn("Could not write unmapped reads cache for "+bamFile.getPath()+": "+e);
+			if (!propertiesFile.exists()) {
+				recordsFile.delete();
+			}
+		} finally {
+			if (tmpRecordsFile != null) {
+				tmpRecordsFile.delete();
+			}
+			if (tmpPropertiesFile != null) {
+				tmpPropertiesFile.delete();
+			}
+		}
+	}
+}
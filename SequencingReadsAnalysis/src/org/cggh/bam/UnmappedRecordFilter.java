@@ -0,0 +1,23 @@
+package org.cggh.bam;
+
+import htsjdk.samtools.*;
+
+
+/*
+ * Implemented by collectors that can tell cheaply whether they are interested in an unmapped
+ * record, so that the unmapped reads of a BAM can be filtered by several threads at once.
+ * Only the records accepted are then passed to processUnmappedRecord(), in file order.
+ */
+public interface UnmappedRecordFilter {
+
+	/*
+	 * Must be thread-safe, and must not modify the record
+	 */
+	public boolean acceptUnmappedRecord (SAMRecord record);
+
+	/*
+	 * Patterns describing the records accepted (e.g. the anchors), used to decide whether cached
+	 * records can be reused: a filter must accept no record that is not accepted by some of its patterns.
+	 */
+	public String[] getFilterPatterns ();
+}
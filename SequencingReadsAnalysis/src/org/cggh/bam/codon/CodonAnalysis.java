@@ -9,6 +9,7 @@ import org.cggh.common.fileIO.*;
 import org.cggh.common.sequence.*;
 import org.cggh.common.util.FileUtilities;
 import org.apache.commons.logging.*;
+import htsjdk.samtools.SAMFileHeader;
 import java.io.*;
 import java.util.*;
 
@@ -43,18 +44,66 @@ public class CodonAnalysis extends SampleTargetAnalysis {
 			outputSampleResults (sr);
 			
 		} catch (Exception e) {
-			String sampleName = sample.getName();
-			String excMsg = e.toString();
-			log.info("Aborting " + sampleName);
-			log.error("Error processing BAM file for sample "+ sampleName + ": "+excMsg);
-			try {
-				recordSampleFailure (sampleName, excMsg);
-			} catch (IOException e1) {}
-			e.printStackTrace();
+			handleSampleFailure (sample, e);
 		}
 		log.info("Completed " + sample.getName());
 	}
 	
+	private void handleSampleFailure (Sample sample, Exception e) throws AnalysisException {
+		String sampleName = sample.getName();
+		String excMsg = e.toString();
+		log.info("Aborting " + sampleName);
+		log.error("Error processing BAM file for sample "+ sampleName + ": "+excMsg);
+		try {
+			recordSampleFailure (sampleName, excMsg);
+		} catch (IOException e1) {}
+		e.printStackTrace();
+	}
+	
+	/*
+	 * Collects the reads during a BAM pass shared with other analyses, then analyzes them
+	 */
+	public SampleReadsCollector createReadsCollector (Sample sample) throws AnalysisException {
+		return new CodonReadsCollector ();
+	}
+	
+	private class CodonReadsCollector extends ReadsRetrieverFromAlignment {
+		
+		private ReadsAlignmentBuilder[] alignmentBuilders;
+		
+		public CodonReadsCollector () throws AnalysisException {
+			super (config);
+		}
+		
+		public void startSample (Sample sample, SAMFileHeader header) throws AnalysisException {
+			super.startSample(sample, header);
+			Locus[] loci = getLoci();
+			alignmentBuilders = new ReadsAlignmentBuilder[loci.length];
+			for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+				alignmentBuilders[lIdx] = new ReadsAlignmentBuilder(sample, loci[lIdx]);
+			}
+		}
+		
+		/*
+		 * The reads go straight into the alignments, which count their bases as they come
+		 */
+		protected void addLocusRead (int lIdx, Read read) {
+			alignmentBuilders[lIdx].addRead(read);
+		}
+		
+		public void completeSample () throws AnalysisException {
+			Sample sample = getSample();
+			try {
+				SampleCodonAnalyzer analyzer = new SampleCodonAnalyzer (config, sample);
+				SampleResults sr = analyzer.analyzeSample(alignmentBuilders);
+				outputSampleResults (sr);
+			} catch (Exception e) {
+				handleSampleFailure (sample, e);
+			}
+			log.info("Completed " + sample.getName());
+		}
+	}
+	
 	private synchronized void recordSampleFailure (String sampleName, String excMsg) throws AnalysisException, IOException {
 		File errorFile = new File (outRootFolder, "FailedSamples.tab");
 		if (!errorFile.exists()) {
@@ -157,7 +206,7 @@ public class CodonAnalysis extends SampleTargetAnalysis {
 			SampleTargetResult[] tSampleResults = allTargetResults[tIdx];
 			
 			// Count the samples per allele in a master lists
-			LabelCounters alleleSampleCounters = new LabelCounters();
+			LabelCounters alleleSampleCounters = new AlleleLabelCounters();
 			for (int sIdx = 0; sIdx < tSampleResults.length; sIdx++) {
 				// Remove singleton alleles for the sample
 				SampleTargetResult sampleResult = tSampleResults[sIdx];
@@ -535,6 +584,10 @@ public class CodonAnalysis extends SampleTargetAnalysis {
 			File refFastaFile = new File(args[4]);		log.info("RefFastaFile: "+refFastaFile.getAbsolutePath());
 			File rootFolder = new File(args[5]);		log.info("RootFolder: "+rootFolder.getAbsolutePath());
 			
+			// Deep samples can be sped up by analyzing their loci in parallel
+			int locusThreads = Integer.parseInt(System.getProperty("locusThreads","0"));
+			SampleCodonAnalyzer.setLocusThreadCount(locusThreads);
+			
 			try {
 				Sample sample = new Sample (batchId, sampleId, sampleBamFile);
 				CodonAnalysis task = new CodonAnalysis(configFile, refFastaFile, rootFolder);
@@ -565,6 +618,8 @@ public class CodonAnalysis extends SampleTargetAnalysis {
 
 			
 			int maxThreads = Integer.parseInt(System.getProperty("maxThreads","0"));
+			int locusThreads = Integer.parseInt(System.getProperty("locusThreads","0"));
+			SampleCodonAnalyzer.setLocusThreadCount(locusThreads);
 			
 			try {	
 				MultiSampleAnalysis multi = new MultiSampleAnalysis(sampleListFile, maxThreads);
@@ -6,6 +6,7 @@ import org.cggh.common.counters.*;
 import org.cggh.common.exceptions.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 public class SampleCodonAnalyzer {
@@ -33,57 +34,143 @@ public class SampleCodonAnalyzer {
 		// Read the reads from the SAM file
 		ReadsRetriever srr = new ReadsRetrieverFromAlignment (config);
 		ArrayList<Read>[] mappedReadLists = srr.retrieveSampleReads(sample);
+		return analyzeSample (mappedReadLists);
+	}
+	
+	public SampleResults analyzeSample (ArrayList<Read>[] mappedReadLists) throws AnalysisException, IOException  {
+		ReadsAlignmentBuilder[] alignmentBuilders = new ReadsAlignmentBuilder[loci.length];
+		for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+			ArrayList<Read> mappedReadList = mappedReadLists[lIdx];
+			alignmentBuilders[lIdx] = new ReadsAlignmentBuilder(sample, loci[lIdx], mappedReadList.toArray(new Read[mappedReadList.size()]));
+		}
+		return analyzeSample (alignmentBuilders);
+	}
+	
+	/*
+	 * Analyzes the reads that have been added to an alignment builder for each locus, as they were retrieved
+	 */
+	public SampleResults analyzeSample (ReadsAlignmentBuilder[] alignmentBuilders) throws AnalysisException, IOException  {
 		
 		// Analyze each locus
-		SampleLocusResult[] locusResults = new SampleLocusResult[loci.length];
-		for (int lIdx = 0; lIdx < loci.length; lIdx++) {
-			TargetLocus locus = loci[lIdx];
-			Target[] targets = locus.getTargets();
-			SampleTargetResult[] tResults = new SampleTargetResult[targets.length];
+		SampleLocusResult[] locusResults;
+		ForkJoinPool pool = getLocusPool();
+		if ((pool != null) && (loci.length > 1)) {
+			locusResults = analyzeLociInParallel (alignmentBuilders, pool);
+		} else {
+			locusResults = new SampleLocusResult[loci.length];
+			for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+				locusResults[lIdx] = analyzeLocus (loci[lIdx], alignmentBuilders[lIdx]);
+			}
+		}
+		return new SampleResults(sample, locusResults);
+	}
+	
+	private SampleLocusResult analyzeLocus (TargetLocus locus, ReadsAlignmentBuilder alignmentBuilder) throws AnalysisException, IOException  {
+		Target[] targets = locus.getTargets();
+		SampleTargetResult[] tResults = new SampleTargetResult[targets.length];
 
-			// Handle the case where we have no mapped reads
-			ArrayList<Read> mappedReadList = mappedReadLists[lIdx];
-			if (mappedReadList.isEmpty()) {
-				for (int tIdx = 0; tIdx < targets.length; tIdx++) {
-					tResults[tIdx] = new SampleTargetResult(targets[tIdx], sample);
+		// Handle the case where we have no mapped reads
+		if (alignmentBuilder.getReadCount() == 0) {
+			for (int tIdx = 0; tIdx < targets.length; tIdx++) {
+				tResults[tIdx] = new SampleTargetResult(targets[tIdx], sample);
+			}
+			return new SampleLocusResult(locus, tResults, 0, 0);
+		}
+		
+		// Make an alignment and discard those reads that have too many differences from consensus
+		ReadsAlignment ra = alignmentBuilder.build();
+		Read[] sampleReads = ra.getAlignedReads();
+		
+		// Genotype the targets for each read
+		for (int tIdx = 0; tIdx < targets.length; tIdx++) {
+			AlignmentTarget target = (AlignmentTarget)targets[tIdx];
+			TargetGenotyper tg = new TargetGenotyper (target, config);
+			TargetGenotype[] targetGenos = tg.extractTargetGenotypes (sampleReads);
+			
+			LabelCounters ntAlleleCounters = new AlleleLabelCounters();
+			int lowQualityCount = 0;
+			for (int rIdx = 0; rIdx < targetGenos.length; rIdx++) {
+				TargetGenotype geno = targetGenos[rIdx];
+				if (geno.isValidGenotype()) {
+					String ntAllele = geno.getNtGenotype();
+					ntAlleleCounters.increment(ntAllele);
+				} else if (geno instanceof TargetGenotype.LowQualityTargetGenotype) {
+					lowQualityCount++;
 				}
-				locusResults[lIdx] = new SampleLocusResult(locus, tResults, 0, 0);
-				continue;
 			}
 			
-			// Make an alignment and discard those reads that have too many differences from consensus
-			Read[] sampleReads = mappedReadList.toArray(new Read[mappedReadList.size()]);
-			ReadsAlignment ra = new ReadsAlignment(sample, locus, sampleReads);
-			sampleReads = ra.getAlignedReads();
+			// Final step: make calls
+			SampleCall sampleCall = caller.callSample(target, ntAlleleCounters);
 			
-			// Genotype the targets for each read
-			for (int tIdx = 0; tIdx < targets.length; tIdx++) {
-				AlignmentTarget target = (AlignmentTarget)targets[tIdx];
-				TargetGenotyper tg = new TargetGenotyper (target, config);
-				TargetGenotype[] targetGenos = tg.extractTargetGenotypes (sampleReads);
-				
-				LabelCounters ntAlleleCounters = new LabelCounters();
-				int lowQualityCount = 0;
-				for (int rIdx = 0; rIdx < targetGenos.length; rIdx++) {
-					TargetGenotype geno = targetGenos[rIdx];
-					if (geno.isValidGenotype()) {
-						String ntAllele = geno.getNtGenotype();
-						ntAlleleCounters.increment(ntAllele);
-					} else if (geno instanceof TargetGenotype.LowQualityTargetGenotype) {
-						lowQualityCount++;
-					}
+			// Store target results
+			tResults[tIdx] = new SampleTargetResult(target, sample, sampleCall, ntAlleleCounters, lowQualityCount);
+		}
+		// Store locus results
+		return new SampleLocusResult(locus, tResults, sampleReads.length, ra.getMisalignedReads().length);
+	}
+	
+	
+	/* ==========================================================
+	 * Intra-sample parallelism: the loci of a sample are independent, so they can be
+	 * aligned and genotyped in parallel. Each locus result is stored at the locus index,
+	 * so the results come out in the same order as when running sequentially.
+	 * ==========================================================
+	 */
+	private static int          locusThreadCount = 0;
+	private static ForkJoinPool locusPool = null;
+	
+	/*
+	 * Number of threads used to analyze the loci of a sample in parallel; 0 or 1 to analyze them sequentially.
+	 * The threads are shared by all the samples being analyzed.
+	 */
+	public static synchronized void setLocusThreadCount (int threadCount) {
+		if (threadCount == locusThreadCount) {
+			return;
+		}
+		if (locusPool != null) {
+			locusPool.shutdown();
+			locusPool = null;
+		}
+		locusThreadCount = threadCount;
+	}
+	
+	private static synchronized ForkJoinPool getLocusPool () {
+		if ((locusPool == null) && (locusThreadCount > 1)) {
+			locusPool = new ForkJoinPool(locusThreadCount);
+		}
+		return locusPool;
+	}
+	
+	private SampleLocusResult[] analyzeLociInParallel (final ReadsAlignmentBuilder[] alignmentBuilders, ForkJoinPool pool) throws AnalysisException, IOException  {
+		final SampleLocusResult[] locusResults = new SampleLocusResult[loci.length];
+		ArrayList<ForkJoinTask<?>> locusTasks = new ArrayList<ForkJoinTask<?>>();
+		for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+			final int locusIdx = lIdx;
+			locusTasks.add(pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					locusResults[locusIdx] = analyzeLocus (loci[locusIdx], alignmentBuilders[locusIdx]);
+					return null;
 				}
-				
-				// Final step: make calls
-				SampleCall sampleCall = caller.callSample(target, ntAlleleCounters);
-				
-				// Store target results
-				tResults[tIdx] = new SampleTargetResult(target, sample, sampleCall, ntAlleleCounters, lowQualityCount);
+			}));
+		}
+		for (ForkJoinTask<?> locusTask : locusTasks) {
+			try {
+				locusTask.get();
+			} catch (InterruptedException e) {
+				throw new AnalysisException("Interrupted while analyzing sample " + sample.getName());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof AnalysisException) {
+					throw (AnalysisException)cause;
+				} else if (cause instanceof IOException) {
+					throw (IOException)cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException)cause;
+				}
+				throw new AnalysisException("Error analyzing sample " + sample.getName() + ": " + cause);
 			}
-			// Store locus results
-			locusResults[lIdx] = new SampleLocusResult(locus, tResults, sampleReads.length, ra.getMisalignedReads().length);
 		}
-		return new SampleResults(sample, locusResults);
+		return locusResults;
 	}
 	
 
@@ -21,7 +21,7 @@ public class SampleTargetResult {
 	}
 
 	public SampleTargetResult(Target target, Sample sample) {
-		this(target, sample, SampleCall.makeMissingCall(), new LabelCounters(), 0);
+		this(target, sample, SampleCall.makeMissingCall(), new AlleleLabelCounters(), 0);
 	}
 
 	public Target getTarget() {
@@ -0,0 +1,160 @@
+package org.cggh.bam.grc;
+
+import org.cggh.bam.*;
+import org.cggh.bam.codon.*;
+import org.cggh.bam.heteroallelic.*;
+import org.cggh.bam.readCounts.*;
+import org.cggh.bam.sampleClass.*;
+import org.cggh.common.exceptions.*;
+import org.cggh.common.util.*;
+import org.apache.commons.logging.*;
+import java.io.*;
+import java.util.*;
+
+
+/*
+ * Runs several analyses of the Genetic Report Card together, reading each sample BAM only once:
+ * the search regions of all the analyses are merged into a single query, and the records are
+ * passed to the reads collectors of all the analyses that need them.
+ */
+public class CombinedReportCardAnalysis extends SampleAnalysis {
+
+	private static Log log = LogFactory.getLog(org.cggh.common.util.ClassUtilities.getCurrentClassName());
+
+	private SampleAnalysis[] analyses;
+
+	public CombinedReportCardAnalysis (SampleAnalysis[] analyses, File outRootFolder) throws AnalysisException  {
+		super (outRootFolder);
+		this.analyses = analyses;
+	}
+
+	/* **********************************************************************
+	 * Single sample processing
+	 * **********************************************************************
+	 */
+	public void analyzeSample (Sample sample) throws AnalysisException  {
+		// Get the collectors of all the analyses that can share the BAM pass; the others are run on their own.
+		// A failed analysis does not stop the others, but the sample fails once they have all run.
+		ArrayList<SampleReadsCollector> collectorList = new ArrayList<SampleReadsCollector>();
+		ArrayList<String> errors = new ArrayList<String>();
+		for (int aIdx = 0; aIdx < analyses.length; aIdx++) {
+			SampleReadsCollector collector = analyses[aIdx].createReadsCollector(sample);
+			if (collector != null) {
+				collectorList.add(collector);
+			} else {
+				try {
+					analyses[aIdx].analyzeSample(sample);
+				} catch (AnalysisException e) {
+					log.error("Error processing sample " + sample.getName() + " in " + analyses[aIdx].getClass().getSimpleName() + ": "+e);
+					errors.add(analyses[aIdx].getClass().getSimpleName() + ": " + e.getMessage());
+				}
+			}
+		}
+
+		// Read the sample BAM once for all the analyses, then analyze the reads and write out the results
+		if (!collectorList.isEmpty()) {
+			SampleReadsCollector[] collectors = collectorList.toArray(new SampleReadsCollector[collectorList.size()]);
+			CompositeReadsCollector collector = new CompositeReadsCollector(sample, collectors);
+			try {
+				SampleReadsScanner.scanSample(sample, collector);
+				collector.completeSample();
+			} catch (AnalysisException e) {
+				errors.add(e.getMessage());
+			}
+		}
+		if (!errors.isEmpty()) {
+			throw new AnalysisException("Analysis of sample " + sample.getName() + " failed: " + TextUtilities.stringListToString(errors, "; "));
+		}
+	}
+
+	/*
+	 * The analyses can only be split into a BAM reading and an analysis phase if all of them have collectors
+	 */
+	public SampleReadsCollector createReadsCollector (Sample sample) throws AnalysisException {
+		SampleReadsCollector[] collectors = new SampleReadsCollector[analyses.length];
+		for (int aIdx = 0; aIdx < analyses.length; aIdx++) {
+			collectors[aIdx] = analyses[aIdx].createReadsCollector(sample);
+			if (collectors[aIdx] == null) {
+				return null;
+			}
+		}
+		return new CompositeReadsCollector(sample, collectors);
+	}
+
+	/* **********************************************************************
+	 * Multi sample processing
+	 * **********************************************************************
+	 */
+	public void analyzeAllSampleResults (Sample[] samples) throws AnalysisException, IOException  {
+		for (int aIdx = 0; aIdx < analyses.length; aIdx++) {
+			analyses[aIdx].analyzeAllSampleResults(samples);
+		}
+	}
+
+	/*
+	 * Creates an analysis from a command-line specification of the form <type>:<configFile>, or
+	 * readCounts:<configFile>:<prefix>:<snpListFile> for read counts. Each analysis writes its
+	 * results to a subfolder of the root folder, named after the analysis type.
+	 */
+	private static SampleAnalysis createAnalysis (String analysisSpec, File rootFolder) throws AnalysisException  {
+		String[] parts = analysisSpec.split(":");
+		String type = parts[0];
+		File outFolder = new File(rootFolder, type);
+		if ("readCounts".equals(type)) {
+			if (parts.length != 4) {
+				throw new AnalysisException ("Invalid read counts analysis '"+analysisSpec+"': must be readCounts:<configFile>:<prefix>:<snpListFile>");
+			}
+			return new ReadCountAnalysis (new File(parts[1]), new File(parts[3]), outFolder, parts[2]);
+		}
+		if (parts.length != 2) {
+			throw new AnalysisException ("Invalid analysis '"+analysisSpec+"': must be <type>:<configFile>");
+		}
+		File configFile = new File(parts[1]);
+		if ("codon".equals(type)) {
+			return new CodonAnalysis (configFile, null, outFolder);
+		} else if ("sampleClass".equals(type)) {
+			return new SampleClassAnalysis (configFile, null, outFolder);
+		} else if ("heteroallelic".equals(type)) {
+			return new HeteroallelicAnalysis (configFile, null, outFolder);
+		}
+		throw new AnalysisException ("Invalid analysis type '"+type+"': must be one of codon, sampleClass, heteroallelic or readCounts");
+	}
+
+	/* ==========================================================
+	 * Multi Sample Execution
+	 * ==========================================================
+	 */
+	public static class MultiSample {
+		public static void main(String[] args) {
+			if (args.length < 4) {
+				log.error("Usage: org.cggh.bam.grc.CombinedReportCardAnalysis$MultiSample <sampleListFile> <refFasta> <rootFolder> <analysis> [<analysis> ...]");
+				log.error("where <analysis> is one of codon:<configFile>, sampleClass:<configFile>, heteroallelic:<configFile>, readCounts:<configFile>:<prefix>:<snpListFile>");
+				return;
+			}
+			File sampleListFile = new File(args[0]);	log.info("SampleListFile: "+sampleListFile.getAbsolutePath());
+			File refFastaFile = new File(args[1]);		log.info("RefFastaFile: "+refFastaFile.getAbsolutePath());
+			File rootFolder = new File(args[2]);		log.info("RootFolder: "+rootFolder.getAbsolutePath());
+
+			int maxThreads = Integer.parseInt(System.getProperty("maxThreads","0"));
+
+			try {
+				// Load the reference once, for all the analyses
+				ReferenceGenome.initialize(refFastaFile);
+				SampleAnalysis[] analyses = new SampleAnalysis[args.length - 3];
+				for (int aIdx = 0; aIdx < analyses.length; aIdx++) {
+					String analysisSpec = args[aIdx + 3];	log.info("Analysis: "+analysisSpec);
+					analyses[aIdx] = createAnalysis(analysisSpec, rootFolder);
+				}
+				CombinedReportCardAnalysis task = new CombinedReportCardAnalysis(analyses, rootFolder);
+				MultiSampleAnalysis multi = new MultiSampleAnalysis(sampleListFile, maxThreads);
+				multi.execute(task);	// Calls analyzeSample() for each sample
+				task.analyzeAllSampleResults(multi.getSamples());
+			} catch (Exception e) {
+				log.error("Error executing task: " + e);
+				e.printStackTrace();
+				return;
+			}
+			log.info("Exiting");
+		}
+	}
+}
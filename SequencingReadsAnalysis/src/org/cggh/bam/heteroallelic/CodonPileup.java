@@ -0,0 +1,123 @@
+package org.cggh.bam.heteroallelic;
+
+import org.cggh.bam.*;
+import org.cggh.common.sequence.*;
+import htsjdk.samtools.*;
+
+
+/*
+ * Projects reads onto the codons of a locus region through their CIGAR, and translates the codons
+ * that each read fully covers, directly from the record bytes into a reusable buffer. Soft clips
+ * are skipped, so the aligned part of clipped reads is used. Codons that contain a deleted base,
+ * an insertion, a base other than A, C, G or T, or a base with low quality are returned as
+ * SequenceUtilities.UNKNOWN_AMINO.
+ *
+ * Codons are indexed in the locus orientation: for a reverse-strand locus, codon 0 is at the end
+ * of the region, and the reads are reverse-complemented as they are translated.
+ *
+ * Instances are not thread-safe: each sample must use its own.
+ */
+public class CodonPileup {
+
+	private int            codonCount;
+	private int            frameStartPos;   // Reference position of the first base of the leftmost codon
+	private boolean        isReverse;
+	private int            minBaseQ;
+	private CigarProjector projector;
+
+	private char[]         aminos;
+	private int            firstCodonIdx;
+	private int            readCodonCount;
+
+	public CodonPileup (int startPos, int endPos, boolean isReverse, int maxIndelSize, int minBaseQ) {
+		this.codonCount = (endPos - startPos + 1) / 3;
+		this.isReverse = isReverse;
+		// Reverse-strand codons are counted from the end of the region
+		this.frameStartPos = isReverse ? (endPos - (3 * codonCount) + 1) : startPos;
+		this.minBaseQ = minBaseQ;
+		this.projector = new CigarProjector(maxIndelSize);
+		this.aminos = new char[codonCount];
+	}
+
+	/*
+	 * Projects and translates a read. Returns false if the read does not fully cover any codon of the
+	 * region, or if its CIGAR cannot be projected (e.g. it has indels that are too large); otherwise,
+	 * the codons of the read can be retrieved until the next call.
+	 */
+	public boolean projectRead (SAMRecord record) {
+		byte[] bases = record.getReadBases();
+		byte[] quals = record.getBaseQualities();
+		if (quals.length != bases.length) {
+			return false;  // No base qualities
+		}
+		int len = bases.length;
+		CigarProjector.Projection projection = null;
+		Cigar cigar = record.getCigar();
+		if (!CigarProjector.isUngapped(cigar)) {
+			try {
+				projection = projector.project(bases, quals, cigar);
+			} catch (CigarProjector.CigarException e) {
+				return false;
+			}
+			bases = projection.getBases();
+			quals = projection.getQualities();
+			len = projection.getLength();
+		}
+
+		// The leftmost and rightmost codons (forward-strand) fully covered by the projected read
+		int readOffset = record.getAlignmentStart() - frameStartPos;
+		int leftCodonIdx = Math.max(0, -Math.floorDiv(-readOffset, 3));
+		int rightCodonIdx = Math.min(codonCount - 1, Math.floorDiv(readOffset + len - 3, 3));
+		if (rightCodonIdx < leftCodonIdx) {
+			return false;
+		}
+		readCodonCount = rightCodonIdx - leftCodonIdx + 1;
+		firstCodonIdx = isReverse ? (codonCount - 1 - rightCodonIdx) : leftCodonIdx;
+		int firstBaseIdx = (3 * leftCodonIdx) - readOffset;
+		SequenceUtilities.translateNtSequence(bases, firstBaseIdx, 3 * readCodonCount, isReverse, aminos, 0);
+
+		// Deleted bases ('-') have already been translated as unknown
+		for (int i = 0; i < readCodonCount; i++) {
+			int baseIdx = firstBaseIdx + 3 * (isReverse ? (readCodonCount - 1 - i) : i);
+			if ((quals[baseIdx] < minBaseQ) || (quals[baseIdx + 1] < minBaseQ) || (quals[baseIdx + 2] < minBaseQ)) {
+				aminos[i] = SequenceUtilities.UNKNOWN_AMINO;
+			}
+		}
+		if (projection != null) {
+			for (int insIdx = 0; insIdx < projection.getInsertionCount(); insIdx++) {
+				// Insertions between codons leave them intact
+				int insOffset = projection.getInsertionOffset(insIdx) - firstBaseIdx;
+				if ((insOffset > 0) && (insOffset < 3 * readCodonCount) && ((insOffset % 3) != 0)) {
+					int leftIdx = insOffset / 3;
+					aminos[isReverse ? (readCodonCount - 1 - leftIdx) : leftIdx] = SequenceUtilities.UNKNOWN_AMINO;
+				}
+			}
+		}
+		return true;
+	}
+
+	public int getCodonCount () {
+		return codonCount;
+	}
+
+	/*
+	 * The index of the first codon covered by the last read projected
+	 */
+	public int getFirstCodonIdx () {
+		return firstCodonIdx;
+	}
+
+	/*
+	 * The number of consecutive codons covered by the last read projected
+	 */
+	public int getReadCodonCount () {
+		return readCodonCount;
+	}
+
+	/*
+	 * The amino of codon getFirstCodonIdx()+idx in the last read projected, or SequenceUtilities.UNKNOWN_AMINO
+	 */
+	public char getAmino (int idx) {
+		return aminos[idx];
+	}
+}
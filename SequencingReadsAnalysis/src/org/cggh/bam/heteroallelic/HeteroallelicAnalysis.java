@@ -29,7 +29,6 @@ public class HeteroallelicAnalysis extends SampleAnalysis {
 	public static final int CALL_HET = 4;
 	
 	private HeteroallelicConfig   config;
-	private SamReaderFactory      samReaderFactory = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT);
 	private SampleLocusLogFile    msgLog;
 	private AlleleValidator       validator;
 	
@@ -46,226 +45,238 @@ public class HeteroallelicAnalysis extends SampleAnalysis {
 	}
 	
 	public void analyzeSample(Sample sample) throws AnalysisException {
-		log.info("Starting " + sample.getName());
-		HeteroallelicLocus[] loci = config.getLoci();
-		File outFolder = getSampleSubfolder(outRootFolder, sample, true);
+		LocusRegionsCollector collector = new LocusRegionsCollector();
+		SampleReadsScanner.scanSample(sample, collector);
+		collector.completeSample();
+	}
+	
+	public SampleReadsCollector createReadsCollector (Sample sample) throws AnalysisException {
+		return new LocusRegionsCollector();
+	}
+	
+	/*
+	 * Processes the reads of all the loci in a single pass over the sample BAM, 
+	 * which can be shared with other analyses.
+	 */
+	private class LocusRegionsCollector implements SampleReadsCollector {
+		Sample                  sample;
+		HeteroallelicLocus[]    loci;
+		LocusRegion[]           regions;
+		ArrayList<MutantAllele> mutantAlleleList = new ArrayList<MutantAllele>();
 		
-		for (int lIdx = 0; lIdx < loci.length; lIdx++) {
-			HeteroallelicLocus locus = loci[lIdx];
-			msgLog = new SampleLocusLogFile(sample, locus, MESSAGE_LOG_FILE_HEADERS);
-			
-			try {
-				// Analyze the sample in the locus region
-				LocusRegion region = analyzeSampleLocusRegion(sample, locus);
-				
-				// Write out the mutant codon calls to file
-				TableOutput alleleOut = new TableOutput(outFolder, sample.getName() + "." + locus.getName() + ".mutations.tab", 
-						new String[] { "Batch", "Sample", "Locus", "Codon", "Call", "Mutation", "TotalReadCount", "MutantReadCount", "MutantReadProp" }, 64 * 1024);
-				int sampleCall = CALL_MISSING;
-				String sampleMutation = null;
-				int[] readCounts = new int[region.codonCount];
-				
-				int missingCount = 0;
-				for (int cIdx = 0; cIdx < region.codonCount; cIdx++) {
-					CodonCall cc = region.callCodon(cIdx);
-					readCounts[cIdx] = cc.totalReads;
-					
-			        switch (cc.call) {
-					case CALL_MISSING:
-						missingCount++;
-						break;
-					case CALL_WT:
-						if (sampleCall == CALL_MISSING) {
-							sampleCall = CALL_WT;
-							sampleMutation = "WT";
-						}
-						break;
-					case CALL_MUTANT: 
-						switch (sampleCall) {
-						case CALL_MISSING:
-						case CALL_WT:
-							sampleCall = CALL_MUTANT;
-							sampleMutation = cc.mutation;
-							break;
-						case CALL_MUTANT:
-						case CALL_HET:
-							sampleCall = CALL_HET;
-							sampleMutation = (sampleMutation == null) ? cc.mutation : sampleMutation+","+cc.mutation;
-							break;
-						}
-						break;
-					case CALL_HET:
-						sampleCall = CALL_HET;
-						switch (sampleCall) {
-						case CALL_MISSING:
-						case CALL_WT:
-							sampleMutation = cc.mutation;
-							break;
-						case CALL_MUTANT:
-						case CALL_HET:
-							sampleMutation = (sampleMutation == null) ? cc.mutation : sampleMutation+","+cc.mutation;
-							break;
-						}
-						break;
-					}
-					if (cc.call == CALL_MUTANT || cc.call == CALL_HET) {
-						alleleOut.newRow();
-						alleleOut.appendValue(sample.getBatch());
-						alleleOut.appendValue(sample.getName());
-						alleleOut.appendValue(locus.getName());
-						alleleOut.appendValue(cIdx + locus.getStartCodon());
-						alleleOut.appendValue(getCallString(cc.call));
-						alleleOut.appendValue(cc.mutation);
-						alleleOut.appendValue(cc.totalReads);
-						alleleOut.appendValue(cc.mutReads);
-						alleleOut.appendValue(cc.mutProp);
-					}
-				}
-				alleleOut.close();
-				
-				double missingCallsProp = ((double)missingCount) / ((double)region.codonCount);
-
-				// Write out the call for the sample to file
-				Statistics stat = new Statistics(readCounts);
-				TableOutput callOut = new TableOutput(outFolder, sample.getName() + "." + locus.getName() + ".calls.tab", CALL_FILE_HEADERS, 1024);
-				callOut.setMaximumFractionDigits(2);
-				callOut.newRow();
-				callOut.appendValue(sample.getBatch());
-				callOut.appendValue(sample.getName());
-				callOut.appendValue(locus.getName());
-				callOut.appendValue(getCallString(sampleCall));
-				callOut.appendValue(sampleMutation);
-				callOut.appendValue(missingCallsProp);
-				callOut.appendValue(stat.getMedian());
-				callOut.appendValue(stat.getMean());
-				callOut.close();
-				
-				// Report any multiple mutant reads observed in the sample
-				MultipleMutant[] mutants = region.getMultipleMutants ();
-				if (mutants.length > 0) {
-					TableOutput mmOut = new TableOutput(outFolder, sample.getName() + "." + locus.getName() + ".multipleMutants.tab", MULTI_MUTANT_FILE_HEADERS, 4096);
-					for (MultipleMutant mm : mutants) {
-						mmOut.newRow();
-						mmOut.appendValue(sample.getBatch());
-						mmOut.appendValue(sample.getName());
-						mmOut.appendValue(locus.getName());
-						mmOut.appendValue(mm.getLabel());
-						mmOut.appendValue(mm.readCounts);
-					}
-					mmOut.close();
+		public void startSample (Sample sample, SAMFileHeader header) throws AnalysisException {
+			log.info("Starting " + sample.getName());
+			this.sample = sample;
+			loci = config.getLoci();
+			regions = new LocusRegion[loci.length];
+			for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+				try {
+					regions[lIdx] = new LocusRegion (loci[lIdx], sample);
+				} catch (AnalysisException e) {
+					log.info("Aborted analysis of " + sample.getName() + " at locus " + loci[lIdx].getName() + ": " + e);
+					e.printStackTrace();
 				}
-				
-				// Report messages, if any were generated for the sample
-				if (!msgLog.isEmpty()) {
-					msgLog.saveFile(outFolder);
-					msgLog.clear();
+			}
+		}
+		
+		public GenomeRegion[] getSearchRegions () {
+			ArrayList<GenomeRegion> regionList = new ArrayList<GenomeRegion>();
+			for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+				if (regions[lIdx] != null) {
+					regionList.add(loci[lIdx].getRegion());
 				}
-				
-			} catch (AnalysisException e) {
-				log.info("Aborted analysis of " + sample.getName() + " at locus " + loci[lIdx].getName() + ": " + e);
-				e.printStackTrace();
 			}
+			return regionList.toArray(new GenomeRegion[regionList.size()]);
 		}
 		
-		log.info("Completed " + sample.getName());
-	}
-	
-	public LocusRegion analyzeSampleLocusRegion(Sample sample, HeteroallelicLocus locus) throws AnalysisException {
+		public boolean needsUnmappedReads () {
+			return false;
+		}
 		
-		LocusRegion region = new LocusRegion (locus, sample);
-		ArrayList<MutantAllele> mutantAlleleList = new ArrayList<MutantAllele>();
-		SamReader samReader = samReaderFactory.open(sample.getBamFile());
-		SAMRecordIterator it = samReader.query(region.chrName, region.startPos, region.endPos, false);
-		while (it.hasNext()) {
-			SAMRecord record = (SAMRecord) it.next();
-			boolean isUngapped = (record.getCigarLength() == 1) && record.getCigarString().endsWith("M");
-			if (!isUngapped) {
-				continue;
+		public void processMappedRecord (SAMRecord record) throws AnalysisException {
+			String chrName = record.getReferenceName();
+			int recordStart = record.getAlignmentStart();
+			int recordEnd = SampleReadsScanner.getRecordEnd(record);
+			for (int lIdx = 0; lIdx < regions.length; lIdx++) {
+				LocusRegion region = regions[lIdx];
+				if ((region != null) && region.chrName.equals(chrName) && (recordStart <= region.endPos) && (recordEnd >= region.startPos)) {
+					processLocusRecord (region, record, mutantAlleleList);
+				}
 			}
-			int readLen = record.getReadLength();
-			int readStartPos = record.getAlignmentStart();
-			int readLeftOffset = readStartPos - region.startPos;
-			int firstCodonIdx;
-			int trimLeftIdx;
-			if (readLeftOffset < 0) {
-				firstCodonIdx = 0;
-				trimLeftIdx = -readLeftOffset;
-				int trimmedLen = readLen - trimLeftIdx;
-				if (trimmedLen < 3) {
+		}
+		
+		public void processUnmappedRecord (SAMRecord record) throws AnalysisException {
+		}
+		
+		public void completeSample () throws AnalysisException {
+			File outFolder = getSampleSubfolder(outRootFolder, sample, true);
+			for (int lIdx = 0; lIdx < loci.length; lIdx++) {
+				if (regions[lIdx] == null) {
 					continue;
 				}
-			} else {
-				firstCodonIdx = readLeftOffset / 3;
-				int trimLeftLen = readLeftOffset % 3;
-				trimLeftIdx = 0;
-				if (trimLeftLen > 0) {
-					trimLeftIdx += 3 - trimLeftLen;
-					firstCodonIdx++;
+				try {
+					outputLocusResults (sample, loci[lIdx], regions[lIdx], outFolder);
+				} catch (AnalysisException e) {
+					log.info("Aborted analysis of " + sample.getName() + " at locus " + loci[lIdx].getName() + ": " + e);
+					e.printStackTrace();
 				}
-				int trimmedLen = readLen - trimLeftIdx;
-				if (trimmedLen < 3)
-					continue;
 			}
+			log.info("Completed " + sample.getName());
+		}
+	}
+	
+	private void outputLocusResults (Sample sample, HeteroallelicLocus locus, LocusRegion region, File outFolder) throws AnalysisException {
+		msgLog = new SampleLocusLogFile(sample, locus, MESSAGE_LOG_FILE_HEADERS);
+		
+		// Write out the mutant codon calls to file
+		TableOutput alleleOut = new TableOutput(outFolder, sample.getName() + "." + locus.getName() + ".mutations.tab", 
+				new String[] { "Batch", "Sample", "Locus", "Codon", "Call", "Mutation", "TotalReadCount", "MutantReadCount", "MutantReadProp" }, 64 * 1024);
+		int sampleCall = CALL_MISSING;
+		String sampleMutation = null;
+		int[] readCounts = new int[region.codonCount];
+		
+		int missingCount = 0;
+		for (int cIdx = 0; cIdx < region.codonCount; cIdx++) {
+			CodonCall cc = region.callCodon(cIdx);
+			readCounts[cIdx] = cc.totalReads;
 			
-			int trimRightIdx;
-			int readRightOffset;
-			int lastCodonIdx;
-			int readEndPos = readStartPos + readLen - 1;
-			if ((readRightOffset = region.endPos - readEndPos) < 0) {
-				lastCodonIdx = region.codonCount - 1;
-				trimRightIdx = readLen - 1 + readRightOffset;
-				int trimmedLen = 1 + trimRightIdx - trimLeftIdx;
-				if (trimmedLen < 3) {
-					continue;
+	        switch (cc.call) {
+			case CALL_MISSING:
+				missingCount++;
+				break;
+			case CALL_WT:
+				if (sampleCall == CALL_MISSING) {
+					sampleCall = CALL_WT;
+					sampleMutation = "WT";
 				}
-			} else {
-				lastCodonIdx = region.codonCount - 1 - readRightOffset / 3;
-				int trimRightLen = readRightOffset % 3;
-				trimRightIdx = readLen - 1;
-				if (trimRightLen > 0) {
-					trimRightIdx -= 3 - readRightOffset % 3;
-					--lastCodonIdx;
+				break;
+			case CALL_MUTANT: 
+				switch (sampleCall) {
+				case CALL_MISSING:
+				case CALL_WT:
+					sampleCall = CALL_MUTANT;
+					sampleMutation = cc.mutation;
+					break;
+				case CALL_MUTANT:
+				case CALL_HET:
+					sampleCall = CALL_HET;
+					sampleMutation = (sampleMutation == null) ? cc.mutation : sampleMutation+","+cc.mutation;
+					break;
 				}
-				int trimmedLen = 1 + trimRightIdx - trimLeftIdx;
-				if (trimmedLen < 3)
-					continue;
-			}
-			String readSeq = record.getReadString();
-			String readQ = record.getBaseQualityString();
-			String trimmedReadSeq = readSeq.substring(trimLeftIdx, trimRightIdx + 1);
-			String trimmedReadQ   = readQ.substring(trimLeftIdx, trimRightIdx + 1);
-			if (locus.isReverse()) {
-				trimmedReadSeq = SequenceUtilities.getReverseComplementSequence((String) trimmedReadSeq);
-				trimmedReadQ = TextUtilities.reverse((String) trimmedReadQ);
-				int firstCodonIdxTmp = region.codonCount - lastCodonIdx - 1;
-				lastCodonIdx = region.codonCount - firstCodonIdx - 1;
-				firstCodonIdx = firstCodonIdxTmp;
-			}
-			char[] readAminos = SequenceUtilities.translateNtSequence((String) trimmedReadSeq).toCharArray();
-			boolean[] highQuality = getCodonQuality(trimmedReadQ);
-			mutantAlleleList.clear();
-			
-			boolean isReverse = record.getReadNegativeStrandFlag();
-			for (int i2 = 0; i2 < readAminos.length; i2++) {
-				int codonIdx = firstCodonIdx + i2;
-				if (codonIdx >= region.codonCount)
+				break;
+			case CALL_HET:
+				sampleCall = CALL_HET;
+				switch (sampleCall) {
+				case CALL_MISSING:
+				case CALL_WT:
+					sampleMutation = cc.mutation;
+					break;
+				case CALL_MUTANT:
+				case CALL_HET:
+					sampleMutation = (sampleMutation == null) ? cc.mutation : sampleMutation+","+cc.mutation;
 					break;
-				if (highQuality[i2]) {
-					char amino = readAminos[i2];
-					char refAmino = region.refAminos[codonIdx];
-					if (amino != refAmino) {
-						mutantAlleleList.add(new MutantAllele(codonIdx+locus.getStartCodon(), refAmino, amino));
-					}
-					region.processReadAminoAllele (codonIdx, amino, isReverse);
 				}
+				break;
 			}
-			
-			region.processReadForMultipleMutations (mutantAlleleList);
+			if (cc.call == CALL_MUTANT || cc.call == CALL_HET) {
+				alleleOut.newRow();
+				alleleOut.appendValue(sample.getBatch());
+				alleleOut.appendValue(sample.getName());
+				alleleOut.appendValue(locus.getName());
+				alleleOut.appendValue(cIdx + locus.getStartCodon());
+				alleleOut.appendValue(getCallString(cc.call));
+				alleleOut.appendValue(cc.mutation);
+				alleleOut.appendValue(cc.totalReads);
+				alleleOut.appendValue(cc.mutReads);
+				alleleOut.appendValue(cc.mutProp);
+			}
+		}
+		alleleOut.close();
+		
+		double missingCallsProp = ((double)missingCount) / ((double)region.codonCount);
+
+		// Write out the call for the sample to file
+		Statistics stat = new Statistics(readCounts);
+		TableOutput callOut = new TableOutput(outFolder, sample.getName() + "." + locus.getName() + ".calls.tab", CALL_FILE_HEADERS, 1024);
+		callOut.setMaximumFractionDigits(2);
+		callOut.newRow();
+		callOut.appendValue(sample.getBatch());
+		callOut.appendValue(sample.getName());
+		callOut.appendValue(locus.getName());
+		callOut.appendValue(getCallString(sampleCall));
+		callOut.appendValue(sampleMutation);
+		callOut.appendValue(missingCallsProp);
+		callOut.appendValue(stat.getMedian());
+		callOut.appendValue(stat.getMean());
+		callOut.close();
+		
+		// Report any multiple mutant reads observed in the sample
+		MultipleMutant[] mutants = region.getMultipleMutants ();
+		if (mutants.length > 0) {
+			TableOutput mmOut = new TableOutput(outFolder, sample.getName() + "." + locus.getName() + ".multipleMutants.tab", MULTI_MUTANT_FILE_HEADERS, 4096);
+			for (MultipleMutant mm : mutants) {
+				mmOut.newRow();
+				mmOut.appendValue(sample.getBatch());
+				mmOut.appendValue(sample.getName());
+				mmOut.appendValue(locus.getName());
+				mmOut.appendValue(mm.getLabel());
+				mmOut.appendValue(mm.readCounts);
+			}
+			mmOut.close();
+		}
+		
+		// Report messages, if any were generated for the sample
+		if (!msgLog.isEmpty()) {
+			msgLog.saveFile(outFolder);
+			msgLog.clear();
+		}
+	}
+	
+	public LocusRegion analyzeSampleLocusRegion(Sample sample, HeteroallelicLocus locus) throws AnalysisException {
+		
+		LocusRegion region = new LocusRegion (locus, sample);
+		ArrayList<MutantAllele> mutantAlleleList = new ArrayList<MutantAllele>();
+		SamReader samReader = SamReaderPool.acquire(sample.getBamFile());
+		SAMRecordIterator it = samReader.query(region.chrName, region.startPos, region.endPos, false);
+		try {
+			while (it.hasNext()) {
+				SAMRecord record = (SAMRecord) it.next();
+				processLocusRecord (region, record, mutantAlleleList);
+			}
+		} finally {
+			it.close();
+			SamReaderPool.release(samReader);
 		}
-		it.close();
 		return region;
 	}
 	
+	private void processLocusRecord (LocusRegion region, SAMRecord record, ArrayList<MutantAllele> mutantAlleleList) throws AnalysisException {
+		HeteroallelicLocus locus = region.locus;
+		CodonPileup pileup = region.pileup;
+		if (!pileup.projectRead(record)) {
+			return;
+		}
+		mutantAlleleList.clear();
+	
+		boolean isReverse = record.getReadNegativeStrandFlag();
+		int firstCodonIdx = pileup.getFirstCodonIdx();
+		int readCodonCount = pileup.getReadCodonCount();
+		for (int i2 = 0; i2 < readCodonCount; i2++) {
+			char amino = pileup.getAmino(i2);
+			if (amino == SequenceUtilities.UNKNOWN_AMINO) {
+				continue;  // Low quality, gapped or ambiguous codon
+			}
+			int codonIdx = firstCodonIdx + i2;
+			char refAmino = region.refAminos[codonIdx];
+			if (amino != refAmino) {
+				mutantAlleleList.add(new MutantAllele(codonIdx+locus.getStartCodon(), refAmino, amino));
+			}
+			region.processReadAminoAllele (codonIdx, amino, isReverse);
+		}
+	
+		region.processReadForMultipleMutations (mutantAlleleList);
+	}
+	
 	private class LocusRegion {
 		HeteroallelicLocus locus;
 		//Sample sample;
@@ -278,6 +289,7 @@ public class HeteroallelicAnalysis extends SampleAnalysis {
 		AminoAlleleCounter[] codonCounters;    // Counts the reads for each allele at each position
 		AminoAlleleCounter[] revCodonCounters; // Counts the reverse-strand reads for each allele at each position
 		HashMap<String, MultipleMutant> multipleMutantTable;
+		CodonPileup pileup;                    // Projects the reads onto the codons
 		
 		public LocusRegion (HeteroallelicLocus locus, Sample sample) throws AnalysisException {
 			this.locus = locus;
@@ -287,10 +299,9 @@ public class HeteroallelicAnalysis extends SampleAnalysis {
 			// ==== Taking this apart ===== 
 			//chrName = ChromosomeMap.getMappedChromosomeName(chrName, sample.getBamChromosomeMap());
 			// ==== Taking this apart ===== 
-			Sequence chrRefSeq = ReferenceGenome.getChrSequence(chrName);
 			startPos = locusregion.getStartPos();
 			endPos = locusregion.getStopPos();
-			ntRefSeq = chrRefSeq.getData().substring(startPos - 1, endPos);
+			ntRefSeq = ReferenceGenome.getRegionSequence(chrName, startPos, endPos);
 			if (locus.isReverse()) {
 				ntRefSeq = SequenceUtilities.getReverseComplementSequence(ntRefSeq);
 			}
@@ -306,6 +317,7 @@ public class HeteroallelicAnalysis extends SampleAnalysis {
 				revCodonCounters[i] = new AminoAlleleCounter();
 			}
 			multipleMutantTable = new HashMap<String, MultipleMutant>();
+			pileup = new CodonPileup(startPos, endPos, locus.isReverse(), config.getMaxIndelSize(), MIN_PHRED_SCORE);
 		}
 		
 		
@@ -440,18 +452,6 @@ public class HeteroallelicAnalysis extends SampleAnalysis {
 		}
 	}
 	
-	private boolean[] getCodonQuality(String qString) {
-		int codonCount = qString.length() / 3;
-		boolean[] hq = new boolean[codonCount];
-		for (int i = 0; i < codonCount; i++) {
-			int baseIdx = 3 * i;
-			hq[i] =   (((qString.charAt(baseIdx)     - 33) >= 20)
-					&& ((qString.charAt(baseIdx + 1) - 33) >= 20)
-					&& ((qString.charAt(baseIdx + 2) - 33) >= 20));
-		}
-		return hq;
-	}
-
 	private String getCallString(int call) {
 		switch (call) {
 		case CALL_MISSING: 
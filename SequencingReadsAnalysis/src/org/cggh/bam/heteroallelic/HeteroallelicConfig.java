@@ -10,11 +10,17 @@ public class HeteroallelicConfig extends BaseAnalysisConfig {
 	
     public static final String PROP_PREFIX = "heteroallelic.";
     
+    public static final int    DEFAULT_MAX_INDEL_SIZE = 10;
+    
     private HeteroallelicLocus[] loci;
+    private int                  maxIndelSize;
 
     public HeteroallelicConfig(File configFile) throws AnalysisException {
         super(configFile, PROP_PREFIX);
         
+        // Reads with larger indels are not used
+        maxIndelSize = getIntProperty(PROP_PREFIX + LocusAnalysisConfig.PROP_MAX_INDEL_SIZE, DEFAULT_MAX_INDEL_SIZE);
+        
         String[] locusNames = getStringListProperty(PROP_PREFIX + "loci");
         loci = new HeteroallelicLocus[locusNames.length];
         for (int i = 0; i < loci.length; i++) {
@@ -31,8 +37,13 @@ public class HeteroallelicConfig extends BaseAnalysisConfig {
         return loci;
     }
     
+    public int getMaxIndelSize() {
+        return maxIndelSize;
+    }
+    
 	public String getPrintableDisplay() {
-	    return super.getPrintableDisplay();    		
+	    return super.getPrintableDisplay() +
+	         "\nmaxIndelSize = " + getMaxIndelSize();    		
     }
 }
 
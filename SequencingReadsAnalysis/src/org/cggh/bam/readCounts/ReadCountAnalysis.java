@@ -22,14 +22,13 @@ public class ReadCountAnalysis extends SampleAnalysis {
 	public static final int MIN_PHRED_SCORE = 20;
 	private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
-	private SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT);
 	private GenotypableSnp[] genoPositions;
 	private ReadCountConfig config;
 	private String prefix = null;
 	private File warningFile = null;
 	
 	public ReadCountAnalysis(File configFile, File snpListFile, File outRootFolder, String prefix) throws AnalysisException {
-		super(configFile, outRootFolder);
+		super(outRootFolder);
 		this.config = new ReadCountConfig (configFile);
 		this.prefix = prefix;
 		genoPositions = readGenotypableSnp(snpListFile);
@@ -45,27 +44,45 @@ public class ReadCountAnalysis extends SampleAnalysis {
 	}
 	
 	public void analyzeSampleReads(Sample sample) throws AnalysisException {
+	    log.info("Starting " + sample.getName());  
+		File bamFile = sample.getBamFile();
+		if ((!bamFile.exists()) || (!bamFile.canRead())) {
+	    	recordWarning (sample, null, "Cannot read bam file "+bamFile.getAbsolutePath(), true);
+	    	return;
+		}
+		// Sweep the SNPs and the reads that overlap them in a single coordinate-ordered query
+		SnpSweep sweep = new SnpSweep();
+		SamReader samReader = SamReaderPool.acquire(sample.getBamFile());
+		try {
+			QueryInterval[] queryIntervals = getSnpQueryIntervals(samReader.getFileHeader());
+			SAMRecordIterator rIt = samReader.queryOverlapping(queryIntervals);
+			try {
+				while (rIt.hasNext()) {
+					sweep.processRecord(rIt.next());
+				}
+			} finally {
+				rIt.close();
+			}
+		} finally {
+			SamReaderPool.release(samReader);
+		}
+		NtAlleleCounter[] snpCounters = sweep.snpCounters;
+		genotypeSample (sample, snpCounters);
+	}
+	
+	private void genotypeSample (Sample sample, NtAlleleCounter[] snpCounters) throws AnalysisException {
 			
 	    // See GentypingConfig for parameters. Right now, it's min 5 reads for a call, min 5% total reads to call an allele
 	    NucleotideGenotyper bg = new NucleotideGenotyper(config);
 
-	    log.info("Starting " + sample.getName());  
 		int[] refCounts = new int[genoPositions.length];
 		int[] nrefCounts = new int[genoPositions.length];
 		double[] genoFreq = new double[genoPositions.length];  Arrays.fill(genoFreq, Double.NaN);
 		int[] genoNum = new int[genoPositions.length];
 		int[] genoNumMulti = new int[genoPositions.length];
-		File bamFile = sample.getBamFile();
-		if ((!bamFile.exists()) || (!bamFile.canRead())) {
-	    	recordWarning (sample, null, "Cannot read bam file "+bamFile.getAbsolutePath(), true);
-	    	return;
-		}
-		SamReader samReader = samReaderFactory.open(sample.getBamFile());
 		for (int snpIdx = 0; snpIdx <  genoPositions.length; snpIdx++) {
 			GenotypableSnp genoPos = genoPositions[snpIdx];
-			
-			// Get the read counts by inspecting the BAM
-		    NtAlleleCounter ntCounts = getReadCounts (samReader, genoPos);
+		    NtAlleleCounter ntCounts = snpCounters[snpIdx];
 		    refCounts[snpIdx] = ntCounts.getCount(genoPos.ref);
 		    nrefCounts[snpIdx] = ntCounts.getCount(genoPos.nonref);
 		    if (!bg.hasSufficientReads(ntCounts)) {
@@ -89,36 +106,143 @@ public class ReadCountAnalysis extends SampleAnalysis {
 		log.info("Completed " + sample.getName());
 	}
 	
-	private NtAlleleCounter getReadCounts (SamReader samReader, GenotypableSnp genoPos) {
-		int pos = genoPos.getPos();
-		NtAlleleCounter counter = new NtAlleleCounter();
-		SAMRecordIterator rIt = samReader.query(genoPos.getChromosome(), pos, pos, false);
-		while (rIt.hasNext()) {
-			final SAMRecord rec = (SAMRecord) rIt.next();
-			Iterator<AlignmentBlock> aIt = rec.getAlignmentBlocks().iterator();
-			while (aIt.hasNext()) {
-				AlignmentBlock ab = aIt.next();
-				int abStart = ab.getReferenceStart();
-				if (pos < abStart) {
-					break;
-				}
-				int abEnd = abStart + ab.getLength() - 1;
-				if (pos <= abEnd) {
-					int offset = pos - abStart;
-					int rOffset = offset + ab.getReadStart() - 1;
-					
-					String readQ = rec.getBaseQualityString();
-					byte baseQ = (byte)(readQ.charAt(rOffset) - 33);
-					if (baseQ < MIN_PHRED_SCORE) {
-						break;
-					}
-					String read = rec.getReadString();
-					counter.increment(read.charAt(rOffset));
+	private QueryInterval[] getSnpQueryIntervals (SAMFileHeader header) {
+		ArrayList<QueryInterval> intervalList = new ArrayList<QueryInterval>();
+		for (int snpIdx = 0; snpIdx <  genoPositions.length; snpIdx++) {
+			GenotypableSnp genoPos = genoPositions[snpIdx];
+			int seqIndex = header.getSequenceIndex(genoPos.getChromosome());
+			if (seqIndex >= 0) {
+				intervalList.add(new QueryInterval(seqIndex, genoPos.getPos(), genoPos.getPos()));
+			}
+		}
+		QueryInterval[] intervals = intervalList.toArray(new QueryInterval[intervalList.size()]);
+		return QueryInterval.optimizeIntervals(intervals);
+	}
+	
+	/*
+	 * Counts the bases at the SNPs covered by a stream of records in coordinate order. Since record
+	 * start positions never decrease within a chromosome, the SNPs before the current record start
+	 * can be skipped for good, so each record is only matched against the SNPs it covers.
+	 */
+	private class SnpSweep {
+		NtAlleleCounter[] snpCounters;
+		String            chrName = null;
+		int               snpIdx;
+		int               chrEndSnpIdx;
+		
+		public SnpSweep () {
+			snpCounters = new NtAlleleCounter[genoPositions.length];
+			for (int i = 0; i <  genoPositions.length; i++) {
+				snpCounters[i] = new NtAlleleCounter();
+			}
+		}
+		
+		public void processRecord (SAMRecord record) {
+			String recordChrName = record.getReferenceName();
+			if (!recordChrName.equals(chrName)) {
+				chrName = recordChrName;
+				snpIdx = getFirstSnpIndex(chrName, 0);
+				chrEndSnpIdx = getFirstSnpIndex(chrName, Integer.MAX_VALUE);
+			}
+			int recordStart = record.getAlignmentStart();
+			while ((snpIdx < chrEndSnpIdx) && (genoPositions[snpIdx].getPos() < recordStart)) {
+				snpIdx++;
+			}
+			countReadBases (record, snpIdx, chrEndSnpIdx, snpCounters);
+		}
+	}
+	
+	/*
+	 * Counts the bases of a record at the SNPs from index fromSnpIdx (inclusive) to toSnpIdx (exclusive), 
+	 * walking the alignment blocks of the record and the sorted SNPs together.
+	 */
+	private void countReadBases (SAMRecord rec, int fromSnpIdx, int toSnpIdx, NtAlleleCounter[] snpCounters) {
+		byte[] bases = rec.getReadBases();
+		byte[] quals = rec.getBaseQualities();
+		if (quals.length == 0) {
+			// No base qualities: no base can pass the quality threshold
+			return;
+		}
+		int snpIdx = fromSnpIdx;
+		List<AlignmentBlock> blocks = rec.getAlignmentBlocks();
+		for (int bIdx = 0; (bIdx < blocks.size()) && (snpIdx < toSnpIdx); bIdx++) {
+			AlignmentBlock ab = blocks.get(bIdx);
+			int abStart = ab.getReferenceStart();
+			int abEnd = abStart + ab.getLength() - 1;
+			// Skip SNPs in deletions or skipped regions before this block
+			while ((snpIdx < toSnpIdx) && (genoPositions[snpIdx].getPos() < abStart)) {
+				snpIdx++;
+			}
+			while ((snpIdx < toSnpIdx) && (genoPositions[snpIdx].getPos() <= abEnd)) {
+				int rOffset = genoPositions[snpIdx].getPos() - abStart + ab.getReadStart() - 1;
+				if (quals[rOffset] >= MIN_PHRED_SCORE) {
+					snpCounters[snpIdx].increment((char)bases[rOffset]);
 				}
+				snpIdx++;
 			}
 		}
-		rIt.close();
-		return counter;
+	}
+	
+	/*
+	 * Counts the reads at all SNPs in a single pass over the sample BAM, 
+	 * which can be shared with other analyses.
+	 */
+	public SampleReadsCollector createReadsCollector (Sample sample) throws AnalysisException {
+		return new SnpReadCountsCollector();
+	}
+	
+	private class SnpReadCountsCollector implements SampleReadsCollector {
+		Sample            sample;
+		SnpSweep          sweep;
+		
+		public void startSample (Sample sample, SAMFileHeader header) throws AnalysisException {
+		    log.info("Starting " + sample.getName());  
+			this.sample = sample;
+			this.sweep = new SnpSweep();
+		}
+		
+		public GenomeRegion[] getSearchRegions () {
+			return genoPositions;
+		}
+		
+		public boolean needsUnmappedReads () {
+			return false;
+		}
+		
+		public void processMappedRecord (SAMRecord record) throws AnalysisException {
+			sweep.processRecord(record);
+		}
+		
+		public void processUnmappedRecord (SAMRecord record) throws AnalysisException {
+		}
+		
+		public void completeSample () throws AnalysisException {
+			try {
+				genotypeSample (sample, sweep.snpCounters);
+			} catch (AnalysisException e) {
+		    	recordWarning (sample, null, "Error analyzing sample: "+e, true);
+		    	throw e;
+			}
+		}
+	}
+	
+	/*
+	 * Index of the first SNP (in chromosome/position order) at or after the given position
+	 */
+	private int getFirstSnpIndex (String chrName, int pos) {
+		int low = 0;
+		int high = genoPositions.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			GenotypableSnp genoPos = genoPositions[mid];
+			int chrDiff = genoPos.getChromosome().compareTo(chrName);
+			if ((chrDiff < 0) || ((chrDiff == 0) && (genoPos.getPos() < pos))) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
 	}
 	
 	private void outputReadCounts (Sample sample, int[] refCounts, int[] nrefCounts, double[] genoFreq, int[] genoNum, int[] genoNumMulti) throws AnalysisException {
@@ -193,6 +317,10 @@ public class ReadCountAnalysis extends SampleAnalysis {
 	 */
 	private static final String[] READCOUNT_HEADERS = new String[] { "Chr", "Pos", "Ref", "Nonref", "GenotypeFreq", "GenotypeNumMulti", "GenotypeNum" };
 	
+	public void analyzeAllSampleResults(Sample[] samples) throws AnalysisException, IOException {
+		mergeAllSampleResults(samples);
+	}
+	
 	public void mergeAllSampleResults(Sample[] samples) throws AnalysisException, IOException {
 
 		ArrayList<String> sampleNameList = new ArrayList<String>();
@@ -210,68 +338,235 @@ public class ReadCountAnalysis extends SampleAnalysis {
 		String[] sampleNames = sampleNameList.toArray(new String[sampleNameList.size()]);
 		File[] sampleFiles = sampleFileList.toArray(new File[sampleFileList.size()]);
 		
-		short[][] refCounts   = new short[genoPositions.length][sampleNames.length];	
-		short[][] nrefCounts  = new short[genoPositions.length][sampleNames.length];
-		float[][] genoFreq    = new float[genoPositions.length][sampleNames.length];
-		byte[][] genoNumMulti = new byte[genoPositions.length][sampleNames.length];
-		byte[][] genoNum      = new byte[genoPositions.length][sampleNames.length];
+		// Read the sample files one at a time, writing their values as columns of the binary matrices,
+		// so that the merged values are never all in memory
+		String[] snpNames = new String[genoPositions.length];
+		for (int snpIdx = 0; snpIdx <  genoPositions.length; snpIdx++) {
+			snpNames[snpIdx] = genoPositions[snpIdx].getName();
+		}
+		// With incremental merging, the columns of the samples whose files have not changed since the
+		// previous merge are copied from the previous matrices, rather than parsed again. The previous
+		// matrices are moved aside before the new ones are created, and only deleted once these are complete.
+		MergeInputCache mergeCache = getMergeCache();
+		BinaryMatrixReader[] prevMatrices = openPreviousMatrices(mergeCache, snpNames);
+		HashMap<String,Integer> prevColumnIdxs = new HashMap<String,Integer>();
+		if (prevMatrices != null) {
+			String[] prevSampleNames = prevMatrices[0].getColumnNames();
+			for (int colIdx = 0; colIdx < prevSampleNames.length; colIdx++) {
+				prevColumnIdxs.put(prevSampleNames[colIdx], colIdx);
+			}
+		}
+
+		BinaryMatrixWriter refCountsOut    = null;
+		BinaryMatrixWriter nrefCountsOut   = null;
+		BinaryMatrixWriter genoFreqOut     = null;
+		BinaryMatrixWriter genoNumMultiOut = null;
+		BinaryMatrixWriter genoNumOut      = null;
+		boolean merged = false;
+		try {
+			refCountsOut    = createMatrixWriter("ReadCounts.ref",   BinaryMatrixWriter.TYPE_SHORT, snpNames, sampleNames);
+			nrefCountsOut   = createMatrixWriter("ReadCounts.nref",  BinaryMatrixWriter.TYPE_SHORT, snpNames, sampleNames);
+			genoFreqOut     = createMatrixWriter("GenotypeFreq",     BinaryMatrixWriter.TYPE_FLOAT, snpNames, sampleNames);
+			genoNumMultiOut = createMatrixWriter("GenotypeNumMulti", BinaryMatrixWriter.TYPE_BYTE,  snpNames, sampleNames);
+			genoNumOut      = createMatrixWriter("GenotypeNum",      BinaryMatrixWriter.TYPE_BYTE,  snpNames, sampleNames);
 
-		for (int sIdx = 0; sIdx < sampleFiles.length; sIdx++) {
-			ColumnFileReader cfr = new ColumnFileReader(new InputTextStore(sampleFiles[sIdx]));
-			ColumnFileReader.ColumnReader cr = cfr.getColumnReader(READCOUNT_HEADERS);
-			int gpIdx = 0;
-			while (cfr.nextRecord()) {
-				String[] values = cr.getValues();
-				String chrName = values[0];
-				int pos = Integer.parseInt(values[1]);
-				GenomePosition gp = genoPositions[gpIdx];
-				if (!chrName.equals(gp.getChromosome()) || pos != gp.getPos()) {
-					throw new AnalysisException ("Error aggregating data from "	+ sampleFiles[sIdx].getAbsolutePath()
-							+ " at line " + cfr.getLineNumber()+ ": found position " + chrName + ":" + pos+ " instead of "+ gp.getName());
+			short[] refCounts   = new short[genoPositions.length];
+			short[] nrefCounts  = new short[genoPositions.length];
+			float[] genoFreq    = new float[genoPositions.length];
+			byte[] genoNumMulti = new byte[genoPositions.length];
+			byte[] genoNum      = new byte[genoPositions.length];
+			for (int sIdx = 0; sIdx < sampleFiles.length; sIdx++) {
+				boolean unchanged = mergeCache.isUnchanged(sampleFiles[sIdx]);
+				Integer prevColIdx = prevColumnIdxs.get(sampleNames[sIdx]);
+				if (unchanged && (prevColIdx != null)) {
+					refCountsOut.appendColumn(prevMatrices[0].getShortColumn(prevColIdx));
+					nrefCountsOut.appendColumn(prevMatrices[1].getShortColumn(prevColIdx));
+					genoFreqOut.appendColumn(prevMatrices[2].getFloatColumn(prevColIdx));
+					genoNumMultiOut.appendColumn(prevMatrices[3].getByteColumn(prevColIdx));
+					genoNumOut.appendColumn(prevMatrices[4].getByteColumn(prevColIdx));
+					continue;
+				}
+				FastTabReader tr = new FastTabReader(new InputTextStore(sampleFiles[sIdx]));
+				int[] colIdxs = tr.getColumnIndexes(READCOUNT_HEADERS);
+				int gpIdx = 0;
+				while (tr.nextRecord()) {
+					int pos = tr.getInt(colIdxs[1]);
+					GenomePosition gp = genoPositions[gpIdx];
+					if (!tr.fieldEquals(colIdxs[0], gp.getChromosome()) || pos != gp.getPos()) {
+						throw new AnalysisException ("Error aggregating data from "	+ sampleFiles[sIdx].getAbsolutePath()
+								+ " at line " + tr.getLineNumber()+ ": found position " + tr.getField(colIdxs[0]) + ":" + pos+ " instead of "+ gp.getName());
+					}
+					refCounts[gpIdx]    = tr.getShort(colIdxs[2]);
+					nrefCounts[gpIdx]   = tr.getShort(colIdxs[3]);
+					genoFreq[gpIdx]     = tr.fieldEquals(colIdxs[4], "-") ? Float.NaN : tr.getFloat(colIdxs[4]);
+					genoNumMulti[gpIdx] = tr.getByte(colIdxs[5]);
+					genoNum[gpIdx]      = tr.getByte(colIdxs[6]);
+					gpIdx++;
+				}
+				tr.close();
+				refCountsOut.appendColumn(refCounts);
+				nrefCountsOut.appendColumn(nrefCounts);
+				genoFreqOut.appendColumn(genoFreq);
+				genoNumMultiOut.appendColumn(genoNumMulti);
+				genoNumOut.appendColumn(genoNum);
+				Arrays.fill(refCounts, (short)0);
+				Arrays.fill(nrefCounts, (short)0);
+				Arrays.fill(genoFreq, 0);
+				Arrays.fill(genoNumMulti, (byte)0);
+				Arrays.fill(genoNum, (byte)0);
+			}
+			refCountsOut.close();
+			nrefCountsOut.close();
+			genoFreqOut.close();
+			genoNumMultiOut.close();
+			genoNumOut.close();
+			merged = true;
+		} finally {
+			closePreviousMatrices(prevMatrices);
+			if (merged) {
+				deletePreviousMatrices();
+			} else {
+				// Put back the matrices of the previous merge, so the next merge can still use them
+				abortMatrixWriters(refCountsOut, nrefCountsOut, genoFreqOut, genoNumMultiOut, genoNumOut);
+				if (prevMatrices != null) {
+					restorePreviousMatrices();
 				}
-				refCounts[gpIdx][sIdx]    = Short.parseShort(values[2]);
-				nrefCounts[gpIdx][sIdx]   = Short.parseShort(values[3]);
-				genoFreq[gpIdx][sIdx]     = (values[4].equals("-")) ? Float.NaN : Float.parseFloat(values[4]);
-				genoNumMulti[gpIdx][sIdx] = Byte.parseByte(values[5]);
-				genoNum[gpIdx][sIdx]      = Byte.parseByte(values[6]);
-				gpIdx++;
 			}
-			cfr.close();
 		}
-		outputMergedValues (sampleNames, "ReadCounts.ref",   OUT_TYPE_SHORT, refCounts);
-		outputMergedValues (sampleNames, "ReadCounts.nref",  OUT_TYPE_SHORT, nrefCounts);
-		outputMergedValues (sampleNames, "GenotypeFreq",     OUT_TYPE_FLOAT, genoFreq);
-		outputMergedValues (sampleNames, "GenotypeNumMulti", OUT_TYPE_BYTE,  genoNumMulti);
-		outputMergedValues (sampleNames, "GenotypeNum",      OUT_TYPE_BYTE,  genoNum);
+		saveMergeCache();
+
+		// Write out the tables from the binary matrices
+		outputMergedValues (sampleNames, "ReadCounts.ref");
+		outputMergedValues (sampleNames, "ReadCounts.nref");
+		outputMergedValues (sampleNames, "GenotypeFreq");
+		outputMergedValues (sampleNames, "GenotypeNumMulti");
+		outputMergedValues (sampleNames, "GenotypeNum");
+	}
+	
+	private static final String[] MATRIX_FILE_TYPES = { "ReadCounts.ref", "ReadCounts.nref", "GenotypeFreq", "GenotypeNumMulti", "GenotypeNum" };
+	
+	private File getMatrixFile (String fileTypePart) {
+		return new File(outRootFolder, prefix+'.'+fileTypePart+".matrix");
+	}
+	
+	private File getPreviousMatrixFile (String fileTypePart) {
+		return new File(outRootFolder, prefix+'.'+fileTypePart+".matrix.prev");
 	}
 	
-	private static final int OUT_TYPE_SHORT = 1;
-	private static final int OUT_TYPE_FLOAT = 2;
-	private static final int OUT_TYPE_BYTE = 3;
+	/*
+	 * Moves aside and opens the matrices of the previous merge, in MATRIX_FILE_TYPES order, if they can be reused.
+	 * If they cannot, they are left in place.
+	 */
+	private BinaryMatrixReader[] openPreviousMatrices (MergeInputCache mergeCache, String[] snpNames) throws AnalysisException {
+		if (!mergeCache.isEnabled()) {
+			return null;
+		}
+		for (int mIdx = 0; mIdx < MATRIX_FILE_TYPES.length; mIdx++) {
+			File matrixFile = getMatrixFile(MATRIX_FILE_TYPES[mIdx]);
+			File prevMatrixFile = getPreviousMatrixFile(MATRIX_FILE_TYPES[mIdx]);
+			if (!matrixFile.exists()) {
+				if (prevMatrixFile.exists()) {
+					continue;  // Left aside by an interrupted merge
+				}
+				restorePreviousMatrices();
+				return null;
+			}
+			prevMatrixFile.delete();
+			if (!matrixFile.renameTo(prevMatrixFile)) {
+				restorePreviousMatrices();
+				return null;
+			}
+		}
+		BinaryMatrixReader[] prevMatrices = new BinaryMatrixReader[MATRIX_FILE_TYPES.length];
+		try {
+			for (int mIdx = 0; mIdx < MATRIX_FILE_TYPES.length; mIdx++) {
+				prevMatrices[mIdx] = new BinaryMatrixReader(getPreviousMatrixFile(MATRIX_FILE_TYPES[mIdx]));
+				if (!Arrays.equals(prevMatrices[mIdx].getRowNames(), snpNames)) {
+					log.info("SNP list changed since the previous merge: reading all sample files");
+					closePreviousMatrices(prevMatrices);
+					restorePreviousMatrices();
+					return null;
+				}
+			}
+		} catch (AnalysisException e) {
+			log.warn("Could not reuse the matrices of the previous merge: "+e.getMessage());
+			closePreviousMatrices(prevMatrices);
+			restorePreviousMatrices();
+			return null;
+		}
+		return prevMatrices;
+	}
+	
+	private void closePreviousMatrices (BinaryMatrixReader[] prevMatrices) throws AnalysisException {
+		if (prevMatrices == null) {
+			return;
+		}
+		for (int mIdx = 0; mIdx < MATRIX_FILE_TYPES.length; mIdx++) {
+			if (prevMatrices[mIdx] != null) {
+				prevMatrices[mIdx].close();
+				prevMatrices[mIdx] = null;
+			}
+		}
+	}
+	
+	private void deletePreviousMatrices () {
+		for (int mIdx = 0; mIdx < MATRIX_FILE_TYPES.length; mIdx++) {
+			getPreviousMatrixFile(MATRIX_FILE_TYPES[mIdx]).delete();
+		}
+	}
+	
+	/*
+	 * Moves the matrices of the previous merge back in place, replacing any incomplete new ones
+	 */
+	private void restorePreviousMatrices () {
+		for (int mIdx = 0; mIdx < MATRIX_FILE_TYPES.length; mIdx++) {
+			File prevMatrixFile = getPreviousMatrixFile(MATRIX_FILE_TYPES[mIdx]);
+			if (prevMatrixFile.exists()) {
+				File matrixFile = getMatrixFile(MATRIX_FILE_TYPES[mIdx]);
+				matrixFile.delete();
+				if (!prevMatrixFile.renameTo(matrixFile)) {
+					log.warn("Could not restore matrix file "+matrixFile.getAbsolutePath());
+				}
+			}
+		}
+	}
+	
+	private void abortMatrixWriters (BinaryMatrixWriter... writers) {
+		for (BinaryMatrixWriter writer : writers) {
+			if (writer != null) {
+				writer.abort();
+			}
+		}
+	}
+	
+	private BinaryMatrixWriter createMatrixWriter (String fileTypePart, int type, String[] snpNames, String[] sampleNames) throws AnalysisException {
+		return new BinaryMatrixWriter(getMatrixFile(fileTypePart), type, snpNames, sampleNames);
+	}
 	
-	private void outputMergedValues (String[] sampleNames, String fileTypePart, int type, Object[] valueArray) throws AnalysisException {
+	private void outputMergedValues (String[] sampleNames, String fileTypePart) throws AnalysisException {
+		BinaryMatrixReader in = new BinaryMatrixReader(getMatrixFile(fileTypePart));
 		String[] colNames = TextUtilities.mergeStringLists(new String[] {"Chr", "Pos"}, sampleNames);	
-		OutputTextStore ots = new GzippedOutputTextStore (outRootFolder, prefix+'.'+fileTypePart+".tab");
+		OutputTextStore ots = new BgzfOutputTextStore (outRootFolder, prefix+'.'+fileTypePart+".tab");
 		TableOutput out = new TableOutput(ots, colNames, 64*1024);
 		for (int snpIdx = 0; snpIdx <  genoPositions.length; snpIdx++) {
 			out.newRow();
 			out.appendValue(genoPositions[snpIdx].getChromosome());
 			out.appendValue(genoPositions[snpIdx].getPos());
-			switch (type) {
-			case OUT_TYPE_SHORT:
-				short[] counts = (short[])valueArray[snpIdx];
+			switch (in.getValueType()) {
+			case BinaryMatrixWriter.TYPE_SHORT:
+				short[] counts = in.getShortRow(snpIdx);
 				for (int i = 0; i < sampleNames.length; i++) {
 					out.appendValue(counts[i]);
 				}
 				break;
-			case OUT_TYPE_FLOAT:
-				float[] freqs = (float[])valueArray[snpIdx];
+			case BinaryMatrixWriter.TYPE_FLOAT:
+				float[] freqs = in.getFloatRow(snpIdx);
 				for (int i = 0; i < sampleNames.length; i++) {
 					out.appendValue(freqs[i]);
 				}
 				break;
-			case OUT_TYPE_BYTE:
-				byte[] genos = (byte[])valueArray[snpIdx];
+			case BinaryMatrixWriter.TYPE_BYTE:
+				byte[] genos = in.getByteRow(snpIdx);
 				for (int i = 0; i < sampleNames.length; i++) {
 					out.appendValue(genos[i]);
 				}
@@ -279,6 +574,7 @@ public class ReadCountAnalysis extends SampleAnalysis {
 			}
 		}
 		out.close();
+		in.close();
 	}
 
 
@@ -2,20 +2,134 @@ package org.cggh.bam.sampleClass;
 
 import org.cggh.bam.target.*;
 import org.cggh.common.exceptions.*;
+import org.cggh.common.genome.*;
+
+import java.util.*;
 
 
 public class ClassTarget extends Target {
 	
 	private ClassAllele[] alleles;
 	
+	// Listed sequences of the target length made only of A, C, G, T, packed, with their allele index;
+	// the others (rare) are matched as strings
+	private int               ntLength;
+	private int               keyWords;
+	private PackedAlleleTable seqTable;
+	private int[]             seqTableAlleleIdx;
+	private long[]            packedSeqKeys;
+	private int[]             packedSeqAlleleIdx;
+	private ArrayList<String> otherSeqs = new ArrayList<String>();
+	private ArrayList<Integer> otherSeqAlleleIdx = new ArrayList<Integer>();
+	
 	public ClassTarget (String name, String[] targetCoords, boolean isReverse, ClassAllele[] alleles) throws AnalysisException {
 		super (name, targetCoords, isReverse);
 		this.alleles = alleles;
+		indexAlleleSequences();
 	}
 
 	public ClassAllele[] getAlleles() {
 		return alleles;
 	}
+	
+	private void indexAlleleSequences () {
+		ntLength = 0;
+		for (GenomeRegion region : targetRegions) {
+			ntLength += 1 + region.getStopPos() - region.getStartPos();
+		}
+		keyWords = PackedAlleleTable.getKeyWords(ntLength);
+		seqTable = new PackedAlleleTable(ntLength);
+		ArrayList<Integer> tableAlleleIdxList = new ArrayList<Integer>();
+		long[] keys = new long[16 * keyWords];
+		int[] keyAlleleIdx = new int[16];
+		int packedCount = 0;
+		for (int aIdx = 0; aIdx < alleles.length; aIdx++) {
+			String[] sequences = alleles[aIdx].getSequences();
+			for (int sIdx = 0; sIdx < sequences.length; sIdx++) {
+				if (packedCount == keyAlleleIdx.length) {
+					keys = Arrays.copyOf(keys, 2 * keys.length);
+					keyAlleleIdx = Arrays.copyOf(keyAlleleIdx, 2 * keyAlleleIdx.length);
+				}
+				int keyStart = packedCount * keyWords;
+				if ((sequences[sIdx].length() != ntLength) || !PackedAlleleTable.pack(sequences[sIdx], keys, keyStart)) {
+					otherSeqs.add(sequences[sIdx]);
+					otherSeqAlleleIdx.add(aIdx);
+					continue;
+				}
+				keyAlleleIdx[packedCount++] = aIdx;
+				int tableIdx = seqTable.getOrAdd(Arrays.copyOfRange(keys, keyStart, keyStart + keyWords));
+				if (tableIdx == tableAlleleIdxList.size()) {
+					tableAlleleIdxList.add(aIdx);  // The first allele listing a sequence takes precedence
+				}
+			}
+		}
+		packedSeqKeys = Arrays.copyOf(keys, packedCount * keyWords);
+		packedSeqAlleleIdx = Arrays.copyOf(keyAlleleIdx, packedCount);
+		seqTableAlleleIdx = new int[tableAlleleIdxList.size()];
+		for (int i = 0; i < seqTableAlleleIdx.length; i++) {
+			seqTableAlleleIdx[i] = tableAlleleIdxList.get(i);
+		}
+	}
+	
+	/*
+	 * Returns the index of the allele that lists the given nucleotide sequence, or -1 if the sequence is not listed
+	 */
+	public int getListedAlleleIndex (String ntSequence) {
+		long[] key = new long[keyWords];
+		if ((ntSequence.length() == ntLength) && PackedAlleleTable.pack(ntSequence, key, 0)) {
+			int tableIdx = seqTable.get(key);
+			return (tableIdx < 0) ? -1 : seqTableAlleleIdx[tableIdx];
+		}
+		for (int i = 0; i < otherSeqs.size(); i++) {
+			if (ntSequence.equals(otherSeqs.get(i))) {
+				return otherSeqAlleleIdx.get(i);
+			}
+		}
+		return -1;
+	}
+	
+	/*
+	 * Returns, for each allele, the least number of mismatches between the given nucleotide sequence and
+	 * any of the allele's sequences (or 1000 if the allele has no sequences). Sequences of the target length
+	 * are compared 32 nucleotides at a time, by XOR of their packed forms.
+	 */
+	public int[] getAlleleMismatches (String ntSequence) {
+		int[] alleleMismatches = new int[alleles.length];
+		Arrays.fill(alleleMismatches, 1000);
+		long[] key = new long[keyWords];
+		if ((ntSequence.length() == ntLength) && PackedAlleleTable.pack(ntSequence, key, 0)) {
+			for (int sIdx = 0; sIdx < packedSeqAlleleIdx.length; sIdx++) {
+				int mismatches = PackedAlleleTable.getMismatchCount(key, 0, packedSeqKeys, sIdx * keyWords, keyWords);
+				int aIdx = packedSeqAlleleIdx[sIdx];
+				alleleMismatches[aIdx] = Math.min(alleleMismatches[aIdx], mismatches);
+			}
+			for (int sIdx = 0; sIdx < otherSeqs.size(); sIdx++) {
+				int aIdx = otherSeqAlleleIdx.get(sIdx);
+				alleleMismatches[aIdx] = Math.min(alleleMismatches[aIdx], getMismatchCount(ntSequence, otherSeqs.get(sIdx)));
+			}
+		} else {
+			for (int aIdx = 0; aIdx < alleles.length; aIdx++) {
+				String[] sequences = alleles[aIdx].getSequences();
+				for (int sIdx = 0; sIdx < sequences.length; sIdx++) {
+					alleleMismatches[aIdx] = Math.min(alleleMismatches[aIdx], getMismatchCount(ntSequence, sequences[sIdx]));
+				}
+			}
+		}
+		return alleleMismatches;
+	}
+	
+	/*
+	 * Mismatches over the length of the sequence; positions beyond the end of the listed sequence are mismatches
+	 */
+	private static int getMismatchCount (String seq, String listedSeq) {
+		int mismatches = 0;
+		for (int i = 0; i < seq.length(); i++) {
+			if ((i >= listedSeq.length()) || (listedSeq.charAt(i) != seq.charAt(i))) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
 
 	public static class ClassAllele {
 		private String name;
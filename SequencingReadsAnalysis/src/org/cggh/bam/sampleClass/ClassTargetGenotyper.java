@@ -6,6 +6,8 @@ import org.cggh.bam.sampleClass.ClassTarget.*;
 import org.cggh.bam.target.*;
 import org.cggh.common.util.TextUtilities;
 
+import java.util.IdentityHashMap;
+
 public class ClassTargetGenotyper extends TargetGenotyper {
 	
 	protected ClassTarget     target;
@@ -25,27 +27,22 @@ public class ClassTargetGenotyper extends TargetGenotyper {
 	public TargetGenotype[] extractTargetNtGenotypes (Read[] reads) {
 		TargetGenotype[] baseGenos = super.extractTargetGenotypes(reads);
 		TargetGenotype[] targetGenos = new TargetGenotype[reads.length];
+		
+		// The reads with the same allele share a genotype object, so each distinct allele is looked up once
+		IdentityHashMap<TargetGenotype,TargetGenotype> classGenoTable = new IdentityHashMap<TargetGenotype,TargetGenotype>();
 		for (int rIdx = 0; rIdx < reads.length; rIdx++) {
 			String geno = baseGenos[rIdx].getNtGenotype();
 			if (geno == null) {
 				targetGenos[rIdx] = baseGenos[rIdx];
 				continue;
 			}
-			for (int aIdx = 0; aIdx < alleles.length; aIdx++) {
-				String[] sequences = alleles[aIdx].getSequences();
-				for (int sIdx = 0; sIdx < sequences.length; sIdx++) {
-					if (geno.equals(sequences[sIdx])) {
-						targetGenos[rIdx] = definedGenos[aIdx];
-						break;
-					}
-				}
-				if (targetGenos[rIdx] != null) {
-					 break;
-				}
-			}
-			if (targetGenos[rIdx] == null) {
-				targetGenos[rIdx] = new UnlistedAlleleTargetGenotype(geno, target);
+			TargetGenotype classGeno = classGenoTable.get(baseGenos[rIdx]);
+			if (classGeno == null) {
+				int aIdx = target.getListedAlleleIndex(geno);
+				classGeno = (aIdx >= 0) ? definedGenos[aIdx] : new UnlistedAlleleTargetGenotype(geno, target);
+				classGenoTable.put(baseGenos[rIdx], classGeno);
 			}
+			targetGenos[rIdx] = classGeno;
 		}
 		return targetGenos;	
 	}
@@ -43,13 +43,7 @@ public class SampleClassAnalysis extends SampleTargetAnalysis  {
 			File outFolder = getSampleSubfolder (outRootFolder, sample, true);
 			SampleClassAnalyzer analyzer = new SampleClassAnalyzer (config, outFolder);
 			SampleCall call = analyzer.analyzeSample(sample);
-			
-			// Analyze unlisted alleles: if they are very similar to listed ones, and can be 
-			// assigned to a sample class, add them to the relevant counter
-			analyzeUnlistedAlleles (call);
-			
-			// Write out the results
-			outputSampleResults (call);
+			processSampleCall (call);
 			
 		} catch (Exception e) {
 			log.info("Aborting " + sample.getName());
@@ -59,6 +53,44 @@ public class SampleClassAnalysis extends SampleTargetAnalysis  {
 		log.info("Completed " + sample.getName());
 	}
 	
+	private void processSampleCall (SampleCall call) throws AnalysisException, IOException {
+		// Analyze unlisted alleles: if they are very similar to listed ones, and can be 
+		// assigned to a sample class, add them to the relevant counter
+		analyzeUnlistedAlleles (call);
+		
+		// Write out the results
+		outputSampleResults (call);
+	}
+	
+	/*
+	 * Collects the reads during a BAM pass shared with other analyses, then analyzes them
+	 */
+	public SampleReadsCollector createReadsCollector (Sample sample) throws AnalysisException {
+		return new SampleClassReadsCollector ();
+	}
+	
+	private class SampleClassReadsCollector extends ReadsRetrieverFromAlignment {
+		
+		public SampleClassReadsCollector () throws AnalysisException {
+			super (config);
+		}
+		
+		public void completeSample () throws AnalysisException {
+			Sample sample = getSample();
+			try {
+				File outFolder = getSampleSubfolder (outRootFolder, sample, true);
+				SampleClassAnalyzer analyzer = new SampleClassAnalyzer (config, outFolder);
+				SampleCall call = analyzer.analyzeSample(sample, getReadLists());
+				processSampleCall (call);
+			} catch (Exception e) {
+				log.info("Aborting " + sample.getName());
+				log.error("Error processing BAM file for sample "+ sample.getName() + ": "+e);
+				e.printStackTrace();
+			}
+			log.info("Completed " + sample.getName());
+		}
+	}
+	
 	private static final String[] LISTED_ALLELES_HEADERS = {"Batch","Sample","Locus","Target","Allele","Count","TargetCall"};
 	private static final String[] UNLISTED_ALLELES_HEADERS = {"Batch","Sample","Locus","Target","Allele","Count","Proportion","Closest","Diff"};
 	
@@ -112,7 +144,7 @@ public class SampleClassAnalysis extends SampleTargetAnalysis  {
 	 * Collective analysis of results from all samples
 	 * **********************************************************************
 	 */
-	protected void analyzeAllSampleResults (Sample[] samples) throws AnalysisException, IOException  {
+	public void analyzeAllSampleResults (Sample[] samples) throws AnalysisException, IOException  {
 
 		// Read in all the allele counts and calls for all targets and all samples
 		ClassAlleleCounts[] targetCounts = readAllClassAlleleCounts (samples);
@@ -617,29 +649,15 @@ public class SampleClassAnalysis extends SampleTargetAnalysis  {
 		
 		public TargetAlleleSimilarity(String allele, ClassTarget target) {
 			this.target = target;
-			char[] seq = allele.toCharArray();
-			int len = seq.length;
 			
 			mostSimilarAlleleIdx = -1;
 			leastMismatches = 1000;
 			int secondLeastMismatches = 1000;
 			
-			ClassAllele[] alleles = target.getAlleles();
-			for (int aIdx = 0; aIdx < alleles.length; aIdx++) {
-				int alleleMismatches = 1000;
-				String[] aSeqs = alleles[aIdx].getSequences();
-				for (int sIdx = 0; sIdx < aSeqs.length; sIdx++) {
-					char[] testSeq = aSeqs[sIdx].toCharArray();
-					int seqMismatches = 0;
-					for (int i = 0; i < len; i++) {
-						if (testSeq[i] != seq[i]) {
-							seqMismatches++;
-						}
-					}
-					if (seqMismatches < alleleMismatches) {
-						alleleMismatches = seqMismatches;
-					}
-				}
+			// Find the two nearest alleles
+			int[] allMismatches = target.getAlleleMismatches(allele);
+			for (int aIdx = 0; aIdx < allMismatches.length; aIdx++) {
+				int alleleMismatches = allMismatches[aIdx];
 				if (alleleMismatches < leastMismatches) {
 					secondLeastMismatches = leastMismatches;
 					leastMismatches = alleleMismatches;
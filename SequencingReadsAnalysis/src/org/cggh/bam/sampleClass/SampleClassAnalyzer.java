@@ -56,6 +56,10 @@ public class SampleClassAnalyzer {
 		ReadsRetriever srr = new ReadsRetrieverFromAlignment (config);
 		ArrayList<Read>[] mappedReadLists = srr.retrieveSampleReads(sample);
 		//outputSampleReads (sample, mappedReadLists);
+		return analyzeSample (sample, mappedReadLists);
+	}
+	
+	public SampleCall analyzeSample (Sample sample, ArrayList<Read>[] mappedReadLists) throws AnalysisException, IOException  {
 		
 		int tarIdx = 0;
 		SampleTargetResult[] targetResults = new SampleTargetResult[allTargets.length];
@@ -86,7 +90,7 @@ public class SampleClassAnalyzer {
 				
 				// Count the number of reads for each class allele (i.e. the targetGenos of class ClassTargetGenotype), 
 				// and put unlisted alleles in separate counters (to inform analysis if there are other noteworthy alleles not currently matched)
-				LabelCounters unlistedAlleleCounters = new LabelCounters();
+				LabelCounters unlistedAlleleCounters = new AlleleLabelCounters();
 				for (int rIdx = 0; rIdx < targetGenos.length; rIdx++) {
 					TargetGenotype geno = targetGenos[rIdx];
 					if (geno instanceof ClassTargetGenotype) {
@@ -12,13 +12,11 @@ public class AlignmentTarget extends Target{
 	public AlignmentTarget (String name, String[] targetCoords, boolean isReverse) throws AnalysisException {
 		super (name, targetCoords, isReverse);
 
-		Sequence chrSeq = ReferenceGenome.getChrSequence(targetRegions[0].getChromosome());
+		String chrName = targetRegions[0].getChromosome();
 		StringBuffer sb = new StringBuffer();
 		for (int i = 0; i < targetRegions.length; i++) {
 			GenomeRegion targetRegion = targetRegions[i];
-			int startIdx = targetRegion.getStartPos() - 1;
-			int endIdx = targetRegion.getStopPos();
-			sb.append(chrSeq.getData().substring(startIdx, endIdx));
+			sb.append(ReferenceGenome.getRegionSequence(chrName, targetRegion.getStartPos(), targetRegion.getStopPos()));
 		}
 		targetRefSeq = sb.toString();
 	    if (isReverse) {
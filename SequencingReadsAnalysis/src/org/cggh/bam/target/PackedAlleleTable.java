@@ -0,0 +1,170 @@
+package org.cggh.bam.target;
+
+import java.util.Arrays;
+
+/*
+ * A primitive open-addressing hash table of nucleotide alleles of a fixed length, each packed at 2 bits
+ * per nucleotide (A=0, C=1, G=2, T=3) into one or more longs: nucleotide i is at bits 2*(i%32) of word i/32.
+ * Each distinct allele is given an index, in order of insertion, so results can be collected in arrays
+ * and the allele strings built only once per distinct allele.
+ */
+public class PackedAlleleTable {
+
+	private static final String NT_CHARS = "ACGT";
+
+	private int    ntLength;
+	private int    keyWords;
+	private long[] alleleKeys;   // Keys of the alleles, keyWords longs each, by allele index
+	private int    alleleCount = 0;
+	private int[]  slots;        // Allele index + 1 at each slot, or 0 if the slot is empty
+	private int    slotMask;
+
+	public PackedAlleleTable (int ntLength) {
+		this (ntLength, 16);
+	}
+
+	public PackedAlleleTable (int ntLength, int expectedAlleles) {
+		this.ntLength = ntLength;
+		this.keyWords = getKeyWords(ntLength);
+		int capacity = Integer.highestOneBit(Math.max(16, 2 * expectedAlleles) - 1) << 1;
+		slots = new int[capacity];
+		slotMask = capacity - 1;
+		alleleKeys = new long[((capacity / 2) + 1) * keyWords];
+	}
+
+	public static int getKeyWords (int ntLength) {
+		return Math.max(1, (ntLength + 31) >> 5);
+	}
+
+	/*
+	 * Returns the 2-bit code of a nucleotide, or -1 if it is not A, C, G or T
+	 */
+	public static int getNtCode (byte nt) {
+		switch (nt) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		}
+		return -1;
+	}
+
+	/*
+	 * Packs a nucleotide sequence into a key starting at the given index; returns false if the sequence
+	 * has characters other than A, C, G, T
+	 */
+	public static boolean pack (String seq, long[] keys, int keyStart) {
+		int words = getKeyWords(seq.length());
+		Arrays.fill(keys, keyStart, keyStart + words, 0L);
+		for (int i = 0; i < seq.length(); i++) {
+			int code = getNtCode((byte)seq.charAt(i));
+			if (code < 0) {
+				return false;
+			}
+			keys[keyStart + (i >> 5)] |= ((long)code) << ((i & 31) << 1);
+		}
+		return true;
+	}
+
+	/*
+	 * Counts the mismatching nucleotides between two packed keys of the same length: XOR the keys,
+	 * fold each 2-bit nucleotide difference into its low bit, and count the bits set
+	 */
+	public static int getMismatchCount (long[] keys1, int key1Start, long[] keys2, int key2Start, int keyWords) {
+		int mismatches = 0;
+		for (int w = 0; w < keyWords; w++) {
+			long diff = keys1[key1Start + w] ^ keys2[key2Start + w];
+			mismatches += Long.bitCount((diff | (diff >>> 1)) & 0x5555555555555555L);
+		}
+		return mismatches;
+	}
+
+	public int getNtLength () {
+		return ntLength;
+	}
+
+	public int getAlleleCount () {
+		return alleleCount;
+	}
+
+	/*
+	 * Returns the index of the allele with the given key, or -1 if it is not in the table
+	 */
+	public int get (long[] key) {
+		for (int slot = getSlot(key); ; slot = (slot + 1) & slotMask) {
+			int aIdx = slots[slot] - 1;
+			if ((aIdx < 0) || keyEquals(aIdx, key)) {
+				return aIdx;
+			}
+		}
+	}
+
+	/*
+	 * Returns the index of the allele with the given key, adding it if it is not in the table
+	 */
+	public int getOrAdd (long[] key) {
+		int slot = getSlot(key);
+		for (; ; slot = (slot + 1) & slotMask) {
+			int aIdx = slots[slot] - 1;
+			if (aIdx < 0) {
+				break;
+			}
+			if (keyEquals(aIdx, key)) {
+				return aIdx;
+			}
+		}
+		int aIdx = alleleCount++;
+		System.arraycopy(key, 0, alleleKeys, aIdx * keyWords, keyWords);
+		slots[slot] = aIdx + 1;
+		if (2 * alleleCount > slots.length) {
+			grow();
+		}
+		return aIdx;
+	}
+
+	public String getAllele (int aIdx) {
+		char[] nts = new char[ntLength];
+		int keyStart = aIdx * keyWords;
+		for (int i = 0; i < ntLength; i++) {
+			int code = (int)(alleleKeys[keyStart + (i >> 5)] >>> ((i & 31) << 1)) & 3;
+			nts[i] = NT_CHARS.charAt(code);
+		}
+		return new String(nts);
+	}
+
+	private boolean keyEquals (int aIdx, long[] key) {
+		int keyStart = aIdx * keyWords;
+		for (int w = 0; w < keyWords; w++) {
+			if (alleleKeys[keyStart + w] != key[w]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int getSlot (long[] key) {
+		return mix(key, 0, keyWords) & slotMask;
+	}
+
+	private static int mix (long[] key, int start, int len) {
+		long h = 0;
+		for (int w = start; w < start + len; w++) {
+			h = (h ^ key[w]) * 0x9E3779B97F4A7C15L;
+			h ^= (h >>> 29);
+		}
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private void grow () {
+		slots = new int[2 * slots.length];
+		slotMask = slots.length - 1;
+		alleleKeys = Arrays.copyOf(alleleKeys, ((slots.length / 2) + 1) * keyWords);
+		for (int aIdx = 0; aIdx < alleleCount; aIdx++) {
+			int slot = mix(alleleKeys, aIdx * keyWords, keyWords) & slotMask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & slotMask;
+			}
+			slots[slot] = aIdx + 1;
+		}
+	}
+}
@@ -11,78 +11,128 @@ public class TargetGenotyper {
 	protected Target target;
 	protected int    minBaseQScore;
 	
+	private int[]    tStartPos;
+	private int[]    tEndPos;
+	private int      ntLength;
+	
 	public TargetGenotyper (Target target, BaseAnalysisConfig config) {
 		this.target = target;
 		this.minBaseQScore = config.getMinBaseQScore();
+		
+		GenomeRegion[] tRegions = target.getTargetRegions();
+		tStartPos = new int[tRegions.length];
+		tEndPos = new int[tRegions.length];
+		ntLength = 0;
+		for (int trIdx = 0; trIdx < tRegions.length; trIdx++) {
+			tStartPos[trIdx] = tRegions[trIdx].getStartPos();
+			tEndPos[trIdx] = tRegions[trIdx].getStopPos();
+			ntLength += 1 + tEndPos[trIdx] - tStartPos[trIdx];
+		}
 	}
 	
+	/*
+	 * Reads the target nucleotides of each read straight from its bases, packed into a key that is
+	 * counted in a PackedAlleleTable; a genotype object is created only once for each distinct allele.
+	 * Reads with bases other than A, C, G, T or N in the target (rare) go through a String table.
+	 */
 	public TargetGenotype[] extractTargetGenotypes (Read[] reads) {
-		GenomeRegion[] tRegions = target.getTargetRegions();
-		HashMap<String,TargetGenotype> genoTable = new HashMap<String,TargetGenotype>(reads.length);
+		PackedAlleleTable alleleTable = new PackedAlleleTable(ntLength);
+		int[] readAlleleIdx = new int[reads.length];
 		TargetGenotype[] targetGenos = new TargetGenotype[reads.length];
-		StringBuffer sb = new StringBuffer();
+		TargetGenotype noCoverageGeno = new TargetGenotype.NoCoverageTargetGenotype();
+		TargetGenotype lowQualityGeno = new TargetGenotype.LowQualityTargetGenotype();
+		HashMap<String,TargetGenotype> otherGenoTable = null;
+		boolean isReverse = target.isReverse();
+		byte[] ntCodes = new byte[ntLength];
+		long[] key = new long[PackedAlleleTable.getKeyWords(ntLength)];
 		
 		nextRead:
 		for (int rIdx = 0; rIdx < reads.length; rIdx++) {
+			readAlleleIdx[rIdx] = -1;
 			Read r = reads[rIdx];
-			/*
-			if (r.getId().equals("HS26_13224:3:2101:8581:85475#47")) {
-				System.out.println("Here");
-			}
-			*/
 			int rStartPos = r.getStartPos();
-			int rEndPos = rStartPos + r.getSequence().length() - 1;
+			byte[] rBases = r.getBases();
+			byte[] rQuals = r.getQualities();
+			int rEndPos = rStartPos + rBases.length - 1;
 			
-			sb.setLength(0);
-			for (int trIdx = 0; trIdx < tRegions.length; trIdx++) {
-				GenomeRegion tRegion = tRegions[trIdx];
-				int tStartPos = tRegion.getStartPos();
-				int tEndPos = tRegion.getStopPos();
-				int tLen = 1 + tEndPos - tStartPos;
-
-				if ((rStartPos > tStartPos) || (rEndPos < tEndPos)) {
-					targetGenos[rIdx] = new TargetGenotype.NoCoverageTargetGenotype();
+			int ntIdx = 0;
+			boolean isPackable = true;
+			for (int trIdx = 0; trIdx < tStartPos.length; trIdx++) {
+				if ((rStartPos > tStartPos[trIdx]) || (rEndPos < tEndPos[trIdx])) {
+					targetGenos[rIdx] = noCoverageGeno;
 					continue nextRead;
 				}
-				
-				int tStartOffset = tStartPos - rStartPos;
-				String trSeq = r.getSequence().substring(tStartOffset, tStartOffset+tLen);
-				if (trSeq.contains("N")) {
-					targetGenos[rIdx] = new TargetGenotype.NoCoverageTargetGenotype();
-					continue nextRead;
+				int tStartOffset = tStartPos[trIdx] - rStartPos;
+				int tEndOffset = tEndPos[trIdx] - rStartPos;
+				for (int offset = tStartOffset; offset <= tEndOffset; offset++) {
+					if (rBases[offset] == 'N') {
+						targetGenos[rIdx] = noCoverageGeno;
+						continue nextRead;
+					}
 				}
-				
-				int minQ = 1000;
-				for (int j = 0; j < tLen; j++) {
-					int q = r.getPhredScore(tStartOffset+j);
-					if (q < minQ) {
-						minQ = q;
+				for (int offset = tStartOffset; offset <= tEndOffset; offset++) {
+					if (rQuals[offset] < minBaseQScore) {
+						targetGenos[rIdx] = lowQualityGeno;
+						continue nextRead;
 					}
 				}
-				if (minQ < minBaseQScore) {
-					targetGenos[rIdx] = new TargetGenotype.LowQualityTargetGenotype();
-					continue nextRead;
+				for (int offset = tStartOffset; offset <= tEndOffset; offset++) {
+					int code = PackedAlleleTable.getNtCode(rBases[offset]);
+					isPackable &= (code >= 0);
+					ntCodes[ntIdx++] = (byte)code;
 				}
-				sb.append(trSeq);
 			}
-			String ntSequence = sb.toString();
 			
-			// If the gene is negative-strand, reverse the sequence
-			if (target.isReverse()) {
-				ntSequence = SequenceUtilities.getReverseComplementSequence(ntSequence);					
+			if (!isPackable) {
+				if (otherGenoTable == null) {
+					otherGenoTable = new HashMap<String,TargetGenotype>();
+				}
+				String ntSequence = getNtSequence(r);
+				TargetGenotype ntGeno = otherGenoTable.get(ntSequence);
+				if (ntGeno == null) {
+					ntGeno = new TargetGenotype (ntSequence, target);
+					otherGenoTable.put(ntSequence, ntGeno);
+				}
+				targetGenos[rIdx] = ntGeno;
+				continue;
 			}
 			
-			// Get instance from table (flywheel)
-			TargetGenotype ntGeno = genoTable.get(ntSequence);
-			if (ntGeno == null) {
-				ntGeno = new TargetGenotype (ntSequence, target);
-				genoTable.put(ntSequence, ntGeno);
+			// Pack the nucleotides; if the gene is negative-strand, reverse-complement them
+			java.util.Arrays.fill(key, 0L);
+			for (int i = 0; i < ntLength; i++) {
+				int code = isReverse ? (3 - ntCodes[ntLength - 1 - i]) : ntCodes[i];
+				key[i >> 5] |= ((long)code) << ((i & 31) << 1);
+			}
+			readAlleleIdx[rIdx] = alleleTable.getOrAdd(key);
+		}
+		
+		// Create the genotypes of the distinct alleles
+		TargetGenotype[] alleleGenos = new TargetGenotype[alleleTable.getAlleleCount()];
+		for (int aIdx = 0; aIdx < alleleGenos.length; aIdx++) {
+			alleleGenos[aIdx] = new TargetGenotype (alleleTable.getAllele(aIdx), target);
+		}
+		for (int rIdx = 0; rIdx < reads.length; rIdx++) {
+			if (readAlleleIdx[rIdx] >= 0) {
+				targetGenos[rIdx] = alleleGenos[readAlleleIdx[rIdx]];
 			}
-			targetGenos[rIdx] = ntGeno;
 		}
 		return targetGenos;	
 	}
+	
+	private String getNtSequence (Read r) {
+		StringBuilder sb = new StringBuilder(ntLength);
+		byte[] rBases = r.getBases();
+		for (int trIdx = 0; trIdx < tStartPos.length; trIdx++) {
+			for (int pos = tStartPos[trIdx]; pos <= tEndPos[trIdx]; pos++) {
+				sb.append((char)rBases[pos - r.getStartPos()]);
+			}
+		}
+		String ntSequence = sb.toString();
+		
+		// If the gene is negative-strand, reverse the sequence
+		if (target.isReverse()) {
+			ntSequence = SequenceUtilities.getReverseComplementSequence(ntSequence);					
+		}
+		return ntSequence;
+	}
 }
-
-
-